@@ -0,0 +1,48 @@
+package bs.carpooling.benchmark;
+
+import bs.carpooling.entity.CarEntity;
+import bs.carpooling.entity.GroupOfPeopleEntity;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Journey of a group to the best fit car of a fleet of 6 seat cars. The group is dropped off after each invocation,
+ * so every invocation finds the same seats available.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AllocationBenchmark {
+
+  @Param({"10", "1000", "100000", "1000000"})
+  private int fleetSize;
+
+  private InProcessMongo mongo;
+  private int groupId;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    mongo = new InProcessMongo();
+    mongo.resetFleet(fleetSize, 6);
+  }
+
+  @Benchmark
+  public CarEntity assignToCarWithAvailableSeats() {
+    return mongo.carsRepository.assignToCarWithAvailableSeats(new GroupOfPeopleEntity(++groupId, 4, new Date())).block();
+  }
+
+  @TearDown(Level.Invocation)
+  public void dropoff() {
+    mongo.carsRepository.dropoff(groupId).block();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    mongo.close();
+  }
+}
@@ -0,0 +1,24 @@
+package bs.carpooling.benchmark;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * JMH main with JSON results by default (jmh-result.json), to track regressions between releases. Any JMH option
+ * is accepted, e.g. {@code -p fleetSize=1000 -rff target/result.json LocateBenchmark}.
+ */
+public class BenchmarkRunner {
+
+  public static void main(String[] args) throws Exception {
+    CommandLineOptions commandLine = new CommandLineOptions(args);
+    Options options = new OptionsBuilder()
+      .parent(commandLine)
+      .resultFormat(commandLine.getResultFormat().orElse(ResultFormatType.JSON))
+      .result(commandLine.getResult().orElse("jmh-result.json"))
+      .build();
+    new Runner(options).run();
+  }
+}
@@ -0,0 +1,85 @@
+package bs.carpooling.benchmark;
+
+import bs.carpooling.entity.CarEntity;
+import bs.carpooling.entity.GroupOfPeopleEntity;
+import bs.carpooling.repository.CarEntityCodec;
+import com.mongodb.MongoClientSettings;
+import org.bson.BsonBinaryReader;
+import org.bson.BsonBinaryWriter;
+import org.bson.Document;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.DocumentCodec;
+import org.bson.codecs.EncoderContext;
+import org.bson.io.BasicOutputBuffer;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+import org.springframework.data.mongodb.core.convert.NoOpDbRefResolver;
+import org.springframework.data.mongodb.core.mapping.MongoMappingContext;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading and writing one car with its groups as BSON: the driver's Document plus the reflective mapping converter,
+ * as the template does, against {@link CarEntityCodec}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CarCodecBenchmark {
+
+  @Param({"0", "1", "6"})
+  private int groups;
+
+  private CarEntityCodec codec;
+  private final DocumentCodec documentCodec = new DocumentCodec(MongoClientSettings.getDefaultCodecRegistry());
+  private MappingMongoConverter converter;
+  private CarEntity car;
+  private byte[] bson;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    converter = new MappingMongoConverter(NoOpDbRefResolver.INSTANCE, new MongoMappingContext());
+    converter.afterPropertiesSet();
+    codec = new CarEntityCodec(converter);
+    List<GroupOfPeopleEntity> carGroups = new ArrayList<>();
+    for (int id = 1; id <= groups; id++) {
+      carGroups.add(new GroupOfPeopleEntity(id, 1, new Date()));
+    }
+    car = new CarEntity(1, 6 - groups, carGroups, 3L);
+    bson = encodeWithCodec();
+  }
+
+  @Benchmark
+  public CarEntity decodeWithMappingConverter() {
+    Document document = documentCodec.decode(new BsonBinaryReader(ByteBuffer.wrap(bson)), DecoderContext.builder().build());
+    return converter.read(CarEntity.class, document);
+  }
+
+  @Benchmark
+  public CarEntity decodeWithCodec() {
+    return codec.decode(new BsonBinaryReader(ByteBuffer.wrap(bson)), DecoderContext.builder().build());
+  }
+
+  @Benchmark
+  public byte[] encodeWithMappingConverter() {
+    Document document = new Document();
+    converter.write(car, document);
+    BasicOutputBuffer buffer = new BasicOutputBuffer();
+    documentCodec.encode(new BsonBinaryWriter(buffer), document, EncoderContext.builder().build());
+    return buffer.toByteArray();
+  }
+
+  @Benchmark
+  public byte[] encodeWithCodec() {
+    BasicOutputBuffer buffer = new BasicOutputBuffer();
+    codec.encode(new BsonBinaryWriter(buffer), car, EncoderContext.builder().build());
+    return buffer.toByteArray();
+  }
+}
@@ -0,0 +1,360 @@
+package bs.carpooling.benchmark;
+
+import bs.carpooling.allocation.AllocationPolicy;
+import bs.carpooling.dto.CarDTO;
+import bs.carpooling.dto.GroupOfPeopleDTO;
+import bs.carpooling.entity.CarEntity;
+import bs.carpooling.entity.GroupOfPeopleEntity;
+import bs.carpooling.metrics.WaitTimes;
+import org.HdrHistogram.Histogram;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import static bs.carpooling.repository.CarsRepository.WAITING_QUEUE;
+
+/**
+ * Discrete-event simulation of a fleet on a virtual clock: groups arrive at random (Poisson arrivals), ride for a
+ * random time (exponential trips) once a car takes them, and leave the waiting queue after {@code patience}. Every
+ * event is a call to {@code CarPoolingService}, reassignments are awaited after each dropoff, and all randomness comes
+ * from one seeded generator, so a seed gives the same run every time; only the wall clock costs vary.
+ * <p>
+ * Reports the waiting queue over time, then throughput, waits and the cost of each operation:
+ * {@code java -cp target/benchmarks.jar bs.carpooling.benchmark.FleetSimulator --fleet-size=50000 --duration=24h}.
+ * Options (defaults): {@code --fleet-size} (50000), {@code --min-seats} (4), {@code --max-seats} (6),
+ * {@code --group-sizes} ({@value #GROUP_SIZES}, people:weight), {@code --load} (0.9, seats asked for over fleet
+ * seats) or {@code --arrivals-per-sec}, {@code --mean-trip} (10m), {@code --patience} (30m), {@code --duration}
+ * (24h), {@code --sample-interval} (1h), {@code --seed} (1), {@code --mode} (engine, or mongo on the in-process
+ * stand-in, much slower), {@code --policy} (best-fit, mongo mode only) and {@code --runs} (1): further runs with the
+ * same seed check that the queue over time, the totals and the waits come out the same as in the first one.
+ */
+public class FleetSimulator {
+
+  private static final String GROUP_SIZES = "1:30,2:30,3:15,4:15,5:5,6:5";
+  private static final int LARGE_GROUP = 4;
+
+  private enum Type {ARRIVAL, TRIP_END, PATIENCE_END, SAMPLE}
+
+  private static class Event implements Comparable<Event> {
+    private final long at;
+    // Events at the same time keep the order they were scheduled in
+    private final long seq;
+    private final Type type;
+    private final int groupId;
+
+    Event(long at, long seq, Type type, int groupId) {
+      this.at = at;
+      this.seq = seq;
+      this.type = type;
+      this.groupId = groupId;
+    }
+
+    @Override
+    public int compareTo(Event other) {
+      return at != other.at ? Long.compare(at, other.at) : Long.compare(seq, other.seq);
+    }
+  }
+
+  private static class Group {
+    private final int people;
+    private final long arrivedAt;
+    private final long tripMillis;
+
+    Group(int people, long arrivedAt, long tripMillis) {
+      this.people = people;
+      this.arrivedAt = arrivedAt;
+      this.tripMillis = tripMillis;
+    }
+  }
+
+  // Options
+  private final int fleetSize;
+  private final int minSeats;
+  private final int maxSeats;
+  private final int[] peopleOfWeight;
+  private final double load;
+  private final double arrivalsPerSec;
+  private final long meanTripMillis;
+  private final long patienceMillis;
+  private final long durationMillis;
+  private final long sampleMillis;
+  private final String mode;
+  private final String policy;
+
+  private final Random random;
+  private final PriorityQueue<Event> events = new PriorityQueue<>();
+  private long seq;
+  private long clock;
+
+  // Groups riding or waiting, by id
+  private final Map<Integer, Group> groups = new HashMap<>();
+  private final Map<Integer, Group> waiting = new LinkedHashMap<>();
+  // Waiting groups a car took, told by the reassignment thread
+  private final Queue<GroupOfPeopleEntity> reassigned = new ConcurrentLinkedQueue<>();
+  private int nextGroupId = 1;
+  private long seats;
+  private long occupiedSeats;
+  private double occupiedSeatMillis;
+
+  // Totals, and since the last sample
+  private long arrivals;
+  private long assignedOnArrival;
+  private long assignedFromQueue;
+  private long trips;
+  private long abandoned;
+  private long sampleArrivals;
+  private long sampleAbandoned;
+  private long maxWaiting;
+  // What the virtual clock shows of the run: the samples, then the totals and waits
+  private final StringBuilder outcome = new StringBuilder();
+
+  // Waits on the virtual clock, of groups a car took (ms)
+  private final Histogram waits = new Histogram(3);
+  // Wall clock cost of each call (ns)
+  private final Map<String, Histogram> costs = new LinkedHashMap<>();
+
+  FleetSimulator(Map<String, String> options) {
+    fleetSize = Integer.parseInt(options.getOrDefault("fleet-size", "50000"));
+    minSeats = Integer.parseInt(options.getOrDefault("min-seats", "4"));
+    maxSeats = Integer.parseInt(options.getOrDefault("max-seats", "6"));
+    peopleOfWeight = peopleOfWeight(options.getOrDefault("group-sizes", GROUP_SIZES));
+    load = Double.parseDouble(options.getOrDefault("load", "0.9"));
+    arrivalsPerSec = Double.parseDouble(options.getOrDefault("arrivals-per-sec", "0"));
+    meanTripMillis = duration(options.getOrDefault("mean-trip", "10m"));
+    patienceMillis = duration(options.getOrDefault("patience", "30m"));
+    durationMillis = duration(options.getOrDefault("duration", "24h"));
+    sampleMillis = duration(options.getOrDefault("sample-interval", "1h"));
+    mode = options.getOrDefault("mode", "engine");
+    policy = options.getOrDefault("policy", "best-fit");
+    random = new Random(Long.parseLong(options.getOrDefault("seed", "1")));
+  }
+
+  public static void main(String[] args) {
+    Map<String, String> options = new HashMap<>();
+    for (String arg : args) {
+      if (!arg.startsWith("--") || !arg.contains("=")) {
+        throw new IllegalArgumentException("Expected --option=value, got " + arg);
+      }
+      options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+    }
+    int runs = Integer.parseInt(options.getOrDefault("runs", "1"));
+    String firstOutcome = new FleetSimulator(options).run();
+    for (int run = 2; run <= runs; run++) {
+      System.out.printf("%nrun %d of %d, same seed%n", run, runs);
+      String outcome = new FleetSimulator(options).run();
+      if (!outcome.equals(firstOutcome)) {
+        throw new IllegalStateException("Run " + run + " differs from the first one with the same seed:\n"
+          + outcome + "first run:\n" + firstOutcome);
+      }
+    }
+    if (runs > 1) {
+      System.out.printf("%nthe %d runs are the same on the virtual clock%n", runs);
+    }
+  }
+
+  String run() {
+    long start = System.nanoTime();
+    try (InProcessFleet fleet = fleet()) {
+      createFleet(fleet);
+      double meanArrivalMillis = 1000 / (arrivalsPerSec > 0 ? arrivalsPerSec
+        : load * seats * 1000 / (meanPeople() * meanTripMillis));
+      System.out.printf("%d cars, %d seats, %.2f arrivals/s, mean trip %s, %s mode%n",
+        fleetSize, seats, 1000 / meanArrivalMillis, Duration.ofMillis(meanTripMillis), mode);
+      System.out.printf("%8s %9s %9s %12s %10s%n", "time", "waiting", "arrivals", "utilization", "abandoned");
+
+      schedule(exponential(meanArrivalMillis), Type.ARRIVAL, 0);
+      schedule(sampleMillis, Type.SAMPLE, 0);
+      while (!events.isEmpty() && events.peek().at <= durationMillis) {
+        Event event = events.poll();
+        advanceTo(event.at);
+        switch (event.type) {
+          case ARRIVAL:
+            arrive(fleet);
+            schedule(clock + exponential(meanArrivalMillis), Type.ARRIVAL, 0);
+            break;
+          case TRIP_END:
+            endTrip(fleet, event.groupId);
+            break;
+          case PATIENCE_END:
+            if (waiting.containsKey(event.groupId)) {
+              abandon(fleet, event.groupId);
+            }
+            break;
+          case SAMPLE:
+            sample();
+            schedule(clock + sampleMillis, Type.SAMPLE, 0);
+            break;
+        }
+      }
+      advanceTo(durationMillis);
+    }
+    report(System.nanoTime() - start);
+    return outcome.toString();
+  }
+
+  private InProcessFleet fleet() {
+    WaitTimes waitTimes = new WaitTimes() {
+      @Override
+      public void reassigned(GroupOfPeopleEntity group) {
+        reassigned.add(group);
+      }
+    };
+    switch (mode) {
+      case "engine":
+        if (!"best-fit".equals(policy)) {
+          throw new IllegalArgumentException("The engine mode only allocates best fit");
+        }
+        return new InProcessEngine(waitTimes);
+      case "mongo":
+        return new InProcessMongo(AllocationPolicy.named(policy, LARGE_GROUP), waitTimes);
+      default:
+        throw new IllegalArgumentException("Unknown mode " + mode + ", expected engine or mongo");
+    }
+  }
+
+  private void createFleet(InProcessFleet fleet) {
+    List<CarDTO> cars = new ArrayList<>();
+    for (int carId = 1; carId <= fleetSize; carId++) {
+      cars.add(new CarDTO(carId, minSeats + random.nextInt(maxSeats - minSeats + 1)));
+    }
+    seats = fleet.carPoolingService().createCars(cars).block().getSeats();
+  }
+
+  private void arrive(InProcessFleet fleet) {
+    int groupId = nextGroupId++;
+    Group group = new Group(peopleOfWeight[random.nextInt(peopleOfWeight.length)], clock, exponential(meanTripMillis));
+    groups.put(groupId, group);
+    arrivals++;
+    sampleArrivals++;
+
+    long callStart = System.nanoTime();
+    CarEntity car = fleet.carPoolingService().journey(new GroupOfPeopleDTO(groupId, group.people)).block();
+    cost("journey", callStart);
+    if (WAITING_QUEUE.equals(car.getId())) {
+      waiting.put(groupId, group);
+      maxWaiting = Math.max(maxWaiting, waiting.size());
+      schedule(clock + patienceMillis, Type.PATIENCE_END, groupId);
+    } else {
+      assignedOnArrival++;
+      startTrip(groupId, group);
+    }
+  }
+
+  private void startTrip(int groupId, Group group) {
+    waits.recordValue(clock - group.arrivedAt);
+    occupiedSeats += group.people;
+    schedule(clock + group.tripMillis, Type.TRIP_END, groupId);
+  }
+
+  private void endTrip(InProcessFleet fleet, int groupId) {
+    dropoff(fleet, groupId, "dropoff");
+    occupiedSeats -= groups.remove(groupId).people;
+    trips++;
+  }
+
+  private void abandon(InProcessFleet fleet, int groupId) {
+    dropoff(fleet, groupId, "dropoff from queue");
+    waiting.remove(groupId);
+    groups.remove(groupId);
+    abandoned++;
+    sampleAbandoned++;
+  }
+
+  // The reassignments the dropoff signals happen at its time, and count in its cost
+  private void dropoff(InProcessFleet fleet, int groupId, String operation) {
+    long callStart = System.nanoTime();
+    fleet.carPoolingService().dropoff(groupId).block();
+    fleet.awaitReassignment();
+    cost(operation, callStart);
+    GroupOfPeopleEntity group;
+    while ((group = reassigned.poll()) != null) {
+      assignedFromQueue++;
+      startTrip(group.getId(), waiting.remove(group.getId()));
+    }
+  }
+
+  private void sample() {
+    System.out.print(virtual("%8s %9d %9d %11.1f%% %10d%n", time(clock), waiting.size(), sampleArrivals,
+      100.0 * occupiedSeats / seats, sampleAbandoned));
+    sampleArrivals = 0;
+    sampleAbandoned = 0;
+  }
+
+  private void report(long wallNanos) {
+    double wallSeconds = wallNanos / 1e9;
+    long operations = costs.values().stream().mapToLong(Histogram::getTotalCount).sum();
+    System.out.printf("%nsimulated %s in %.1fs (x%.0f), %d operations, %.0f ops/s%n",
+      time(durationMillis), wallSeconds, durationMillis / 1000 / wallSeconds, operations, operations / wallSeconds);
+    System.out.print(virtual("arrivals %d, assigned on arrival %d, from the queue %d, abandoned %d, waiting at the end %d"
+      + " (at most %d)%n", arrivals, assignedOnArrival, assignedFromQueue, abandoned, waiting.size(), maxWaiting));
+    System.out.print(virtual("trips %d (%.0f/h), seat utilization %.1f%%%n",
+      trips, trips * 3_600_000.0 / durationMillis, 100 * occupiedSeatMillis / ((double) seats * durationMillis)));
+    System.out.print(virtual("wait until a car (s): p50 %.1f, p90 %.1f, p99 %.1f, p99.9 %.1f, max %.1f%n",
+      waits.getValueAtPercentile(50) / 1000.0, waits.getValueAtPercentile(90) / 1000.0,
+      waits.getValueAtPercentile(99) / 1000.0, waits.getValueAtPercentile(99.9) / 1000.0, waits.getMaxValue() / 1000.0));
+    System.out.printf("%-20s %10s %10s %10s %10s%n", "cost (us)", "calls", "mean", "p99", "max");
+    costs.forEach((operation, cost) -> System.out.printf("%-20s %10d %10.1f %10.1f %10.1f%n", operation,
+      cost.getTotalCount(), cost.getMean() / 1000, cost.getValueAtPercentile(99) / 1000.0, cost.getMaxValue() / 1000.0));
+  }
+
+  private String virtual(String format, Object... args) {
+    String line = String.format(format, args);
+    outcome.append(line);
+    return line;
+  }
+
+  private void schedule(long at, Type type, int groupId) {
+    events.add(new Event(at, seq++, type, groupId));
+  }
+
+  private void advanceTo(long at) {
+    occupiedSeatMillis += (double) occupiedSeats * (at - clock);
+    clock = at;
+  }
+
+  private void cost(String operation, long callStart) {
+    costs.computeIfAbsent(operation, key -> new Histogram(3)).recordValue(System.nanoTime() - callStart);
+  }
+
+  private long exponential(double mean) {
+    return (long) (-Math.log(1 - random.nextDouble()) * mean) + 1;
+  }
+
+  private double meanPeople() {
+    double people = 0;
+    for (int groupPeople : peopleOfWeight) {
+      people += groupPeople;
+    }
+    return people / peopleOfWeight.length;
+  }
+
+  // One entry of each people count per unit of its weight, so that a uniform pick follows the weights
+  private static int[] peopleOfWeight(String groupSizes) {
+    List<Integer> people = new ArrayList<>();
+    for (String groupSize : groupSizes.split(",")) {
+      String[] peopleAndWeight = groupSize.split(":");
+      for (int i = 0; i < Integer.parseInt(peopleAndWeight[1]); i++) {
+        people.add(Integer.parseInt(peopleAndWeight[0]));
+      }
+    }
+    return people.stream().mapToInt(Integer::intValue).toArray();
+  }
+
+  // 90s, 10m, 24h
+  private static long duration(String duration) {
+    return Duration.parse("PT" + duration.toUpperCase()).toMillis();
+  }
+
+  private static String time(long millis) {
+    Duration duration = Duration.ofMillis(millis);
+    return String.format("%02d:%02d:%02d", duration.toHours(), duration.toMinutesPart(), duration.toSecondsPart());
+  }
+}
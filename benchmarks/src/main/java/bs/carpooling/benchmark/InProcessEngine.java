@@ -0,0 +1,82 @@
+package bs.carpooling.benchmark;
+
+import bs.carpooling.engine.FleetEventLog;
+import bs.carpooling.engine.FleetSnapshot;
+import bs.carpooling.engine.FleetStateEngine;
+import bs.carpooling.entity.FleetEventEntity;
+import bs.carpooling.metrics.WaitTimes;
+import bs.carpooling.service.CarPoolingService;
+import bs.carpooling.service.GroupEvents;
+import bs.carpooling.service.ReassignmentScheduler;
+import bs.carpooling.service.WaitingQueueMatcher;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.List;
+
+/**
+ * The engine allocation mode with an event log that drops everything: the fleet state only lives in memory, so
+ * nothing but the allocation itself is measured.
+ */
+class InProcessEngine implements InProcessFleet {
+
+  private static final int MAX_SKIPPED = 5;
+  private static final int MAX_SUBSCRIPTIONS = 1000;
+  // Nothing is written anyway: only the flushes of the dropped events are worth running
+  private static final Duration FLUSH_INTERVAL = Duration.ofSeconds(1);
+  private static final Duration SNAPSHOT_INTERVAL = Duration.ofDays(365);
+
+  private final FleetStateEngine engine = new FleetStateEngine(new DiscardedEvents(), FLUSH_INTERVAL, SNAPSHOT_INTERVAL);
+  private final ReassignmentScheduler reassignmentScheduler;
+  private final CarPoolingService carPoolingService;
+
+  InProcessEngine(WaitTimes waitTimes) {
+    engine.recover().block();
+    GroupEvents groupEvents = new GroupEvents(MAX_SUBSCRIPTIONS);
+    reassignmentScheduler = new ReassignmentScheduler(new WaitingQueueMatcher(engine, MAX_SKIPPED, waitTimes, groupEvents));
+    carPoolingService = new CarPoolingService(engine, reassignmentScheduler, groupEvents);
+  }
+
+  @Override
+  public CarPoolingService carPoolingService() {
+    return carPoolingService;
+  }
+
+  // A pass on the in-memory state takes microseconds, less than parking the thread
+  @Override
+  public void awaitReassignment() {
+    while (reassignmentScheduler.isPassInFlight()) {
+      Thread.onSpinWait();
+    }
+  }
+
+  @Override
+  public void close() {
+    reassignmentScheduler.destroy();
+    engine.destroy();
+  }
+
+  private static class DiscardedEvents implements FleetEventLog {
+
+    @Override
+    public Mono<Void> append(List<FleetEventEntity> events) {
+      return Mono.empty();
+    }
+
+    @Override
+    public Mono<Void> saveSnapshot(FleetSnapshot snapshot) {
+      return Mono.empty();
+    }
+
+    @Override
+    public Mono<FleetSnapshot> loadSnapshot() {
+      return Mono.empty();
+    }
+
+    @Override
+    public Flux<FleetEventEntity> eventsAfter(long seq) {
+      return Flux.empty();
+    }
+  }
+}
@@ -0,0 +1,19 @@
+package bs.carpooling.benchmark;
+
+import bs.carpooling.service.CarPoolingService;
+
+/**
+ * The service of the application wired on a repository of one allocation mode, all in the benchmark process.
+ */
+interface InProcessFleet extends AutoCloseable {
+
+  CarPoolingService carPoolingService();
+
+  /**
+   * Wait until the reassignments signaled so far are done.
+   */
+  void awaitReassignment();
+
+  @Override
+  void close();
+}
@@ -0,0 +1,91 @@
+package bs.carpooling.benchmark;
+
+import bs.carpooling.allocation.AllocationPolicy;
+import bs.carpooling.allocation.BestFitPolicy;
+import bs.carpooling.dto.GroupOfPeopleDTO;
+import bs.carpooling.entity.CarEntity;
+import bs.carpooling.repository.CustomizedCarsRepositoryImpl;
+import bs.carpooling.metrics.WaitTimes;
+import bs.carpooling.service.CarPoolingService;
+import bs.carpooling.service.GroupEvents;
+import bs.carpooling.service.ReassignmentScheduler;
+import bs.carpooling.service.WaitingQueueMatcher;
+import com.mongodb.reactivestreams.client.MongoClient;
+import com.mongodb.reactivestreams.client.MongoClients;
+import de.bwaldvogel.mongo.MongoServer;
+import de.bwaldvogel.mongo.backend.memory.MemoryBackend;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import reactor.core.publisher.Flux;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * In-memory mongodb stand-in (mongo-java-server) with the repository and service of the application wired on it, so
+ * benchmarks run offline. Absolute timings differ from a real mongod: compare results between releases, not with
+ * production.
+ */
+class InProcessMongo implements InProcessFleet {
+
+  private static final int BULK_SIZE = 1000;
+  private static final int BULK_PARALLELISM = 4;
+  private static final int MAX_SKIPPED = 5;
+  private static final int MAX_SUBSCRIPTIONS = 1000;
+
+  private final MongoServer server = new MongoServer(new MemoryBackend());
+  private final MongoClient client;
+  final CustomizedCarsRepositoryImpl carsRepository;
+  final ReassignmentScheduler reassignmentScheduler;
+  final CarPoolingService carPoolingService;
+
+  InProcessMongo() {
+    this(new BestFitPolicy(), new WaitTimes());
+  }
+
+  InProcessMongo(AllocationPolicy allocationPolicy, WaitTimes waitTimes) {
+    InetSocketAddress address = server.bind();
+    client = MongoClients.create("mongodb://" + address.getHostString() + ":" + address.getPort());
+    ReactiveMongoTemplate mongoOperations = new ReactiveMongoTemplate(client, "carpooling-benchmark");
+    carsRepository = new CustomizedCarsRepositoryImpl(mongoOperations, BULK_SIZE, BULK_PARALLELISM, allocationPolicy);
+    GroupEvents groupEvents = new GroupEvents(MAX_SUBSCRIPTIONS);
+    reassignmentScheduler = new ReassignmentScheduler(new WaitingQueueMatcher(carsRepository, MAX_SKIPPED, waitTimes, groupEvents));
+    carPoolingService = new CarPoolingService(carsRepository, reassignmentScheduler, groupEvents);
+  }
+
+  static Flux<CarEntity> fleet(int fleetSize, int seats) {
+    return Flux.range(1, fleetSize)
+      .map(carId -> CarEntity.builder().id(carId).seatsAvailable(seats).build());
+  }
+
+  void resetFleet(int fleetSize, int seats) {
+    carsRepository.initWith(fleet(fleetSize, seats)).blockLast();
+  }
+
+  /**
+   * Journeys of groups {@code firstGroupId} to {@code firstGroupId + groups - 1}, in that order.
+   */
+  void journeys(int firstGroupId, int groups, int people) {
+    carPoolingService.journeys(Flux.range(firstGroupId, groups).map(groupId -> new GroupOfPeopleDTO(groupId, people)))
+      .blockLast();
+  }
+
+  @Override
+  public CarPoolingService carPoolingService() {
+    return carPoolingService;
+  }
+
+  @Override
+  public void awaitReassignment() {
+    while (reassignmentScheduler.isPassInFlight()) {
+      LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(10));
+    }
+  }
+
+  @Override
+  public void close() {
+    reassignmentScheduler.destroy();
+    client.close();
+    server.shutdownNow();
+  }
+}
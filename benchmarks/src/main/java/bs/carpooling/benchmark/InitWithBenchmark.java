@@ -0,0 +1,37 @@
+package bs.carpooling.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * PUT /cars: reset of all the data and chunked insert of a fleet.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class InitWithBenchmark {
+
+  @Param({"10", "1000", "100000", "1000000"})
+  private int fleetSize;
+
+  private InProcessMongo mongo;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    mongo = new InProcessMongo();
+  }
+
+  @Benchmark
+  public Long initWith() {
+    return mongo.carsRepository.initWith(InProcessMongo.fleet(fleetSize, 6)).count().block();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    mongo.close();
+  }
+}
@@ -0,0 +1,51 @@
+package bs.carpooling.benchmark;
+
+import bs.carpooling.entity.CarEntity;
+import bs.carpooling.entity.GroupOfPeopleEntity;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Locate a random group of a fleet where every car has one group, or look up a random group of the waiting queue.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LocateBenchmark {
+
+  private static final int WAITING_GROUPS = 1000;
+
+  @Param({"10", "1000", "100000", "1000000"})
+  private int fleetSize;
+
+  private InProcessMongo mongo;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    mongo = new InProcessMongo();
+    mongo.resetFleet(fleetSize, 6);
+    mongo.journeys(1, fleetSize, 4);
+    // no car has 6 seats left: these wait
+    mongo.journeys(fleetSize + 1, WAITING_GROUPS, 6);
+  }
+
+  @Benchmark
+  public CarEntity locateCarOfGroup() {
+    return mongo.carPoolingService.locateCarOfGroup(ThreadLocalRandom.current().nextInt(1, fleetSize + 1)).block();
+  }
+
+  @Benchmark
+  public GroupOfPeopleEntity findWaitingGroup() {
+    return mongo.carPoolingService.findWaitingGroup(fleetSize + ThreadLocalRandom.current().nextInt(1, WAITING_GROUPS + 1)).block();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    mongo.close();
+  }
+}
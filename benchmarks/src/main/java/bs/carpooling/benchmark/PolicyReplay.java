@@ -0,0 +1,149 @@
+package bs.carpooling.benchmark;
+
+import bs.carpooling.allocation.AllocationPolicy;
+import bs.carpooling.dto.GroupOfPeopleDTO;
+import bs.carpooling.entity.CarEntity;
+import bs.carpooling.entity.GroupOfPeopleEntity;
+import bs.carpooling.metrics.WaitTimes;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static bs.carpooling.repository.CarsRepository.WAITING_QUEUE;
+
+/**
+ * Replays a workload (see {@link Workload}) under each allocation policy, against the in-process mongodb stand-in,
+ * and compares ops/sec, seat utilization over the workload time and waiting queue waits:
+ * {@code java -cp target/benchmarks.jar bs.carpooling.benchmark.PolicyReplay [workload.ndjson] [policy...]}.
+ * A missing workload file is generated first (seeded, so runs compare), and written for later runs.
+ */
+public class PolicyReplay {
+
+  private static final long SEED = 42;
+  private static final int FLEET_SIZE = 200;
+  private static final int JOURNEYS = 5000;
+  private static final int LARGE_GROUP = 4;
+
+  public static void main(String[] args) throws Exception {
+    Path file = Paths.get(args.length > 0 ? args[0] : "workload.ndjson");
+    List<String> policies = args.length > 1
+      ? Arrays.asList(args).subList(1, args.length)
+      : Arrays.asList("best-fit", "first-fit", "worst-fit", "size-class");
+
+    Workload workload;
+    if (Files.exists(file)) {
+      workload = Workload.read(file);
+    } else {
+      workload = Workload.generate(SEED, FLEET_SIZE, JOURNEYS);
+      workload.write(file);
+    }
+    System.out.printf("%d operations from %s%n", workload.operations.size(), file);
+    System.out.printf("%-12s %10s %12s %14s %8s %10s %8s%n",
+      "policy", "ops/s", "utilization", "mean wait ms", "queued", "abandoned", "waiting");
+    for (String policy : policies) {
+      System.out.println(new Replay(AllocationPolicy.named(policy, LARGE_GROUP)).run(workload));
+    }
+  }
+
+  /**
+   * The replay of a workload on a fresh stand-in. Reassignments are awaited after each dropoff, so they happen at the
+   * time of the dropoff.
+   */
+  private static class Replay extends WaitTimes {
+    private final AllocationPolicy policy;
+    private final Map<Integer, Long> waitingSince = new HashMap<>();
+    private final Map<Integer, Integer> people = new HashMap<>();
+    private long clock;
+    private long seats;
+    private long occupiedSeats;
+    // seats occupied * ms, over the workload time
+    private double occupiedSeatMillis;
+    private long queued;
+    private long abandoned;
+    private long reassigned;
+    private long waitMillis;
+
+    Replay(AllocationPolicy policy) {
+      this.policy = policy;
+    }
+
+    String run(Workload workload) {
+      long start = System.nanoTime();
+      try (InProcessMongo mongo = new InProcessMongo(policy, this)) {
+        for (Workload.Operation operation : workload.operations) {
+          advanceTo(operation.at);
+          switch (operation.op) {
+            case Workload.Operation.CARS:
+              // the indexes created on the first use of an entity may race with the collections recreated
+              seats = mongo.carPoolingService.createCars(operation.cars).retry(1).block().getSeats();
+              break;
+            case Workload.Operation.JOURNEY:
+              journey(mongo, operation);
+              break;
+            case Workload.Operation.DROPOFF:
+              dropoff(mongo, operation.id);
+              break;
+            default:
+              throw new IllegalArgumentException("Unknown operation " + operation.op);
+          }
+        }
+      }
+      double seconds = (System.nanoTime() - start) / 1e9;
+      double utilization = clock == 0 || seats == 0 ? 0 : occupiedSeatMillis / ((double) seats * clock);
+      double meanWait = reassigned == 0 ? 0 : (double) waitMillis / reassigned;
+      return String.format("%-12s %10.0f %11.1f%% %14.0f %8d %10d %8d",
+        policy, workload.operations.size() / seconds, utilization * 100, meanWait, queued, abandoned,
+        waitingSince.size());
+    }
+
+    private void journey(InProcessMongo mongo, Workload.Operation operation) {
+      CarEntity car = mongo.carPoolingService.journey(new GroupOfPeopleDTO(operation.id, operation.people, operation.zone))
+        .block();
+      synchronized (this) {
+        people.put(operation.id, operation.people);
+        if (WAITING_QUEUE.equals(car.getId())) {
+          queued++;
+          waitingSince.put(operation.id, clock);
+        } else {
+          occupiedSeats += operation.people;
+        }
+      }
+    }
+
+    private void dropoff(InProcessMongo mongo, int groupId) {
+      CarEntity car = mongo.carPoolingService.dropoff(groupId).block();
+      mongo.awaitReassignment();
+      if (car == null) {
+        return;
+      }
+      synchronized (this) {
+        if (WAITING_QUEUE.equals(car.getId())) {
+          abandoned++;
+          waitingSince.remove(groupId);
+        } else {
+          occupiedSeats -= people.get(groupId);
+        }
+      }
+    }
+
+    private synchronized void advanceTo(long at) {
+      occupiedSeatMillis += (double) occupiedSeats * (at - clock);
+      clock = at;
+    }
+
+    @Override
+    public synchronized void reassigned(GroupOfPeopleEntity group) {
+      Long since = waitingSince.remove(group.getId());
+      if (since != null) {
+        reassigned++;
+        waitMillis += clock - since;
+      }
+      occupiedSeats += group.getPeople();
+    }
+  }
+}
@@ -0,0 +1,67 @@
+package bs.carpooling.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Dropoff of a group from a full fleet, until the head of the waiting queue is reassigned to its seats. A new group
+ * joins the waiting queue after each invocation, so the queue keeps its depth.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReassignmentBenchmark {
+
+  private static final int PEOPLE = 6;
+
+  @Param({"10", "1000", "100000", "1000000"})
+  private int fleetSize;
+
+  @Param({"10", "1000", "10000"})
+  private int waitingGroups;
+
+  private InProcessMongo mongo;
+  // Groups of 6 people in 6 seat cars: a freed car always takes the head of the waiting queue
+  private final Deque<Integer> assigned = new ArrayDeque<>();
+  private final Deque<Integer> waiting = new ArrayDeque<>();
+  private int nextGroupId;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    mongo = new InProcessMongo();
+    mongo.resetFleet(fleetSize, PEOPLE);
+    mongo.journeys(1, fleetSize, PEOPLE);
+    mongo.journeys(fleetSize + 1, waitingGroups, PEOPLE);
+    for (int groupId = 1; groupId <= fleetSize; groupId++) {
+      assigned.add(groupId);
+    }
+    for (int groupId = fleetSize + 1; groupId <= fleetSize + waitingGroups; groupId++) {
+      waiting.add(groupId);
+    }
+    nextGroupId = fleetSize + waitingGroups + 1;
+  }
+
+  @Benchmark
+  public void dropoffAndReassign() {
+    mongo.carPoolingService.dropoff(assigned.poll()).block();
+    mongo.awaitReassignment();
+    assigned.add(waiting.poll());
+  }
+
+  @TearDown(Level.Invocation)
+  public void keepWaitingQueueDepth() {
+    mongo.journeys(nextGroupId, 1, PEOPLE);
+    waiting.add(nextGroupId++);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    mongo.close();
+  }
+}
@@ -0,0 +1,110 @@
+package bs.carpooling.benchmark;
+
+import bs.carpooling.dto.CarDTO;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A workload to replay: one operation per line (NDJSON), with the time it was received at in ms and the body the API
+ * received, e.g. {@code {"at":0,"op":"cars","cars":[{"id":1,"seats":4}]}},
+ * {@code {"at":5,"op":"journey","id":1,"people":3}} and {@code {"at":90,"op":"dropoff","id":1}}.
+ */
+class Workload {
+
+  private static final ObjectMapper JSON = new ObjectMapper();
+
+  @JsonInclude(JsonInclude.Include.NON_NULL)
+  static class Operation {
+    static final String CARS = "cars";
+    static final String JOURNEY = "journey";
+    static final String DROPOFF = "dropoff";
+
+    public long at;
+    public String op;
+    public Integer id;
+    public Integer people;
+    public String zone;
+    public List<CarDTO> cars;
+  }
+
+  final List<Operation> operations;
+
+  Workload(List<Operation> operations) {
+    this.operations = operations;
+  }
+
+  static Workload read(Path file) throws IOException {
+    List<Operation> operations = new ArrayList<>();
+    try (BufferedReader reader = Files.newBufferedReader(file)) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (!line.isBlank()) {
+          operations.add(JSON.readValue(line, Operation.class));
+        }
+      }
+    }
+    return new Workload(operations);
+  }
+
+  void write(Path file) throws IOException {
+    try (BufferedWriter writer = Files.newBufferedWriter(file)) {
+      for (Operation operation : operations) {
+        writer.write(JSON.writeValueAsString(operation));
+        writer.newLine();
+      }
+    }
+  }
+
+  /**
+   * A fleet of cars with 4 to 6 seats, then journeys arriving at random (mostly small groups) for trips of random
+   * durations, about as many seats asked for as the fleet has. A group still waiting at the end of its trip leaves the
+   * waiting queue.
+   */
+  static Workload generate(long seed, int fleetSize, int journeys) {
+    Random random = new Random(seed);
+    List<Operation> operations = new ArrayList<>();
+    Operation cars = new Operation();
+    cars.op = Operation.CARS;
+    cars.cars = new ArrayList<>();
+    int seats = 0;
+    for (int carId = 1; carId <= fleetSize; carId++) {
+      CarDTO car = new CarDTO(carId, 4 + random.nextInt(3));
+      seats += car.getSeats();
+      cars.cars.add(car);
+    }
+    operations.add(cars);
+
+    int[] people = {1, 1, 1, 2, 2, 2, 3, 3, 4, 5, 6};
+    long meanTripMillis = 600_000;
+    double meanPeople = 2.73;
+    double meanArrivalMillis = meanTripMillis * meanPeople / seats;
+    long at = 0;
+    for (int groupId = 1; groupId <= journeys; groupId++) {
+      at += (long) (-Math.log(1 - random.nextDouble()) * meanArrivalMillis) + 1;
+      Operation journey = new Operation();
+      journey.at = at;
+      journey.op = Operation.JOURNEY;
+      journey.id = groupId;
+      journey.people = people[random.nextInt(people.length)];
+      operations.add(journey);
+      Operation dropoff = new Operation();
+      dropoff.at = at + (long) (-Math.log(1 - random.nextDouble()) * meanTripMillis) + 1;
+      dropoff.op = Operation.DROPOFF;
+      dropoff.id = groupId;
+      operations.add(dropoff);
+    }
+    // Stable: a journey stays before the dropoffs of the same ms
+    operations.sort(Comparator.comparingLong(operation -> operation.at));
+    return new Workload(operations);
+  }
+}
@@ -0,0 +1,58 @@
+package bs.carpooling.allocation;
+
+import bs.carpooling.entity.CarEntity;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.query.Criteria;
+
+import java.util.Comparator;
+
+/**
+ * Which car of its zone takes a group, among the cars with enough seats available, selected with
+ * {@code carpooling.allocation.policy}: the cars a group may take and the order they are preferred in, both as a
+ * mongodb query (single journeys and reassignments) and in memory (the plans of bulk journeys).
+ * <p>
+ * A policy may leave a group waiting while some car has enough seats for it, never place it in a car without them.
+ */
+public interface AllocationPolicy {
+
+  String SEATS_AVAILABLE = "seatsAvailable";
+
+  /**
+   * @return whether a car with the seats available may take a group of people.
+   */
+  boolean fits(int seatsAvailable, int people);
+
+  /**
+   * @return the criteria on the cars a group of people may take, as {@link #fits(int, int)} tells.
+   */
+  Criteria cars(int people);
+
+  /**
+   * @return the order cars are preferred in, first first.
+   */
+  Sort order();
+
+  /**
+   * @return {@link #order()} on cars in memory, by id and seats available.
+   */
+  Comparator<CarEntity> preference();
+
+  /**
+   * @param largeGroup people from which a group counts as large for {@code size-class}.
+   */
+  static AllocationPolicy named(String name, int largeGroup) {
+    switch (name) {
+      case BestFitPolicy.NAME:
+        return new BestFitPolicy();
+      case FirstFitPolicy.NAME:
+        return new FirstFitPolicy();
+      case WorstFitPolicy.NAME:
+        return new WorstFitPolicy();
+      case SizeClassPolicy.NAME:
+        return new SizeClassPolicy(largeGroup);
+      default:
+        throw new IllegalArgumentException("Unknown allocation policy " + name + ", expected "
+          + String.join(", ", BestFitPolicy.NAME, FirstFitPolicy.NAME, WorstFitPolicy.NAME, SizeClassPolicy.NAME));
+    }
+  }
+}
@@ -0,0 +1,42 @@
+package bs.carpooling.allocation;
+
+import bs.carpooling.entity.CarEntity;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.query.Criteria;
+
+import java.util.Comparator;
+
+import static org.springframework.data.domain.Sort.Order.asc;
+
+/**
+ * The car with the fewest seats available that fits the group (default): keeps the most seats together for big groups.
+ */
+public class BestFitPolicy implements AllocationPolicy {
+
+  public static final String NAME = "best-fit";
+
+  @Override
+  public boolean fits(int seatsAvailable, int people) {
+    return seatsAvailable >= people;
+  }
+
+  @Override
+  public Criteria cars(int people) {
+    return Criteria.where(SEATS_AVAILABLE).gte(people);
+  }
+
+  @Override
+  public Sort order() {
+    return Sort.by(asc(SEATS_AVAILABLE));
+  }
+
+  @Override
+  public Comparator<CarEntity> preference() {
+    return Comparator.comparing(CarEntity::getSeatsAvailable);
+  }
+
+  @Override
+  public String toString() {
+    return NAME;
+  }
+}
@@ -0,0 +1,172 @@
+package bs.carpooling.allocation;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.OptionalInt;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cars indexed by free seats (one bucket per count, 0..maxSeats), so that the best fitting car for a group is
+ * found by looking at a handful of buckets instead of sorting the fleet.
+ * <p>
+ * Thread-safety: a car only changes bucket while holding the lock of its stripe. Seats handed out by
+ * {@link #reserve(int)} stay reserved until the durable store confirms or cancels them, and confirmed seats are only
+ * applied when their version is newer than the known one, so out of order confirmations never free taken seats.
+ */
+public class SeatBuckets {
+
+  private static final int STRIPES = 64;
+
+  private final int maxSeats;
+  private final List<Set<Integer>> buckets;
+  private final Map<Integer, CarSeats> cars = new ConcurrentHashMap<>();
+  private final Object[] locks = new Object[STRIPES];
+
+  public SeatBuckets(int maxSeats) {
+    this.maxSeats = maxSeats;
+    this.buckets = new ArrayList<>(maxSeats + 1);
+    for (int seats = 0; seats <= maxSeats; seats++) {
+      buckets.add(ConcurrentHashMap.newKeySet());
+    }
+    for (int i = 0; i < STRIPES; i++) {
+      locks[i] = new Object();
+    }
+  }
+
+  public int getMaxSeats() {
+    return maxSeats;
+  }
+
+  public void clear() {
+    cars.clear();
+    for (Set<Integer> bucket : buckets) {
+      bucket.clear();
+    }
+  }
+
+  /**
+   * Record the stored state of a car, ignored if an equal or newer version is already known.
+   */
+  public void put(int carId, int seatsAvailable, long version) {
+    synchronized (lockOf(carId)) {
+      CarSeats car = cars.get(carId);
+      if (car == null) {
+        car = new CarSeats();
+        car.seats = seatsAvailable;
+        car.version = version;
+        cars.put(carId, car);
+        bucketOf(car).add(carId);
+      } else if (version > car.version) {
+        Set<Integer> from = bucketOf(car);
+        car.seats = seatsAvailable;
+        car.version = version;
+        moveTo(carId, from, bucketOf(car));
+      }
+    }
+  }
+
+  /**
+   * Forget a car, whatever its version: it no longer exists, or its stored version went back (the fleet was
+   * initialized again). Its reservations in flight are dropped with it.
+   */
+  public void remove(int carId) {
+    synchronized (lockOf(carId)) {
+      CarSeats car = cars.remove(carId);
+      if (car != null) {
+        bucketOf(car).remove(carId);
+      }
+    }
+  }
+
+  /**
+   * Take seats for a group from the car with the least free seats that fits it.
+   *
+   * @return id of the car, or empty if no car has enough free seats.
+   */
+  public OptionalInt reserve(int people) {
+    for (int seats = Math.min(Math.max(people, 0), maxSeats); seats <= maxSeats; seats++) {
+      for (Integer carId : buckets.get(seats)) {
+        if (tryReserve(carId, people)) {
+          return OptionalInt.of(carId);
+        }
+      }
+    }
+    return OptionalInt.empty();
+  }
+
+  private boolean tryReserve(int carId, int people) {
+    synchronized (lockOf(carId)) {
+      CarSeats car = cars.get(carId);
+      if (car == null || car.free() < people) {
+        return false;
+      }
+      Set<Integer> from = bucketOf(car);
+      car.reserved += people;
+      moveTo(carId, from, bucketOf(car));
+      return true;
+    }
+  }
+
+  /**
+   * The store applied a reservation, resulting in the given car state.
+   */
+  public void confirm(int carId, int people, int seatsAvailable, long version) {
+    release(carId, people);
+    put(carId, seatsAvailable, version);
+  }
+
+  /**
+   * The store rejected a reservation, so its seats are free again.
+   */
+  public void cancel(int carId, int people) {
+    release(carId, people);
+  }
+
+  private void release(int carId, int people) {
+    synchronized (lockOf(carId)) {
+      CarSeats car = cars.get(carId);
+      if (car != null) {
+        Set<Integer> from = bucketOf(car);
+        car.reserved = Math.max(0, car.reserved - people);
+        moveTo(carId, from, bucketOf(car));
+      }
+    }
+  }
+
+  /**
+   * @return free seats of the car (not counting reserved ones), or empty if the car is unknown.
+   */
+  public OptionalInt freeSeats(int carId) {
+    synchronized (lockOf(carId)) {
+      CarSeats car = cars.get(carId);
+      return car != null ? OptionalInt.of(car.free()) : OptionalInt.empty();
+    }
+  }
+
+  private void moveTo(int carId, Set<Integer> from, Set<Integer> to) {
+    if (from != to) {
+      to.add(carId);
+      from.remove(carId);
+    }
+  }
+
+  private Set<Integer> bucketOf(CarSeats car) {
+    return buckets.get(Math.min(Math.max(car.free(), 0), maxSeats));
+  }
+
+  private Object lockOf(int carId) {
+    return locks[Math.floorMod(carId, STRIPES)];
+  }
+
+  private static class CarSeats {
+    private int seats;
+    private long version;
+    private int reserved;
+
+    private int free() {
+      return seats - reserved;
+    }
+  }
+}
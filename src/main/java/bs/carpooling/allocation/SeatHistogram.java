@@ -0,0 +1,80 @@
+package bs.carpooling.allocation;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Count of cars by free seats (0..maxSeats, more free seats counted as maxSeats), telling without any query whether
+ * some car could fit a group.
+ * <p>
+ * Thread-safety: a car changes count atomically with its known seats, and only for a newer version than the known
+ * one, so out of order updates never undo newer ones. A moving car is counted in its new count before leaving the old
+ * one: a concurrent reader may see it twice, never missing.
+ */
+public class SeatHistogram {
+
+  private final int maxSeats;
+  private final AtomicLongArray carsBySeats;
+  private final Map<Integer, CarSeats> cars = new ConcurrentHashMap<>();
+
+  public SeatHistogram(int maxSeats) {
+    this.maxSeats = maxSeats;
+    this.carsBySeats = new AtomicLongArray(maxSeats + 1);
+  }
+
+  /**
+   * Record the stored state of a car, ignored if an equal or newer version is already known.
+   */
+  public void put(int carId, int seatsAvailable, long version) {
+    cars.compute(carId, (id, known) -> {
+      if (known == null) {
+        carsBySeats.incrementAndGet(countOf(seatsAvailable));
+        return new CarSeats(seatsAvailable, version);
+      }
+      if (version <= known.version) {
+        return known;
+      }
+      carsBySeats.incrementAndGet(countOf(seatsAvailable));
+      carsBySeats.decrementAndGet(countOf(known.seats));
+      return new CarSeats(seatsAvailable, version);
+    });
+  }
+
+  /**
+   * @return whether some car has at least the free seats a group of people needs.
+   */
+  public boolean fits(int people) {
+    for (int seats = countOf(people); seats <= maxSeats; seats++) {
+      if (carsBySeats.get(seats) > 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return cars with each number of free seats, 0..maxSeats.
+   */
+  public long[] carsBySeats() {
+    long[] counts = new long[maxSeats + 1];
+    for (int seats = 0; seats <= maxSeats; seats++) {
+      counts[seats] = carsBySeats.get(seats);
+    }
+    return counts;
+  }
+
+  private int countOf(int seats) {
+    return Math.min(Math.max(seats, 0), maxSeats);
+  }
+
+  private static class CarSeats {
+    private final int seats;
+    private final long version;
+
+    private CarSeats(int seats, long version) {
+      this.seats = seats;
+      this.version = version;
+    }
+  }
+}
@@ -0,0 +1,56 @@
+package bs.carpooling.allocation;
+
+import bs.carpooling.entity.CarEntity;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.query.Criteria;
+
+import java.util.Comparator;
+
+import static org.springframework.data.domain.Sort.Order.asc;
+
+/**
+ * Best fit with capacity reserved for large groups (at least {@code largeGroup} people): a small group never takes
+ * seats of a car that would then have too few left for a large group, it waits for a car that keeps them or has fewer
+ * than {@code largeGroup} seats anyway.
+ */
+public class SizeClassPolicy implements AllocationPolicy {
+
+  public static final String NAME = "size-class";
+
+  private final int largeGroup;
+
+  public SizeClassPolicy(int largeGroup) {
+    this.largeGroup = largeGroup;
+  }
+
+  @Override
+  public boolean fits(int seatsAvailable, int people) {
+    return seatsAvailable >= people
+      && (people >= largeGroup || seatsAvailable < largeGroup || seatsAvailable - people >= largeGroup);
+  }
+
+  @Override
+  public Criteria cars(int people) {
+    if (people >= largeGroup) {
+      return Criteria.where(SEATS_AVAILABLE).gte(people);
+    }
+    return new Criteria().orOperator(
+      Criteria.where(SEATS_AVAILABLE).gte(people).lt(largeGroup),
+      Criteria.where(SEATS_AVAILABLE).gte(people + largeGroup));
+  }
+
+  @Override
+  public Sort order() {
+    return Sort.by(asc(SEATS_AVAILABLE));
+  }
+
+  @Override
+  public Comparator<CarEntity> preference() {
+    return Comparator.comparing(CarEntity::getSeatsAvailable);
+  }
+
+  @Override
+  public String toString() {
+    return NAME + "(" + largeGroup + ")";
+  }
+}
@@ -0,0 +1,42 @@
+package bs.carpooling.allocation;
+
+import bs.carpooling.entity.CarEntity;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.query.Criteria;
+
+import java.util.Comparator;
+
+import static org.springframework.data.domain.Sort.Order.desc;
+
+/**
+ * The car with the most seats available: spreads the groups over the fleet, at the cost of big groups.
+ */
+public class WorstFitPolicy implements AllocationPolicy {
+
+  public static final String NAME = "worst-fit";
+
+  @Override
+  public boolean fits(int seatsAvailable, int people) {
+    return seatsAvailable >= people;
+  }
+
+  @Override
+  public Criteria cars(int people) {
+    return Criteria.where(SEATS_AVAILABLE).gte(people);
+  }
+
+  @Override
+  public Sort order() {
+    return Sort.by(desc(SEATS_AVAILABLE));
+  }
+
+  @Override
+  public Comparator<CarEntity> preference() {
+    return Comparator.comparing(CarEntity::getSeatsAvailable).reversed();
+  }
+
+  @Override
+  public String toString() {
+    return NAME;
+  }
+}
@@ -0,0 +1,365 @@
+package bs.carpooling.cache;
+
+import bs.carpooling.dto.GroupEventDTO.Event;
+import bs.carpooling.entity.CarEntity;
+import bs.carpooling.entity.GroupLocationEntity;
+import bs.carpooling.entity.WaitingGroupEntity;
+import bs.carpooling.service.GroupEvents;
+import com.mongodb.MongoCommandException;
+import com.mongodb.MongoQueryException;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.OperationType;
+import com.mongodb.reactivestreams.client.ChangeStreamPublisher;
+import com.mongodb.reactivestreams.client.MongoDatabase;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.data.mongodb.core.convert.MongoConverter;
+import org.springframework.data.mongodb.core.mapping.MongoPersistentEntity;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Node-local read cache of car seats, group locations and waiting groups, kept coherent by a change stream on the
+ * database (mongodb 4.0 replica set or later), which also fans out the changes of every node to the local
+ * {@link GroupEvents} subscribers.
+ * <p>
+ * Staleness is measured with heartbeats: this node writes the time into its document of {@code cacheNodes} every
+ * heartbeat interval, and the cache is as fresh as the last heartbeat read back from the stream. The heartbeat also
+ * persists the resume token of the last change received, so a restarted node resumes the stream where it stopped.
+ * The cache is (re)loaded once the stream delivers a heartbeat, so no change between the stream and the load is
+ * missed: changes received while loading are applied after it.
+ * <p>
+ * Thread-safety: changes are applied by a single thread, reads are map lookups.
+ */
+@Slf4j
+public class FleetCache implements InitializingBean, DisposableBean {
+
+  static final String NODES = "cacheNodes";
+  private static final String ID = "_id";
+  private static final String HEARTBEAT = "heartbeat";
+  private static final String RESUME_TOKEN = "resumeToken";
+  // CappedPositionLost, ChangeStreamFatalError, ChangeStreamHistoryLost: the resume token left the oplog
+  private static final Set<Integer> HISTORY_LOST = new HashSet<>(Arrays.asList(136, 280, 286));
+
+  private final MongoDatabase database;
+  private final MongoConverter converter;
+  private final GroupEvents groupEvents;
+  private final String nodeId;
+  private final Duration heartbeatInterval;
+  private final Duration maxStaleness;
+
+  private final String carsCollection;
+  private final String locationsCollection;
+  private final String waitingCollection;
+  private final String seatsField;
+  private final String versionField;
+  private final String zoneField;
+
+  private final Map<Integer, CarEntity> cars = new ConcurrentHashMap<>();
+  private final Map<Integer, GroupLocationEntity> locations = new ConcurrentHashMap<>();
+  private final Map<Integer, WaitingGroupEntity> waitingGroups = new ConcurrentHashMap<>();
+
+  private final Scheduler scheduler = Schedulers.newSingle("fleet-cache", true);
+  // Changes received while loading, applied once loaded (cache thread only)
+  private List<ChangeStreamDocument<Document>> receivedWhileLoading;
+  private volatile BsonDocument resumeToken;
+  private volatile boolean loaded;
+  private volatile long freshAsOf;
+  private Disposable watching;
+  private Disposable heartbeats;
+
+  public FleetCache(MongoDatabase database, MongoConverter converter, GroupEvents groupEvents, String nodeId,
+                    Duration heartbeatInterval, Duration maxStaleness) {
+    this.database = database;
+    this.converter = converter;
+    this.groupEvents = groupEvents;
+    this.nodeId = nodeId;
+    this.heartbeatInterval = heartbeatInterval;
+    this.maxStaleness = maxStaleness;
+    MongoPersistentEntity<?> car = converter.getMappingContext().getRequiredPersistentEntity(CarEntity.class);
+    this.carsCollection = car.getCollection();
+    this.locationsCollection = converter.getMappingContext().getRequiredPersistentEntity(GroupLocationEntity.class).getCollection();
+    this.waitingCollection = converter.getMappingContext().getRequiredPersistentEntity(WaitingGroupEntity.class).getCollection();
+    this.seatsField = car.getRequiredPersistentProperty("seatsAvailable").getFieldName();
+    this.versionField = car.getRequiredPersistentProperty("version").getFieldName();
+    this.zoneField = car.getRequiredPersistentProperty("zone").getFieldName();
+  }
+
+  @Override
+  public void afterPropertiesSet() {
+    // Driver operations only: unlike the template, they publish no application events while the context starts
+    watching = Mono.from(database.getCollection(NODES, BsonDocument.class).find(Filters.eq(ID, nodeId)).first())
+      .doOnNext(node -> resumeToken = node.getDocument(RESUME_TOKEN, null))
+      .thenMany(changes()
+        .publishOn(scheduler)
+        .doOnNext(this::received)
+        .doOnError(this::streamFailed)
+        .retryBackoff(Long.MAX_VALUE, Duration.ofSeconds(1), Duration.ofSeconds(30)))
+      .subscribe();
+    heartbeats = Flux.interval(Duration.ZERO, heartbeatInterval)
+      .onBackpressureDrop()
+      .concatMap(tick -> heartbeat()
+        .onErrorResume(err -> {
+          log.info(err.getMessage());
+          return Mono.empty();
+        }))
+      .subscribe();
+  }
+
+  private Flux<ChangeStreamDocument<Document>> changes() {
+    Bson fleetChanges = Filters.or(
+      Filters.in("ns.coll", carsCollection, locationsCollection, waitingCollection),
+      Filters.and(Filters.eq("ns.coll", NODES), Filters.eq("documentKey._id", nodeId)));
+    return Flux.defer(() -> {
+      ChangeStreamPublisher<Document> stream = database.watch(Collections.singletonList(Aggregates.match(fleetChanges)));
+      return Flux.from(resumeToken != null ? stream.resumeAfter(resumeToken) : stream);
+    });
+  }
+
+  private Mono<Void> heartbeat() {
+    Bson heartbeat = Updates.set(HEARTBEAT, new Date());
+    BsonDocument token = resumeToken;
+    return Mono.from(database.getCollection(NODES).updateOne(Filters.eq(ID, nodeId),
+      token != null ? Updates.combine(heartbeat, Updates.set(RESUME_TOKEN, token)) : heartbeat,
+      new UpdateOptions().upsert(true)))
+      .then();
+  }
+
+  private void streamFailed(Throwable err) {
+    log.info("fleet cache change stream failed, resuming: {}", err.getMessage());
+    if (err instanceof MongoCommandException && HISTORY_LOST.contains(((MongoCommandException) err).getErrorCode())
+      || err instanceof MongoQueryException && HISTORY_LOST.contains(((MongoQueryException) err).getErrorCode())) {
+      // Changes were missed: start over from now, loading the cache again
+      resumeToken = null;
+      loaded = false;
+    }
+  }
+
+  private void received(ChangeStreamDocument<Document> change) {
+    resumeToken = change.getResumeToken();
+    if (NODES.equals(change.getNamespace().getCollectionName())) {
+      freshAsOf = heartbeatOf(change);
+      if (!loaded && receivedWhileLoading == null) {
+        load();
+      }
+    } else if (receivedWhileLoading != null) {
+      receivedWhileLoading.add(change);
+    } else {
+      // Changes before the first load are only kept until the load replaces them
+      apply(change, loaded);
+    }
+  }
+
+  private long heartbeatOf(ChangeStreamDocument<Document> change) {
+    if (change.getOperationType() == OperationType.UPDATE) {
+      return change.getUpdateDescription().getUpdatedFields().getDateTime(HEARTBEAT).getValue();
+    }
+    return change.getFullDocument() != null ? change.getFullDocument().getDate(HEARTBEAT).getTime() : freshAsOf;
+  }
+
+  private void load() {
+    receivedWhileLoading = new ArrayList<>();
+    Mono.zip(
+      Flux.from(database.getCollection(carsCollection).find().projection(Projections.include(seatsField, versionField, zoneField))).collectList(),
+      Flux.from(database.getCollection(locationsCollection).find()).collectList(),
+      Flux.from(database.getCollection(waitingCollection).find()).collectList())
+      .publishOn(scheduler)
+      .subscribe(fleet -> {
+        cars.clear();
+        fleet.getT1().forEach(car -> putCar(car.getInteger(ID), car, true));
+        locations.clear();
+        fleet.getT2().forEach(location -> putLocation(converter.read(GroupLocationEntity.class, location), false));
+        waitingGroups.clear();
+        fleet.getT3().forEach(waiting -> putWaiting(converter.read(WaitingGroupEntity.class, waiting), false));
+        List<ChangeStreamDocument<Document>> changes = receivedWhileLoading;
+        receivedWhileLoading = null;
+        changes.forEach(change -> apply(change, true));
+        loaded = true;
+        log.info("fleet cache loaded: {} cars, {} groups in cars, {} waiting", cars.size(), locations.size(), waitingGroups.size());
+      }, err -> {
+        // Loaded again on the next heartbeat
+        log.info("fleet cache load failed: {}", err.getMessage());
+        receivedWhileLoading = null;
+      });
+  }
+
+  /**
+   * Apply a change of the fleet, and publish the events of the groups concerned.
+   */
+  void apply(ChangeStreamDocument<Document> change, boolean publish) {
+    String collection = change.getNamespace().getCollectionName();
+    OperationType operation = change.getOperationType();
+    if (operation == OperationType.DROP) {
+      dropped(collection);
+      return;
+    }
+    if (change.getDocumentKey() == null) {
+      return;
+    }
+    Integer id = change.getDocumentKey().getInt32(ID).getValue();
+    if (carsCollection.equals(collection)) {
+      applyToCar(id, change);
+    } else if (locationsCollection.equals(collection)) {
+      applyToLocation(id, change, publish);
+    } else if (waitingCollection.equals(collection)) {
+      applyToWaiting(id, change, publish);
+    }
+  }
+
+  private void dropped(String collection) {
+    if (carsCollection.equals(collection)) {
+      cars.clear();
+    } else if (locationsCollection.equals(collection)) {
+      locations.clear();
+    } else if (waitingCollection.equals(collection)) {
+      waitingGroups.clear();
+    }
+  }
+
+  private void applyToCar(Integer carId, ChangeStreamDocument<Document> change) {
+    switch (change.getOperationType()) {
+      case INSERT:
+      case REPLACE:
+        putCar(carId, change.getFullDocument(), false);
+        break;
+      case UPDATE:
+        BsonDocument updated = change.getUpdateDescription().getUpdatedFields();
+        if (updated.containsKey(seatsField)) {
+          BsonValue version = updated.get(versionField);
+          // A car keeps its zone: only its seats and version are updated
+          CarEntity known = cars.get(carId);
+          putCar(carId, new Document(seatsField, updated.getNumber(seatsField).intValue())
+            .append(versionField, version != null ? version.asNumber().longValue() : null)
+            .append(zoneField, known != null ? known.getZone() : null), version == null);
+        }
+        break;
+      case DELETE:
+        cars.remove(carId);
+        break;
+      default:
+    }
+  }
+
+  // Versions only grow: an older one comes from a change replayed over a newer load
+  private void putCar(Integer carId, Document car, boolean anyVersion) {
+    Number seats = car.get(seatsField, Number.class);
+    Number version = car.get(versionField, Number.class);
+    CarEntity cached = CarEntity.builder().id(carId).seatsAvailable(seats != null ? seats.intValue() : 0)
+      .version(version != null ? version.longValue() : null).zone(car.getString(zoneField)).build();
+    cars.merge(carId, cached, (known, changed) -> anyVersion || isNewer(changed, known) ? changed : known);
+  }
+
+  private boolean isNewer(CarEntity changed, CarEntity known) {
+    return changed.getVersion() == null || known.getVersion() == null || changed.getVersion() > known.getVersion();
+  }
+
+  private void applyToLocation(Integer groupId, ChangeStreamDocument<Document> change, boolean publish) {
+    switch (change.getOperationType()) {
+      case INSERT:
+      case REPLACE:
+        putLocation(converter.read(GroupLocationEntity.class, change.getFullDocument()), publish);
+        break;
+      case DELETE:
+        if (locations.remove(groupId) != null && publish) {
+          // Still waiting if the assignment was undone
+          groupEvents.publish(groupId, waitingGroups.containsKey(groupId) ? Event.WAITING : Event.DROPPED, null);
+        }
+        break;
+      default:
+    }
+  }
+
+  private void putLocation(GroupLocationEntity location, boolean publish) {
+    locations.put(location.getId(), location);
+    if (publish) {
+      groupEvents.publish(location.getId(), Event.ASSIGNED, location.getCarId());
+    }
+  }
+
+  private void applyToWaiting(Integer groupId, ChangeStreamDocument<Document> change, boolean publish) {
+    switch (change.getOperationType()) {
+      case INSERT:
+      case REPLACE:
+        putWaiting(converter.read(WaitingGroupEntity.class, change.getFullDocument()), publish);
+        break;
+      case DELETE:
+        // A reassigned group entered its car before leaving the waiting queue
+        if (waitingGroups.remove(groupId) != null && publish && !locations.containsKey(groupId)) {
+          groupEvents.publish(groupId, Event.DROPPED, null);
+        }
+        break;
+      default:
+        // claims of reassignments: still waiting
+    }
+  }
+
+  private void putWaiting(WaitingGroupEntity waitingGroup, boolean publish) {
+    waitingGroups.put(waitingGroup.getId(), waitingGroup);
+    if (publish) {
+      groupEvents.publish(waitingGroup.getId(), Event.WAITING, null);
+    }
+  }
+
+  /**
+   * @return whether the cache is loaded and no older than the max staleness.
+   */
+  public boolean isFresh() {
+    return loaded && System.currentTimeMillis() - freshAsOf <= maxStaleness.toMillis();
+  }
+
+  /**
+   * @return the car (id, seatsAvailable, version and zone), or null if not cached.
+   */
+  public CarEntity car(Integer carId) {
+    return cars.get(carId);
+  }
+
+  /**
+   * @return the location of a group in a car, or null if not cached.
+   */
+  public GroupLocationEntity location(Integer groupId) {
+    return locations.get(groupId);
+  }
+
+  /**
+   * @return the waiting group, or null if not cached.
+   */
+  public WaitingGroupEntity waitingGroup(Integer groupId) {
+    return waitingGroups.get(groupId);
+  }
+
+  @Override
+  public void destroy() {
+    if (heartbeats != null) {
+      heartbeats.dispose();
+    }
+    if (watching != null) {
+      watching.dispose();
+    }
+    scheduler.dispose();
+  }
+}
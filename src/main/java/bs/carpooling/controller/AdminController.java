@@ -0,0 +1,37 @@
+package bs.carpooling.controller;
+
+import bs.carpooling.dto.WaitTimesDTO;
+import bs.carpooling.metrics.WaitTimes;
+import bs.carpooling.service.CarPoolingService;
+import lombok.RequiredArgsConstructor;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+
+@RestController
+@RequestMapping("/admin")
+@RequiredArgsConstructor
+public class AdminController {
+
+  private final CarPoolingService carPoolingService;
+  private final WaitTimes waitTimes;
+
+  @GetMapping(path = "/wait-times", produces = MediaType.APPLICATION_JSON_VALUE)
+  public Mono<WaitTimesDTO> getWaitTimes() {
+    return carPoolingService.oldestWaitingMillis()
+      .map(oldestWaitingMillis -> new WaitTimesDTO(oldestWaitingMillis, waitTimes.distributions()));
+  }
+
+  @GetMapping(path = "/wait-times", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+  public Flux<WaitTimesDTO> streamWaitTimes(@RequestParam(defaultValue = "1000") long intervalMillis) {
+    return Flux.interval(Duration.ZERO, Duration.ofMillis(intervalMillis))
+      .onBackpressureDrop()
+      .concatMap(tick -> getWaitTimes());
+  }
+}
@@ -1,10 +1,17 @@
 package bs.carpooling.controller;
 
 import bs.carpooling.dto.CarDTO;
+import bs.carpooling.dto.CarsSummaryDTO;
+import bs.carpooling.dto.GroupEventDTO;
+import bs.carpooling.dto.GroupIdDTO;
 import bs.carpooling.dto.GroupOfPeopleDTO;
+import bs.carpooling.dto.GroupOutcomeDTO;
 import bs.carpooling.dto.GroupOfPeopleForm;
+import bs.carpooling.engine.FleetStateEngine.ZonesNotSupportedException;
 import bs.carpooling.entity.CarEntity;
 import bs.carpooling.service.CarPoolingService;
+import bs.carpooling.service.GroupEvents.TooManySubscriptionsException;
+import bs.carpooling.service.JourneyBatcher.DuplicateJourneyException;
 import lombok.RequiredArgsConstructor;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
@@ -16,6 +23,7 @@ import reactor.core.publisher.Mono;
 import javax.validation.Valid;
 import java.util.List;
 
+import static bs.carpooling.controller.CodecConfiguration.APPLICATION_NDJSON_VALUE;
 import static bs.carpooling.repository.CarsRepository.WAITING_QUEUE;
 
 @RestController
@@ -30,7 +38,12 @@ public class CarPoolingController {
   }
 
   @PutMapping(path = "/cars", consumes = MediaType.APPLICATION_JSON_VALUE)
-  public Flux<CarEntity> putCars(@RequestBody @Valid List<CarDTO> cars) {
+  public Mono<CarsSummaryDTO> putCars(@RequestBody @Valid List<CarDTO> cars) {
+    return carPoolingService.createCars(Flux.fromIterable(cars));
+  }
+
+  @PutMapping(path = "/cars", consumes = {APPLICATION_NDJSON_VALUE, MediaType.APPLICATION_STREAM_JSON_VALUE})
+  public Mono<CarsSummaryDTO> putCarsStream(@RequestBody @Valid Flux<CarDTO> cars) {
     return carPoolingService.createCars(cars);
   }
 
@@ -39,6 +52,12 @@ public class CarPoolingController {
     return carPoolingService.journey(group);
   }
 
+  // A JSON array is decoded element by element too, so each group is validated on its own
+  @PostMapping(path = "/journeys", consumes = {MediaType.APPLICATION_JSON_VALUE, APPLICATION_NDJSON_VALUE, MediaType.APPLICATION_STREAM_JSON_VALUE})
+  public Flux<GroupOutcomeDTO> postJourneys(@RequestBody @Valid Flux<GroupOfPeopleDTO> groups) {
+    return carPoolingService.journeys(groups);
+  }
+
   @PostMapping(path = "/dropoff", consumes = MediaType.APPLICATION_FORM_URLENCODED_VALUE)
   public Mono<ResponseEntity<Void>> postDropoff(@Valid GroupOfPeopleForm group) {
     Integer id = group.getID();
@@ -54,14 +73,42 @@ public class CarPoolingController {
       .defaultIfEmpty(new ResponseEntity<>(HttpStatus.NOT_FOUND));
   }
 
+  @PostMapping(path = "/dropoffs", consumes = {MediaType.APPLICATION_JSON_VALUE, APPLICATION_NDJSON_VALUE, MediaType.APPLICATION_STREAM_JSON_VALUE})
+  public Flux<GroupOutcomeDTO> postDropoffs(@RequestBody @Valid Flux<GroupIdDTO> groups) {
+    return carPoolingService.dropoffs(groups);
+  }
+
   @PostMapping(path = "/locate", consumes = MediaType.APPLICATION_FORM_URLENCODED_VALUE, produces = MediaType.APPLICATION_JSON_VALUE)
   public Mono<ResponseEntity<CarDTO>> postLocate(@Valid GroupOfPeopleForm group) {
     Integer groupId = group.getID();
 
     return carPoolingService.locateCarOfGroup(groupId)
-      .map(car -> ResponseEntity.ok(new CarDTO(car.getId(), car.getSeatsAvailable())))
+      .map(car -> ResponseEntity.ok(new CarDTO(car.getId(), car.getSeatsAvailable(), car.getZone())))
       .switchIfEmpty(carPoolingService.findWaitingGroup(groupId)
         .map(g -> new ResponseEntity<CarDTO>(HttpStatus.NO_CONTENT))
         .defaultIfEmpty(new ResponseEntity<>(HttpStatus.NOT_FOUND)));
   }
+
+  /**
+   * Server-sent events of a group (WAITING, ASSIGNED, DROPPED) instead of polling {@code /locate}: 404 if the group is
+   * not assigned nor waiting, 503 if too many streams are open.
+   */
+  @GetMapping(path = "/groups/{id}/events", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+  public Mono<ResponseEntity<Flux<GroupEventDTO>>> getGroupEvents(@PathVariable Integer id) {
+    return carPoolingService.groupEvents(id)
+      .map(ResponseEntity::ok)
+      .defaultIfEmpty(ResponseEntity.notFound().build())
+      .onErrorResume(TooManySubscriptionsException.class,
+        err -> Mono.just(ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build()));
+  }
+
+  @ExceptionHandler(ZonesNotSupportedException.class)
+  @ResponseStatus(HttpStatus.BAD_REQUEST)
+  public void zonesNotSupported() {
+  }
+
+  @ExceptionHandler(DuplicateJourneyException.class)
+  @ResponseStatus(HttpStatus.CONFLICT)
+  public void duplicateJourney() {
+  }
 }
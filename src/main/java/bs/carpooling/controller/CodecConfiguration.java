@@ -0,0 +1,23 @@
+package bs.carpooling.controller;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.boot.web.codec.CodecCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.MediaType;
+import org.springframework.http.codec.json.Jackson2JsonDecoder;
+
+@Configuration
+public class CodecConfiguration {
+
+  public static final String APPLICATION_NDJSON_VALUE = "application/x-ndjson";
+
+  /**
+   * Newline delimited JSON is read as a stream of JSON values, like application/stream+json.
+   */
+  @Bean
+  public CodecCustomizer ndjsonCodecCustomizer(ObjectMapper objectMapper) {
+    return configurer -> configurer.customCodecs()
+      .decoder(new Jackson2JsonDecoder(objectMapper, MediaType.parseMediaType(APPLICATION_NDJSON_VALUE)));
+  }
+}
@@ -1,11 +1,24 @@
 package bs.carpooling.dto;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
 import lombok.AllArgsConstructor;
 import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import javax.validation.constraints.Size;
 
 @Data
 @AllArgsConstructor
+@NoArgsConstructor
+@JsonInclude(JsonInclude.Include.NON_NULL)
 public class CarDTO {
   private int id;
   private int seats;
+  // partition of the fleet the car serves, none by default
+  @Size(min = 1, max = 64)
+  private String zone;
+
+  public CarDTO(int id, int seats) {
+    this(id, seats, null);
+  }
 }
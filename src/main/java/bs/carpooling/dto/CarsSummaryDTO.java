@@ -0,0 +1,15 @@
+package bs.carpooling.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+@Data
+@AllArgsConstructor
+public class CarsSummaryDTO {
+  private long cars;
+  private long seats;
+
+  public CarsSummaryDTO add(int carSeats) {
+    return new CarsSummaryDTO(cars + 1, seats + carSeats);
+  }
+}
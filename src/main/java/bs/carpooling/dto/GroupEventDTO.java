@@ -0,0 +1,20 @@
+package bs.carpooling.dto;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+@Data
+@AllArgsConstructor
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class GroupEventDTO {
+
+  public enum Event {
+    WAITING, ASSIGNED, DROPPED
+  }
+
+  private Integer id;
+  private Event event;
+  // car assigned, if any
+  private Integer carId;
+}
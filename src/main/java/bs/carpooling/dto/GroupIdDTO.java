@@ -0,0 +1,15 @@
+package bs.carpooling.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import javax.validation.constraints.NotNull;
+
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class GroupIdDTO {
+  @NotNull
+  private Integer id;
+}
@@ -2,14 +2,24 @@ package bs.carpooling.dto;
 
 import lombok.AllArgsConstructor;
 import lombok.Data;
+import lombok.NoArgsConstructor;
 
 import javax.validation.constraints.NotNull;
+import javax.validation.constraints.Size;
 
 @Data
 @AllArgsConstructor
+@NoArgsConstructor
 public class GroupOfPeopleDTO {
   @NotNull
   private Integer id;
   @NotNull
   private Integer people;
+  // partition of the fleet whose cars may take the group, none by default
+  @Size(min = 1, max = 64)
+  private String zone;
+
+  public GroupOfPeopleDTO(Integer id, Integer people) {
+    this(id, people, null);
+  }
 }
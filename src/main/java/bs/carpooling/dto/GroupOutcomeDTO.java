@@ -0,0 +1,22 @@
+package bs.carpooling.dto;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+@Data
+@AllArgsConstructor
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class GroupOutcomeDTO {
+
+  public enum Outcome {
+    ASSIGNED, WAITING, DROPPED_OFF, LEFT_WAITING_QUEUE, NOT_FOUND,
+    // the group is already assigned or waiting, or its id is repeated in the request: not journeyed again
+    DUPLICATE
+  }
+
+  private Integer id;
+  private Outcome outcome;
+  // car assigned or left, if any
+  private Integer carId;
+}
@@ -0,0 +1,15 @@
+package bs.carpooling.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+@Data
+@AllArgsConstructor
+public class WaitTimeDistributionDTO {
+  private int people;
+  private long count;
+  private long p50Millis;
+  private long p99Millis;
+  private long p999Millis;
+  private long maxMillis;
+}
@@ -0,0 +1,14 @@
+package bs.carpooling.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+@AllArgsConstructor
+public class WaitTimesDTO {
+  // 0 if no group is waiting
+  private long oldestWaitingMillis;
+  private List<WaitTimeDistributionDTO> byPeople;
+}
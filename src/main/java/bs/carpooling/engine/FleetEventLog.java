@@ -0,0 +1,33 @@
+package bs.carpooling.engine;
+
+import bs.carpooling.entity.FleetEventEntity;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.List;
+
+/**
+ * Durable record of the in-memory fleet state: the latest snapshot plus the events after it.
+ */
+public interface FleetEventLog {
+
+  /**
+   * Append events, in sequence order, after the ones already appended.
+   */
+  Mono<Void> append(List<FleetEventEntity> events);
+
+  /**
+   * Save a snapshot, then drop older snapshots and the events it includes.
+   */
+  Mono<Void> saveSnapshot(FleetSnapshot snapshot);
+
+  /**
+   * @return the latest complete snapshot, or empty if none was saved.
+   */
+  Mono<FleetSnapshot> loadSnapshot();
+
+  /**
+   * @return events after {@code seq}, in sequence order.
+   */
+  Flux<FleetEventEntity> eventsAfter(long seq);
+}
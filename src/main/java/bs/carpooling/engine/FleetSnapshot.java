@@ -0,0 +1,19 @@
+package bs.carpooling.engine;
+
+import bs.carpooling.entity.CarEntity;
+import bs.carpooling.entity.GroupOfPeopleEntity;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.util.List;
+
+/**
+ * Fleet state after the event {@code seq}: cars with their groups, and the waiting queue in FIFO order.
+ */
+@Data
+@AllArgsConstructor
+public class FleetSnapshot {
+  private long seq;
+  private List<CarEntity> cars;
+  private List<GroupOfPeopleEntity> waitingGroups;
+}
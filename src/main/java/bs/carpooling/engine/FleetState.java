@@ -0,0 +1,220 @@
+package bs.carpooling.engine;
+
+import bs.carpooling.entity.CarEntity;
+import bs.carpooling.entity.FleetEventEntity;
+import bs.carpooling.entity.GroupOfPeopleEntity;
+
+import java.util.*;
+
+/**
+ * Cars, group locations and waiting queue of the fleet, changed only by {@link #apply(FleetEventEntity)} so that live
+ * mutations and the replay of the event log go through the same code.
+ * <p>
+ * Thread-safety: none, owned by the single thread of {@link FleetStateEngine}.
+ */
+class FleetState {
+
+  private final Map<Integer, CarState> cars = new LinkedHashMap<>();
+  // seats available -> cars, the best fit of a group is the ceiling entry of its people
+  private final TreeMap<Integer, Set<Integer>> carsBySeats = new TreeMap<>();
+  private final Map<Integer, Integer> carOfGroup = new HashMap<>();
+  // FIFO: groups only enter the queue at its tail
+  private final LinkedHashMap<Integer, GroupOfPeopleEntity> waitingGroups = new LinkedHashMap<>();
+  // waiting group -> groups behind it assigned before it, not snapshotted: reset on restart
+  private final Map<Integer, Integer> skips = new HashMap<>();
+
+  private static class CarState {
+    final Integer id;
+    int seatsAvailable;
+    long version;
+    final Map<Integer, GroupOfPeopleEntity> groups = new LinkedHashMap<>();
+
+    CarState(Integer id, int seatsAvailable, long version) {
+      this.id = id;
+      this.seatsAvailable = seatsAvailable;
+      this.version = version;
+    }
+  }
+
+  void clear() {
+    cars.clear();
+    carsBySeats.clear();
+    carOfGroup.clear();
+    waitingGroups.clear();
+    skips.clear();
+  }
+
+  void putCar(CarEntity car) {
+    CarState carState = new CarState(car.getId(), car.getSeatsAvailable(), car.getVersion() != null ? car.getVersion() : 0);
+    if (car.getGroups() != null) {
+      car.getGroups().forEach(group -> {
+        carState.groups.put(group.getId(), group);
+        carOfGroup.put(group.getId(), car.getId());
+      });
+    }
+    cars.put(carState.id, carState);
+    index(carState);
+  }
+
+  void putWaiting(GroupOfPeopleEntity group) {
+    waitingGroups.put(group.getId(), group);
+  }
+
+  void load(FleetSnapshot snapshot) {
+    clear();
+    snapshot.getCars().forEach(this::putCar);
+    snapshot.getWaitingGroups().forEach(this::putWaiting);
+  }
+
+  FleetSnapshot snapshot(long seq) {
+    List<CarEntity> carEntities = new ArrayList<>(cars.size());
+    cars.keySet().forEach(carId -> carEntities.add(car(carId)));
+    return new FleetSnapshot(seq, carEntities, new ArrayList<>(waitingGroups.values()));
+  }
+
+  void apply(FleetEventEntity event) {
+    switch (event.getType()) {
+      case ASSIGNED:
+        skippedBy(event.getGroupId());
+        leaveWaitingQueue(event.getGroupId());
+        enter(cars.get(event.getCarId()), event.group());
+        break;
+      case WAITING:
+        putWaiting(event.group());
+        break;
+      case DROPPED_OFF:
+        Integer carId = carOfGroup.remove(event.getGroupId());
+        if (carId != null) {
+          leave(cars.get(carId), event.getGroupId());
+        } else {
+          leaveWaitingQueue(event.getGroupId());
+        }
+        break;
+      default:
+        throw new IllegalStateException("Unknown fleet event " + event.getType());
+    }
+  }
+
+  // Every group waiting ahead of a waiting group assigned to a car was skipped once more
+  private void skippedBy(Integer groupId) {
+    if (!waitingGroups.containsKey(groupId)) {
+      return;
+    }
+    for (Integer ahead : waitingGroups.keySet()) {
+      if (ahead.equals(groupId)) {
+        return;
+      }
+      skips.merge(ahead, 1, Integer::sum);
+    }
+  }
+
+  private void leaveWaitingQueue(Integer groupId) {
+    waitingGroups.remove(groupId);
+    skips.remove(groupId);
+  }
+
+  private void enter(CarState car, GroupOfPeopleEntity group) {
+    unindex(car);
+    car.seatsAvailable -= group.getPeople();
+    car.version++;
+    car.groups.put(group.getId(), group);
+    carOfGroup.put(group.getId(), car.id);
+    index(car);
+  }
+
+  private void leave(CarState car, Integer groupId) {
+    unindex(car);
+    GroupOfPeopleEntity group = car.groups.remove(groupId);
+    car.seatsAvailable += group.getPeople();
+    car.version++;
+    index(car);
+  }
+
+  private void index(CarState car) {
+    carsBySeats.computeIfAbsent(car.seatsAvailable, seats -> new LinkedHashSet<>()).add(car.id);
+  }
+
+  private void unindex(CarState car) {
+    Set<Integer> sameSeats = carsBySeats.get(car.seatsAvailable);
+    sameSeats.remove(car.id);
+    if (sameSeats.isEmpty()) {
+      carsBySeats.remove(car.seatsAvailable);
+    }
+  }
+
+  /**
+   * @return id of the car with the fewest seats available that fits the people, or null if none does.
+   */
+  Integer bestFit(int people) {
+    Map.Entry<Integer, Set<Integer>> bestFit = carsBySeats.ceilingEntry(people);
+    return bestFit != null ? bestFit.getValue().iterator().next() : null;
+  }
+
+  boolean fits(Integer carId, int people) {
+    CarState car = cars.get(carId);
+    return car != null && car.seatsAvailable >= people;
+  }
+
+  /**
+   * @return a copy of the car, or null if unknown.
+   */
+  CarEntity car(Integer carId) {
+    CarState car = cars.get(carId);
+    if (car == null) {
+      return null;
+    }
+    return new CarEntity(car.id, car.seatsAvailable, new ArrayList<>(car.groups.values()), car.version);
+  }
+
+  /**
+   * @return the car of a group with only that group, or null if the group is in no car.
+   */
+  CarEntity carOfGroupOnly(Integer groupId) {
+    Integer carId = carOfGroup.get(groupId);
+    if (carId == null) {
+      return null;
+    }
+    CarState car = cars.get(carId);
+    return new CarEntity(car.id, car.seatsAvailable, Collections.singletonList(car.groups.get(groupId)), car.version);
+  }
+
+  Integer carOfGroup(Integer groupId) {
+    return carOfGroup.get(groupId);
+  }
+
+  GroupOfPeopleEntity groupInCar(Integer groupId) {
+    Integer carId = carOfGroup.get(groupId);
+    return carId != null ? cars.get(carId).groups.get(groupId) : null;
+  }
+
+  GroupOfPeopleEntity waiting(Integer groupId) {
+    return waitingGroups.get(groupId);
+  }
+
+  Collection<GroupOfPeopleEntity> waitingGroups() {
+    return waitingGroups.values();
+  }
+
+  /**
+   * @return the oldest waiting group with at most {@code seats} people and at most {@code maxSkipped} groups ahead,
+   * none of them skipped {@code maxSkipped} times already.
+   */
+  GroupOfPeopleEntity firstWaitingThatFits(int seats, int maxSkipped) {
+    int ahead = 0;
+    for (GroupOfPeopleEntity group : waitingGroups.values()) {
+      if (group.getPeople() <= seats) {
+        return group;
+      }
+      if (++ahead > maxSkipped || skips.getOrDefault(group.getId(), 0) >= maxSkipped) {
+        return null;
+      }
+    }
+    return null;
+  }
+
+  Map<Integer, Long> carsBySeatsAvailable() {
+    Map<Integer, Long> carsBySeatsAvailable = new HashMap<>();
+    carsBySeats.forEach((seats, carIds) -> carsBySeatsAvailable.put(seats, (long) carIds.size()));
+    return carsBySeatsAvailable;
+  }
+}
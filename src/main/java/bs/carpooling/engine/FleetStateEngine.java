@@ -0,0 +1,353 @@
+package bs.carpooling.engine;
+
+import bs.carpooling.entity.CarEntity;
+import bs.carpooling.entity.FleetEventEntity;
+import bs.carpooling.entity.GroupOfPeopleEntity;
+import bs.carpooling.repository.CustomizedCarsRepository;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.SmartInitializingSingleton;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.Callable;
+
+import static bs.carpooling.repository.CarsRepository.WAITING_QUEUE;
+
+/**
+ * Keeps the authoritative fleet state in memory, owned by a single thread, and writes behind every mutation to a
+ * {@link FleetEventLog}: events are appended in batches every {@code flushInterval}, and a snapshot every
+ * {@code snapshotInterval} bounds the replay of {@link #recover()} on startup.
+ * <p>
+ * Journeys and dropoffs complete without waiting for the log, so a crash loses at most the events of the last
+ * {@code flushInterval}. Being the only writer, the engine needs neither versions nor claims to reassign groups.
+ * <p>
+ * The fleet is not partitioned: the events have no room for a zone, so zoned cars and groups are rejected.
+ */
+@Slf4j
+public class FleetStateEngine implements CustomizedCarsRepository, SmartInitializingSingleton, DisposableBean {
+
+  private final FleetEventLog eventLog;
+  private final Duration flushInterval;
+  private final Duration snapshotInterval;
+  private final Scheduler scheduler = Schedulers.newSingle("fleet-engine", true);
+  private final FleetState state = new FleetState();
+
+  // Engine thread only
+  private long seq;
+  private long snapshotSeq = -1;
+  private List<FleetEventEntity> pending = new ArrayList<>();
+
+  private Disposable flushing;
+  private Disposable snapshotting;
+
+  public FleetStateEngine(FleetEventLog eventLog, Duration flushInterval, Duration snapshotInterval) {
+    this.eventLog = eventLog;
+    this.flushInterval = flushInterval;
+    this.snapshotInterval = snapshotInterval;
+  }
+
+  /**
+   * Recover once every bean is created: the mongo template publishes application events while reading, which must not
+   * wait for the bean factory.
+   */
+  @Override
+  public void afterSingletonsInstantiated() {
+    recover().block();
+  }
+
+  /**
+   * Load the latest snapshot and replay the events after it, then start writing behind.
+   */
+  public Mono<Void> recover() {
+    return eventLog.loadSnapshot()
+      .publishOn(scheduler)
+      .doOnNext(snapshot -> {
+        state.load(snapshot);
+        seq = snapshot.getSeq();
+        snapshotSeq = seq;
+      })
+      .thenMany(Flux.defer(() -> eventLog.eventsAfter(seq)))
+      .publishOn(scheduler)
+      .doOnNext(event -> {
+        state.apply(event);
+        seq = event.getId();
+      })
+      .count()
+      .doOnNext(replayed -> log.info("fleet state recovered at event {}, {} events replayed", seq, replayed))
+      .then(Mono.fromRunnable(this::start));
+  }
+
+  private void start() {
+    flushing = Flux.interval(flushInterval)
+      .onBackpressureDrop()
+      .concatMap(tick -> flush().onErrorResume(err -> {
+        log.warn("fleet events not flushed, retrying: {}", err.getMessage());
+        return Mono.empty();
+      }))
+      .subscribe();
+    snapshotting = Flux.interval(snapshotInterval)
+      .onBackpressureDrop()
+      .concatMap(tick -> snapshot().onErrorResume(err -> {
+        log.warn("fleet snapshot failed: {}", err.getMessage());
+        return Mono.empty();
+      }))
+      .subscribe();
+  }
+
+  /**
+   * Append the pending events to the log, put back in front of the next ones if that fails.
+   */
+  Mono<Void> flush() {
+    return onEngine(() -> {
+      List<FleetEventEntity> batch = pending;
+      pending = new ArrayList<>();
+      return batch;
+    })
+      .filter(batch -> !batch.isEmpty())
+      .flatMap(batch -> eventLog.append(batch)
+        .onErrorResume(err -> onEngine(() -> pending.addAll(0, batch)).then(Mono.error(err))));
+  }
+
+  /**
+   * Save the state, if changed since the last snapshot.
+   */
+  Mono<Void> snapshot() {
+    return onEngine(() -> seq != snapshotSeq ? state.snapshot(seq) : null)
+      .flatMap(snapshot -> eventLog.saveSnapshot(snapshot)
+        .then(onEngine(() -> snapshotSeq = snapshot.getSeq()))
+        .then());
+  }
+
+  private <T> Mono<T> onEngine(Callable<T> operation) {
+    return Mono.fromCallable(operation).subscribeOn(scheduler);
+  }
+
+  private void record(FleetEventEntity event) {
+    event.setId(++seq);
+    state.apply(event);
+    pending.add(event);
+  }
+
+  /**
+   * The new fleet replaces the state without events: a snapshot is saved before the cars are returned.
+   */
+  @Override
+  public Flux<CarEntity> initWith(Flux<CarEntity> carEntities) {
+    return onEngine(() -> {
+      state.clear();
+      // events of the previous fleet are obsolete, the new fleet gets a seq of its own
+      pending = new ArrayList<>();
+      return ++seq;
+    })
+      .thenMany(carEntities.doOnNext(car -> requireDefaultZone(car.getZone())).publishOn(scheduler).doOnNext(state::putCar))
+      .collectList()
+      .flatMapMany(cars -> snapshot().thenMany(Flux.fromIterable(cars)));
+  }
+
+  private static void requireDefaultZone(String zone) {
+    if (zone != null) {
+      throw new ZonesNotSupportedException();
+    }
+  }
+
+  @Override
+  public Mono<CarEntity> assignToCarWithAvailableSeats(GroupOfPeopleEntity group) {
+    return onEngine(() -> {
+      requireDefaultZone(group.getZone());
+      Integer carId = state.bestFit(group.getPeople());
+      return carId != null ? enter(carId, group) : null;
+    });
+  }
+
+  private CarEntity enter(Integer carId, GroupOfPeopleEntity group) {
+    record(FleetEventEntity.assigned(group, carId));
+    return state.car(carId);
+  }
+
+  @Override
+  public Mono<CarEntity> assignToCar(Integer carId, GroupOfPeopleEntity group) {
+    return onEngine(() -> state.fits(carId, group.getPeople()) ? enter(carId, group) : null);
+  }
+
+  @Override
+  public Mono<GroupOfPeopleEntity> locateGroupById(Integer groupId) {
+    return onEngine(() -> state.groupInCar(groupId));
+  }
+
+  @Override
+  public Mono<CarEntity> locateCarOfGroup(Integer groupId) {
+    return onEngine(() -> state.carOfGroupOnly(groupId));
+  }
+
+  @Override
+  public Mono<CarEntity> putInWaitingQueue(GroupOfPeopleEntity group) {
+    return onEngine(() -> {
+      requireDefaultZone(group.getZone());
+      return waiting(group);
+    });
+  }
+
+  private CarEntity waiting(GroupOfPeopleEntity group) {
+    record(FleetEventEntity.waiting(group));
+    return waitingQueue(Collections.singletonList(group));
+  }
+
+  // Pseudo-car that tells callers the group is in the waiting queue
+  private CarEntity waitingQueue(List<GroupOfPeopleEntity> groups) {
+    return CarEntity.builder().id(WAITING_QUEUE).seatsAvailable(0).groups(groups).build();
+  }
+
+  @Override
+  public Mono<GroupOfPeopleEntity> findWaitingById(Integer groupId) {
+    return onEngine(() -> state.waiting(groupId));
+  }
+
+  @Override
+  public Flux<GroupOfPeopleEntity> findAllGroupsWaiting() {
+    return onEngine(() -> new ArrayList<>(state.waitingGroups()))
+      .flatMapIterable(groups -> groups);
+  }
+
+  @Override
+  public Mono<GroupOfPeopleEntity> findOldestWaiting() {
+    return onEngine(() -> state.waitingGroups().stream().findFirst().orElse(null));
+  }
+
+  @Override
+  public Flux<CarEntity> findAllNotWaiting() {
+    return onEngine(() -> state.snapshot(seq).getCars())
+      .flatMapIterable(cars -> cars);
+  }
+
+  // Zones are rejected, every group waits in the default zone
+  @Override
+  public Flux<GroupOfPeopleEntity> reassignOneWaitingGroup(String zone) {
+    return onEngine(() -> {
+      GroupOfPeopleEntity head = state.waitingGroups().stream().findFirst().orElse(null);
+      if (head == null) {
+        return null;
+      }
+      Integer carId = state.bestFit(head.getPeople());
+      if (carId == null) {
+        return null;
+      }
+      enter(carId, head);
+      return head;
+    }).flux();
+  }
+
+  @Override
+  public Mono<GroupOfPeopleEntity> findFirstWaitingThatFits(String zone, int seats, int maxSkipped) {
+    return onEngine(() -> state.firstWaitingThatFits(seats, maxSkipped));
+  }
+
+  @Override
+  public Mono<CarEntity> reassignToCar(GroupOfPeopleEntity waitingGroup, Integer carId) {
+    return onEngine(() -> {
+      if (state.waiting(waitingGroup.getId()) == null) {
+        throw new IllegalStateException("Waiting group not waiting on reassigning it, dropped off meanwhile");
+      }
+      return state.fits(carId, waitingGroup.getPeople()) ? enter(carId, waitingGroup) : null;
+    });
+  }
+
+  /**
+   * Reassignments are single steps of the engine thread, there are no claims to recover.
+   */
+  @Override
+  public Flux<GroupOfPeopleEntity> releaseStaleClaims(Date claimedBefore) {
+    return Flux.empty();
+  }
+
+  @Override
+  public Mono<CarEntity> dropoff(Integer groupId) {
+    return onEngine(() -> droppedOff(groupId));
+  }
+
+  private CarEntity droppedOff(Integer groupId) {
+    Integer carId = state.carOfGroup(groupId);
+    if (carId == null && state.waiting(groupId) == null) {
+      return null;
+    }
+    record(FleetEventEntity.droppedOff(groupId));
+    return carId != null ? state.car(carId) : waitingQueue(Collections.emptyList());
+  }
+
+  @Override
+  public Mono<Map<Integer, CarEntity>> assignAll(List<GroupOfPeopleEntity> groups) {
+    return onEngine(() -> {
+      groups.forEach(group -> requireDefaultZone(group.getZone()));
+      Map<Integer, CarEntity> outcomes = new HashMap<>();
+      // Best fit decreasing, as in mongodb
+      groups.stream().sorted(Comparator.comparing(GroupOfPeopleEntity::getPeople).reversed()).forEach(group -> {
+        if (outcomes.containsKey(group.getId()) || state.carOfGroup(group.getId()) != null || state.waiting(group.getId()) != null) {
+          return;
+        }
+        Integer carId = state.bestFit(group.getPeople());
+        outcomes.put(group.getId(), carId != null ? enter(carId, group) : waiting(group));
+      });
+      return outcomes;
+    });
+  }
+
+  @Override
+  public Mono<Map<Integer, CarEntity>> dropoffAll(List<Integer> groupIds) {
+    return onEngine(() -> {
+      Map<Integer, CarEntity> outcomes = new HashMap<>();
+      groupIds.forEach(groupId -> {
+        CarEntity car = droppedOff(groupId);
+        if (car != null) {
+          outcomes.put(groupId, car);
+        }
+      });
+      return outcomes;
+    });
+  }
+
+  @Override
+  public Mono<Long> countWaiting() {
+    return onEngine(() -> (long) state.waitingGroups().size());
+  }
+
+  @Override
+  public Mono<Long> countWaiting(String zone) {
+    return countWaiting();
+  }
+
+  @Override
+  public Mono<Map<Integer, Long>> countCarsBySeatsAvailable() {
+    return onEngine(state::carsBySeatsAvailable);
+  }
+
+  /**
+   * Stop writing behind, after a last flush and snapshot.
+   */
+  @Override
+  public void destroy() {
+    if (flushing != null) {
+      flushing.dispose();
+      snapshotting.dispose();
+    }
+    try {
+      flush().then(snapshot()).block(Duration.ofSeconds(30));
+    } catch (RuntimeException err) {
+      log.warn("fleet events not flushed on shutdown: {}", err.getMessage());
+    }
+    scheduler.dispose();
+  }
+
+  public static class ZonesNotSupportedException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    ZonesNotSupportedException() {
+      super("zones are not supported by the engine allocation mode");
+    }
+  }
+}
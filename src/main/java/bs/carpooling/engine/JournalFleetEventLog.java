@@ -0,0 +1,348 @@
+package bs.carpooling.engine;
+
+import bs.carpooling.entity.CarEntity;
+import bs.carpooling.entity.FleetEventEntity;
+import bs.carpooling.entity.GroupOfPeopleEntity;
+import lombok.extern.slf4j.Slf4j;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Node-local event log: events go to memory-mapped, append-only segments of {@code segmentSize} bytes, named after
+ * their first event, and each {@link #append(List)} is forced to disk once for the whole batch (group commit).
+ * Snapshots are files written aside then atomically renamed, and remove the segments whose events they cover.
+ * <p>
+ * A record is its length, CRC32 and payload. On opening, the last segment is read up to the first record that is
+ * torn (bad CRC or sequence going backwards, e.g. a crash while writing it) and the rest of the segment is zeroed, so
+ * the next records overwrite the torn one.
+ */
+@Slf4j
+public class JournalFleetEventLog implements FleetEventLog, Closeable {
+
+  static final int PAYLOAD_SIZE = 8 + 1 + 4 + 4 + 8 + 4;
+  static final int RECORD_SIZE = 4 + 4 + PAYLOAD_SIZE;
+
+  private static final String SEGMENT_PREFIX = "segment-";
+  private static final String SNAPSHOT_PREFIX = "snapshot-";
+  private static final int SNAPSHOT_MAGIC = 0x464c5431;
+  private static final int NONE = -1;
+
+  private final Path directory;
+  private final int segmentSize;
+
+  // Guarded by this
+  private final TreeMap<Long, Path> segments = new TreeMap<>();
+  private MappedByteBuffer segment;
+  private long lastSeq;
+
+  public JournalFleetEventLog(Path directory, int segmentSize) throws IOException {
+    if (segmentSize < RECORD_SIZE) {
+      throw new IllegalArgumentException("Journal segments must hold at least one event of " + RECORD_SIZE + " bytes");
+    }
+    this.directory = Files.createDirectories(directory);
+    this.segmentSize = segmentSize;
+    open();
+  }
+
+  private void open() throws IOException {
+    try (Stream<Path> files = Files.list(directory)) {
+      files.forEach(file -> {
+        String name = file.getFileName().toString();
+        if (name.startsWith(SEGMENT_PREFIX)) {
+          segments.put(Long.parseLong(name.substring(SEGMENT_PREFIX.length())), file);
+        }
+      });
+    }
+    long snapshotSeq = latestSnapshot().map(this::seqOf).orElse(0L);
+    lastSeq = snapshotSeq;
+    if (segments.isEmpty()) {
+      return;
+    }
+    segment = map(segments.lastEntry().getValue());
+    long segmentSeq = segments.lastKey() - 1;
+    FleetEventEntity event;
+    while ((event = read(segment, segmentSeq)) != null) {
+      segmentSeq = event.getId();
+    }
+    lastSeq = Math.max(snapshotSeq, segmentSeq);
+    // Whatever follows the last valid record is a torn write: make sure it is never read back
+    int end = segment.position();
+    while (segment.hasRemaining()) {
+      segment.put((byte) 0);
+    }
+    segment.force();
+    segment.position(end);
+    log.info("journal {} opened at event {}, {} segments", directory, lastSeq, segments.size());
+  }
+
+  private MappedByteBuffer map(Path file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      // Stays valid once the channel is closed
+      return channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+    }
+  }
+
+  /**
+   * @return the next record if valid and after {@code afterSeq}, positioned after it, or null positioned on it.
+   */
+  private static FleetEventEntity read(ByteBuffer records, long afterSeq) {
+    int start = records.position();
+    if (records.remaining() < RECORD_SIZE || records.getInt() != PAYLOAD_SIZE) {
+      records.position(start);
+      return null;
+    }
+    int crc = records.getInt();
+    ByteBuffer payload = records.slice();
+    payload.limit(PAYLOAD_SIZE);
+    CRC32 checksum = new CRC32();
+    checksum.update(payload.duplicate());
+    if ((int) checksum.getValue() != crc) {
+      records.position(start);
+      return null;
+    }
+    FleetEventEntity event = decode(payload);
+    if (event.getId() <= afterSeq) {
+      records.position(start);
+      return null;
+    }
+    records.position(start + RECORD_SIZE);
+    return event;
+  }
+
+  private static FleetEventEntity decode(ByteBuffer payload) {
+    long seq = payload.getLong();
+    FleetEventEntity.Type type = FleetEventEntity.Type.values()[payload.get()];
+    int groupId = payload.getInt();
+    int people = payload.getInt();
+    long insertDate = payload.getLong();
+    int carId = payload.getInt();
+    return new FleetEventEntity(seq, type, groupId, people != NONE ? people : null,
+      insertDate != NONE ? new Date(insertDate) : null, carId != NONE ? carId : null);
+  }
+
+  private static void encode(FleetEventEntity event, ByteBuffer records) {
+    int start = records.position();
+    records.putInt(PAYLOAD_SIZE).putInt(0);
+    records.putLong(event.getId())
+      .put((byte) event.getType().ordinal())
+      .putInt(event.getGroupId())
+      .putInt(event.getPeople() != null ? event.getPeople() : NONE)
+      .putLong(event.getInsertDate() != null ? event.getInsertDate().getTime() : NONE)
+      .putInt(event.getCarId() != null ? event.getCarId() : NONE);
+    ByteBuffer payload = records.duplicate();
+    payload.position(start + 8).limit(start + RECORD_SIZE);
+    CRC32 checksum = new CRC32();
+    checksum.update(payload);
+    records.putInt(start + 4, (int) checksum.getValue());
+  }
+
+  @Override
+  public Mono<Void> append(List<FleetEventEntity> events) {
+    return blocking(() -> {
+      synchronized (this) {
+        for (FleetEventEntity event : events) {
+          if (event.getId() <= lastSeq) {
+            // already appended by a batch that failed after writing it
+            continue;
+          }
+          if (segment == null || segment.remaining() < RECORD_SIZE) {
+            roll(event.getId());
+          }
+          encode(event, segment);
+          lastSeq = event.getId();
+        }
+        if (segment != null) {
+          segment.force();
+        }
+      }
+    });
+  }
+
+  private void roll(long firstSeq) throws IOException {
+    if (segment != null) {
+      segment.force();
+    }
+    Path file = directory.resolve(SEGMENT_PREFIX + firstSeq);
+    segment = map(file);
+    segments.put(firstSeq, file);
+  }
+
+  @Override
+  public Mono<Void> saveSnapshot(FleetSnapshot snapshot) {
+    return blocking(() -> {
+      Path file = directory.resolve(SNAPSHOT_PREFIX + snapshot.getSeq());
+      Path written = directory.resolve(file.getFileName() + ".tmp");
+      try (FileOutputStream fileOut = new FileOutputStream(written.toFile())) {
+        CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(fileOut), new CRC32());
+        DataOutputStream out = new DataOutputStream(checked);
+        writeSnapshot(snapshot, out);
+        out.flush();
+        out.writeLong(checked.getChecksum().getValue());
+        out.flush();
+        fileOut.getFD().sync();
+      }
+      Files.move(written, file, StandardCopyOption.ATOMIC_MOVE);
+      compact(snapshot.getSeq());
+    });
+  }
+
+  private static void writeSnapshot(FleetSnapshot snapshot, DataOutputStream out) throws IOException {
+    out.writeInt(SNAPSHOT_MAGIC);
+    out.writeLong(snapshot.getSeq());
+    out.writeInt(snapshot.getCars().size());
+    for (CarEntity car : snapshot.getCars()) {
+      out.writeInt(car.getId());
+      out.writeInt(car.getSeatsAvailable());
+      out.writeLong(car.getVersion() != null ? car.getVersion() : 0);
+      writeGroups(car.getGroups(), out);
+    }
+    writeGroups(snapshot.getWaitingGroups(), out);
+  }
+
+  private static void writeGroups(List<GroupOfPeopleEntity> groups, DataOutputStream out) throws IOException {
+    out.writeInt(groups.size());
+    for (GroupOfPeopleEntity group : groups) {
+      out.writeInt(group.getId());
+      out.writeInt(group.getPeople());
+      out.writeLong(group.getInsertDate() != null ? group.getInsertDate().getTime() : NONE);
+    }
+  }
+
+  /**
+   * Remove older snapshots, and the segments all of whose events are covered by the snapshot {@code seq}.
+   */
+  private synchronized void compact(long seq) throws IOException {
+    for (Path snapshot : snapshots()) {
+      if (seqOf(snapshot) < seq) {
+        Files.delete(snapshot);
+      }
+    }
+    Map.Entry<Long, Path> next;
+    Map.Entry<Long, Path> first;
+    while ((first = segments.firstEntry()) != null
+      && (next = segments.higherEntry(first.getKey())) != null
+      && next.getKey() <= seq + 1) {
+      Files.delete(first.getValue());
+      segments.remove(first.getKey());
+    }
+  }
+
+  private List<Path> snapshots() throws IOException {
+    try (Stream<Path> files = Files.list(directory)) {
+      return files
+        .filter(file -> file.getFileName().toString().startsWith(SNAPSHOT_PREFIX))
+        .collect(Collectors.toList());
+    }
+  }
+
+  private long seqOf(Path snapshot) {
+    String name = snapshot.getFileName().toString();
+    return name.endsWith(".tmp") ? NONE : Long.parseLong(name.substring(SNAPSHOT_PREFIX.length()));
+  }
+
+  private Optional<Path> latestSnapshot() throws IOException {
+    // A .tmp file is a snapshot interrupted before its rename: never loaded
+    return snapshots().stream()
+      .filter(snapshot -> seqOf(snapshot) != NONE)
+      .max(Comparator.comparingLong(this::seqOf));
+  }
+
+  @Override
+  public Mono<FleetSnapshot> loadSnapshot() {
+    return Mono.fromCallable(() -> latestSnapshot().map(this::readSnapshot).orElse(null))
+      .subscribeOn(Schedulers.elastic());
+  }
+
+  private FleetSnapshot readSnapshot(Path file) {
+    try (InputStream fileIn = new BufferedInputStream(Files.newInputStream(file))) {
+      CheckedInputStream checked = new CheckedInputStream(fileIn, new CRC32());
+      DataInputStream in = new DataInputStream(checked);
+      if (in.readInt() != SNAPSHOT_MAGIC) {
+        throw new IllegalStateException("Not a fleet snapshot: " + file);
+      }
+      long seq = in.readLong();
+      int cars = in.readInt();
+      List<CarEntity> carEntities = new ArrayList<>(cars);
+      for (int i = 0; i < cars; i++) {
+        carEntities.add(new CarEntity(in.readInt(), in.readInt(), null, in.readLong()));
+        carEntities.get(i).setGroups(readGroups(in));
+      }
+      List<GroupOfPeopleEntity> waitingGroups = readGroups(in);
+      long checksum = checked.getChecksum().getValue();
+      if (new DataInputStream(fileIn).readLong() != checksum) {
+        throw new IllegalStateException("Corrupted fleet snapshot: " + file);
+      }
+      return new FleetSnapshot(seq, carEntities, waitingGroups);
+    } catch (IOException err) {
+      throw new UncheckedIOException(err);
+    }
+  }
+
+  private static List<GroupOfPeopleEntity> readGroups(DataInputStream in) throws IOException {
+    int size = in.readInt();
+    List<GroupOfPeopleEntity> groups = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      int id = in.readInt();
+      int people = in.readInt();
+      long insertDate = in.readLong();
+      groups.add(new GroupOfPeopleEntity(id, people, insertDate != NONE ? new Date(insertDate) : null));
+    }
+    return groups;
+  }
+
+  @Override
+  public Flux<FleetEventEntity> eventsAfter(long seq) {
+    return Mono.fromCallable(() -> {
+      synchronized (this) {
+        List<FleetEventEntity> events = new ArrayList<>();
+        Long from = segments.floorKey(seq + 1);
+        for (Path file : segments.tailMap(from != null ? from : Long.MIN_VALUE).values()) {
+          ByteBuffer records = file.equals(segments.lastEntry().getValue()) ? segment.duplicate().flip() : map(file);
+          long previous = Long.MIN_VALUE;
+          FleetEventEntity event;
+          while ((event = read(records, previous)) != null) {
+            previous = event.getId();
+            if (event.getId() > seq) {
+              events.add(event);
+            }
+          }
+        }
+        return events;
+      }
+    })
+      .subscribeOn(Schedulers.elastic())
+      .flatMapIterable(events -> events);
+  }
+
+  private Mono<Void> blocking(IORunnable write) {
+    return Mono.<Void>fromCallable(() -> {
+      write.run();
+      return null;
+    }).subscribeOn(Schedulers.elastic());
+  }
+
+  private interface IORunnable {
+    void run() throws IOException;
+  }
+
+  @Override
+  public synchronized void close() {
+    if (segment != null) {
+      segment.force();
+      segment = null;
+    }
+  }
+}
@@ -0,0 +1,96 @@
+package bs.carpooling.engine;
+
+import bs.carpooling.entity.FleetEventEntity;
+import bs.carpooling.entity.FleetSnapshotChunkEntity;
+import bs.carpooling.entity.FleetSnapshotEntity;
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.core.ReactiveMongoOperations;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import static org.springframework.data.domain.Sort.Order.asc;
+import static org.springframework.data.domain.Sort.Order.desc;
+import static org.springframework.data.domain.Sort.by;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
+/**
+ * Event log in the {@code fleetEvents} collection, snapshots in chunks of {@code fleetSnapshotChunks} committed by
+ * their head in {@code fleetSnapshots}: a snapshot interrupted while writing its chunks is never loaded.
+ */
+@RequiredArgsConstructor
+public class MongoFleetEventLog implements FleetEventLog {
+
+  private static final int CARS_PER_CHUNK = 10_000;
+  private static final int WAITING_GROUPS_PER_CHUNK = 50_000;
+
+  private final @NonNull ReactiveMongoOperations mongoOperations;
+
+  @Override
+  public Mono<Void> append(List<FleetEventEntity> events) {
+    if (events.isEmpty()) {
+      return Mono.empty();
+    }
+    return mongoOperations.insertAll(events)
+      // a retried batch may be partly stored already: events are immutable, upsert them one by one
+      .onErrorResume(DuplicateKeyException.class, err -> Flux.fromIterable(events).concatMap(mongoOperations::save))
+      .then();
+  }
+
+  @Override
+  public Mono<Void> saveSnapshot(FleetSnapshot snapshot) {
+    long seq = snapshot.getSeq();
+    Flux<FleetSnapshotChunkEntity> chunks = Flux.concat(
+      Flux.fromIterable(snapshot.getCars()).buffer(CARS_PER_CHUNK)
+        .map(cars -> new FleetSnapshotChunkEntity(null, seq, null, cars, Collections.emptyList())),
+      Flux.fromIterable(snapshot.getWaitingGroups()).buffer(WAITING_GROUPS_PER_CHUNK)
+        .map(waitingGroups -> new FleetSnapshotChunkEntity(null, seq, null, Collections.emptyList(), waitingGroups)))
+      .index((chunk, snapshotChunk) -> snapshotChunk.toBuilder().id(seq + "-" + chunk).chunk(chunk.intValue()).build());
+
+    return chunks
+      // saved rather than inserted, so a snapshot retried after a failure overwrites its own chunks
+      .concatMap(mongoOperations::save)
+      .count()
+      .flatMap(count -> mongoOperations.save(new FleetSnapshotEntity(seq, count.intValue(), new Date())))
+      .then(compact(seq));
+  }
+
+  private Mono<Void> compact(long seq) {
+    return mongoOperations.remove(query(Criteria.where("id").lt(seq)), FleetSnapshotEntity.class)
+      .then(mongoOperations.remove(query(Criteria.where("snapshot").lt(seq)), FleetSnapshotChunkEntity.class))
+      .then(mongoOperations.remove(query(Criteria.where("id").lte(seq)), FleetEventEntity.class))
+      .then();
+  }
+
+  @Override
+  public Mono<FleetSnapshot> loadSnapshot() {
+    return mongoOperations.findOne(new Query().with(by(desc("id"))).limit(1), FleetSnapshotEntity.class)
+      .flatMap(head -> mongoOperations
+        .find(query(Criteria.where("snapshot").is(head.getId())).with(by(asc("chunk"))), FleetSnapshotChunkEntity.class)
+        .collectList()
+        .map(chunks -> {
+          if (chunks.size() != head.getChunks()) {
+            throw new IllegalStateException("Snapshot " + head.getId() + " has " + chunks.size() + " of " + head.getChunks() + " chunks");
+          }
+          FleetSnapshot snapshot = new FleetSnapshot(head.getId(), new ArrayList<>(), new ArrayList<>());
+          chunks.forEach(chunk -> {
+            snapshot.getCars().addAll(chunk.getCars());
+            snapshot.getWaitingGroups().addAll(chunk.getWaitingGroups());
+          });
+          return snapshot;
+        }));
+  }
+
+  @Override
+  public Flux<FleetEventEntity> eventsAfter(long seq) {
+    return mongoOperations.find(query(Criteria.where("id").gt(seq)).with(by(asc("id"))), FleetEventEntity.class);
+  }
+}
@@ -1,11 +1,12 @@
 package bs.carpooling.entity;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
 import lombok.*;
 import org.springframework.data.annotation.Id;
 import org.springframework.data.annotation.Version;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
 import org.springframework.data.mongodb.core.mapping.Document;
 
-import java.util.Date;
 import java.util.List;
 
 @Data
@@ -14,13 +15,21 @@ import java.util.List;
 @Builder(toBuilder = true)
 @EqualsAndHashCode(onlyExplicitlyIncluded = true)
 @Document
+// Best fit within a zone: the cars of the zone with enough seats, fewest first
+@CompoundIndex(name = "zone-seats", def = "{'zone': 1, 'seatsAvailable': 1}")
 public class CarEntity {
   @EqualsAndHashCode.Include
   @Id
   private Integer id;
   private Integer seatsAvailable;
   private List<GroupOfPeopleEntity> groups;
-  private Date reassigningSince;
   @Version
   private Long version;
+  // Partition of the fleet, null for the default one
+  @JsonInclude(JsonInclude.Include.NON_NULL)
+  private String zone;
+
+  public CarEntity(Integer id, Integer seatsAvailable, List<GroupOfPeopleEntity> groups, Long version) {
+    this(id, seatsAvailable, groups, version, null);
+  }
 }
@@ -0,0 +1,52 @@
+package bs.carpooling.entity;
+
+import lombok.*;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.Date;
+
+/**
+ * A mutation of the in-memory fleet state, appended to the event log in sequence order ({@code id}).
+ */
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+@Builder(toBuilder = true)
+@EqualsAndHashCode(onlyExplicitlyIncluded = true)
+@Document(collection = "fleetEvents")
+public class FleetEventEntity {
+
+  public enum Type {
+    // group entered a car, leaving the waiting queue if it was waiting
+    ASSIGNED,
+    WAITING,
+    // group left its car or the waiting queue
+    DROPPED_OFF
+  }
+
+  @EqualsAndHashCode.Include
+  @Id
+  private Long id;
+  private Type type;
+  private Integer groupId;
+  private Integer people;
+  private Date insertDate;
+  private Integer carId;
+
+  public static FleetEventEntity assigned(GroupOfPeopleEntity group, Integer carId) {
+    return new FleetEventEntity(null, Type.ASSIGNED, group.getId(), group.getPeople(), group.getInsertDate(), carId);
+  }
+
+  public static FleetEventEntity waiting(GroupOfPeopleEntity group) {
+    return new FleetEventEntity(null, Type.WAITING, group.getId(), group.getPeople(), group.getInsertDate(), null);
+  }
+
+  public static FleetEventEntity droppedOff(Integer groupId) {
+    return new FleetEventEntity(null, Type.DROPPED_OFF, groupId, null, null, null);
+  }
+
+  public GroupOfPeopleEntity group() {
+    return new GroupOfPeopleEntity(groupId, people, insertDate);
+  }
+}
@@ -0,0 +1,28 @@
+package bs.carpooling.entity;
+
+import lombok.*;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.List;
+
+/**
+ * Part of a fleet snapshot, small enough for a document whatever the size of the fleet.
+ */
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+@Builder(toBuilder = true)
+@EqualsAndHashCode(onlyExplicitlyIncluded = true)
+@Document(collection = "fleetSnapshotChunks")
+@CompoundIndex(name = "snapshot", def = "{'snapshot': 1, 'chunk': 1}")
+public class FleetSnapshotChunkEntity {
+  @EqualsAndHashCode.Include
+  @Id
+  private String id;
+  private Long snapshot;
+  private Integer chunk;
+  private List<CarEntity> cars;
+  private List<GroupOfPeopleEntity> waitingGroups;
+}
@@ -0,0 +1,24 @@
+package bs.carpooling.entity;
+
+import lombok.*;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.Date;
+
+/**
+ * Head of a fleet snapshot, written once all its chunks are: the fleet state after the event {@code id}.
+ */
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+@Builder(toBuilder = true)
+@EqualsAndHashCode(onlyExplicitlyIncluded = true)
+@Document(collection = "fleetSnapshots")
+public class FleetSnapshotEntity {
+  @EqualsAndHashCode.Include
+  @Id
+  private Long id;
+  private Integer chunks;
+  private Date createDate;
+}
@@ -0,0 +1,26 @@
+package bs.carpooling.entity;
+
+import lombok.*;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.Date;
+
+/**
+ * Car a group is assigned to, keyed by group id so that locating a group is a point lookup instead of a query on the
+ * groups of every car.
+ */
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+@Builder(toBuilder = true)
+@EqualsAndHashCode(onlyExplicitlyIncluded = true)
+@Document(collection = "groupLocations")
+public class GroupLocationEntity {
+  @EqualsAndHashCode.Include
+  @Id
+  private Integer id;
+  private Integer carId;
+  private Integer people;
+  private Date insertDate;
+}
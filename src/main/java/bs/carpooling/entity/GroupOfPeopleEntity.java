@@ -1,9 +1,12 @@
 package bs.carpooling.entity;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
 import lombok.Builder;
 import lombok.Data;
 import lombok.EqualsAndHashCode;
 import lombok.RequiredArgsConstructor;
+import org.springframework.data.annotation.PersistenceConstructor;
+import org.springframework.data.annotation.Transient;
 
 import java.util.Date;
 
@@ -16,4 +19,13 @@ public class GroupOfPeopleEntity {
   private final Integer id;
   private final Integer people;
   private final Date insertDate;
+  // Zone whose cars may take the group, known while handling it: cars and waiting groups store it, not their groups
+  @Transient
+  @JsonInclude(JsonInclude.Include.NON_NULL)
+  private final String zone;
+
+  @PersistenceConstructor
+  public GroupOfPeopleEntity(Integer id, Integer people, Date insertDate) {
+    this(id, people, insertDate, null);
+  }
 }
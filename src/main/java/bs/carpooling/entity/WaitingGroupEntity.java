@@ -0,0 +1,44 @@
+package bs.carpooling.entity;
+
+import lombok.*;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.index.CompoundIndexes;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.Date;
+
+/**
+ * A group waiting for a car, one document per group so that queueing and leaving the queue only touch that group.
+ */
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+@Builder(toBuilder = true)
+@EqualsAndHashCode(onlyExplicitlyIncluded = true)
+@Document(collection = "waitingGroups")
+@CompoundIndexes({
+  // FIFO order of the waiting queue of each zone, id breaks ties between groups that arrived in the same millisecond
+  @CompoundIndex(name = "zone-fifo", def = "{'zone': 1, 'insertDate': 1, '_id': 1}"),
+  // FIFO order of the waiting groups of each zone and size, to find the oldest group that fits some seats
+  @CompoundIndex(name = "zone-size", def = "{'zone': 1, 'people': 1, 'insertDate': 1, '_id': 1}")
+})
+public class WaitingGroupEntity {
+  @EqualsAndHashCode.Include
+  @Id
+  private Integer id;
+  private Integer people;
+  private Date insertDate;
+  // Claim of the reassignment moving this group to a car, null while waiting unclaimed (left out of the sparse index)
+  @Indexed(name = "reassigning", sparse = true)
+  private Date reassigningSince;
+  // Partition of the fleet, null for the default one
+  private String zone;
+  // Groups behind this one reassigned before it, null for none
+  private Integer skipped;
+
+  public WaitingGroupEntity(Integer id, Integer people, Date insertDate, Date reassigningSince) {
+    this(id, people, insertDate, reassigningSince, null, null);
+  }
+}
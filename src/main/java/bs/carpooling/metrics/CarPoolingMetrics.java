@@ -0,0 +1,97 @@
+package bs.carpooling.metrics;
+
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.SignalType;
+
+/**
+ * Meters of the application, on the global registry so they are also recorded where no registry bean exists (e.g.
+ * repository fragments in data slice tests). Spring Boot adds its registries (prometheus) to the global one.
+ */
+public final class CarPoolingMetrics {
+
+  public static final String SERVICE = "carpooling.service";
+  public static final String REPOSITORY = "carpooling.repository";
+
+  private CarPoolingMetrics() {
+  }
+
+  /**
+   * Time from subscription to completion, error or cancellation of an operation.
+   */
+  public static <T> Mono<T> timed(String name, String operation, Mono<T> mono) {
+    return Mono.defer(() -> {
+      Timer.Sample sample = Timer.start(Metrics.globalRegistry);
+      return mono.doFinally(signal -> sample.stop(timer(name, operation, signal)));
+    });
+  }
+
+  public static <T> Flux<T> timed(String name, String operation, Flux<T> flux) {
+    return Flux.defer(() -> {
+      Timer.Sample sample = Timer.start(Metrics.globalRegistry);
+      return flux.doFinally(signal -> sample.stop(timer(name, operation, signal)));
+    });
+  }
+
+  private static Timer timer(String name, String operation, SignalType signal) {
+    return Metrics.timer(name, "operation", operation, "outcome", outcome(signal));
+  }
+
+  private static String outcome(SignalType signal) {
+    switch (signal) {
+      case ON_ERROR:
+        return "error";
+      case CANCEL:
+        return "cancelled";
+      default:
+        return "success";
+    }
+  }
+
+  /**
+   * A failed optimistic execution, retried with backoff until the retries are exhausted.
+   */
+  public static void optimisticFailure(String operation) {
+    Metrics.counter("carpooling.optimistic.failures", "operation", operation).increment();
+  }
+
+  /**
+   * A reassignment that stopped before moving the waiting group: {@code not-claimable} (claimed or dropped off
+   * meanwhile) or {@code claim-lost} (assignment undone).
+   */
+  public static void reassignmentAborted(String reason) {
+    Metrics.counter("carpooling.reassignment.aborts", "reason", reason).increment();
+  }
+
+  public static void reassignmentFailed() {
+    Metrics.counter("carpooling.reassignment.failures").increment();
+  }
+
+  /**
+   * A group sent to the waiting queue without trying any car, the seat histogram telling none could fit it.
+   */
+  public static void queuedBySeatHistogram() {
+    Metrics.counter("carpooling.seat.histogram.queued").increment();
+  }
+
+  /**
+   * A read of a group served by the fleet cache ({@code hit}), or by mongodb because the cache did not know the group
+   * ({@code miss}) or lagged behind ({@code stale}).
+   */
+  public static void cacheRead(String result) {
+    Metrics.counter("carpooling.cache.reads", "result", result).increment();
+  }
+
+  /**
+   * Journeys assigned together by one batch of the journey batcher.
+   */
+  public static void journeyBatch(int journeys) {
+    Metrics.summary("carpooling.journey.batch.size").record(journeys);
+  }
+
+  public static void staleClaimRecovered() {
+    Metrics.counter("carpooling.reassignment.stale.claims").increment();
+  }
+}
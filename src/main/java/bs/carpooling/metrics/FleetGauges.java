@@ -0,0 +1,116 @@
+package bs.carpooling.metrics;
+
+import bs.carpooling.repository.CustomizedCarsRepository;
+import bs.carpooling.service.GroupEvents;
+import bs.carpooling.service.ReassignmentScheduler;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.TimeGauge;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Gauges of the waiting queue depth and age, cars by seats available, the reassignment scheduler and the group event
+ * subscriptions. Values that need a query are refreshed every {@code carpooling.metrics.refresh-interval}, so a scrape
+ * never waits for mongodb.
+ */
+@Component
+@Slf4j
+public class FleetGauges implements InitializingBean, DisposableBean {
+
+  private final CustomizedCarsRepository carsRepository;
+  private final ReassignmentScheduler reassignmentScheduler;
+  private final GroupEvents groupEvents;
+  private final MeterRegistry meterRegistry;
+  private final Duration refreshInterval;
+
+  private final AtomicLong waitingGroups = new AtomicLong();
+  private final AtomicLong oldestWaitingSince = new AtomicLong();
+  // index is the seats available, 0 are the cars at full capacity
+  private final AtomicLong[] carsBySeatsAvailable;
+  private Disposable refreshing;
+
+  public FleetGauges(CustomizedCarsRepository carsRepository,
+                     ReassignmentScheduler reassignmentScheduler,
+                     GroupEvents groupEvents,
+                     MeterRegistry meterRegistry,
+                     @Value("${carpooling.allocation.max-seats:6}") int maxSeats,
+                     @Value("${carpooling.metrics.refresh-interval:10s}") Duration refreshInterval) {
+    this.carsRepository = carsRepository;
+    this.reassignmentScheduler = reassignmentScheduler;
+    this.groupEvents = groupEvents;
+    this.meterRegistry = meterRegistry;
+    this.refreshInterval = refreshInterval;
+    this.carsBySeatsAvailable = new AtomicLong[maxSeats + 1];
+    for (int seats = 0; seats <= maxSeats; seats++) {
+      carsBySeatsAvailable[seats] = new AtomicLong();
+    }
+  }
+
+  @Override
+  public void afterPropertiesSet() {
+    Gauge.builder("carpooling.waiting.groups", waitingGroups, AtomicLong::get).register(meterRegistry);
+    // Age at scrape time, so it keeps growing between refreshes while reassignment falls behind
+    TimeGauge.builder("carpooling.waiting.oldest", oldestWaitingSince, TimeUnit.MILLISECONDS,
+      since -> since.get() == 0 ? 0 : System.currentTimeMillis() - since.get())
+      .register(meterRegistry);
+    for (int seats = 0; seats < carsBySeatsAvailable.length; seats++) {
+      Gauge.builder("carpooling.cars", carsBySeatsAvailable[seats], AtomicLong::get)
+        .tag("seats_available", String.valueOf(seats))
+        .register(meterRegistry);
+    }
+    Gauge.builder("carpooling.cars.full", carsBySeatsAvailable[0], AtomicLong::get).register(meterRegistry);
+    Gauge.builder("carpooling.reassignment.pending.signals", reassignmentScheduler, ReassignmentScheduler::getPendingSignals)
+      .register(meterRegistry);
+    Gauge.builder("carpooling.reassignment.pending.cars", reassignmentScheduler, ReassignmentScheduler::getPendingCars)
+      .register(meterRegistry);
+    Gauge.builder("carpooling.reassignment.last.pass.waiting.groups", reassignmentScheduler, ReassignmentScheduler::getLastPassWaitingGroups)
+      .register(meterRegistry);
+    TimeGauge.builder("carpooling.reassignment.last.pass", reassignmentScheduler, TimeUnit.MILLISECONDS,
+      scheduler -> scheduler.getLastPassDuration().toMillis())
+      .register(meterRegistry);
+    Gauge.builder("carpooling.events.subscriptions", groupEvents, GroupEvents::getSubscriptions).register(meterRegistry);
+
+    refreshing = Flux.interval(Duration.ZERO, refreshInterval)
+      .onBackpressureDrop()
+      .concatMap(tick -> refresh()
+        .onErrorResume(err -> {
+          log.info(err.getMessage());
+          return Mono.empty();
+        }))
+      .subscribe();
+  }
+
+  Mono<Void> refresh() {
+    Mono<Void> waiting = carsRepository.countWaiting()
+      .doOnNext(waitingGroups::set)
+      .then(carsRepository.findOldestWaiting()
+        .map(group -> group.getInsertDate().getTime())
+        .defaultIfEmpty(0L)
+        .doOnNext(oldestWaitingSince::set))
+      .then();
+    Mono<Void> cars = carsRepository.countCarsBySeatsAvailable()
+      .doOnNext(counts -> {
+        for (int seats = 0; seats < carsBySeatsAvailable.length; seats++) {
+          carsBySeatsAvailable[seats].set(counts.getOrDefault(seats, 0L));
+        }
+      })
+      .then();
+    return waiting.then(cars);
+  }
+
+  @Override
+  public void destroy() {
+    refreshing.dispose();
+  }
+}
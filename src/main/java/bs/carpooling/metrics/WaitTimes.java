@@ -0,0 +1,53 @@
+package bs.carpooling.metrics;
+
+import bs.carpooling.dto.WaitTimeDistributionDTO;
+import bs.carpooling.entity.GroupOfPeopleEntity;
+import io.micrometer.core.instrument.Metrics;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.springframework.stereotype.Component;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * How long groups waited in the waiting queue (insertDate until a reassignment placed them in a car), by group size:
+ * since start in high resolution histograms, and as the {@code carpooling.wait.time} timer.
+ */
+@Component
+public class WaitTimes {
+
+  // Waits are recorded in ms, up to a day, with 3 significant digits
+  private static final long MAX_WAIT_MILLIS = TimeUnit.DAYS.toMillis(1);
+  private static final int SIGNIFICANT_DIGITS = 3;
+
+  private final Map<Integer, Histogram> waitTimesByPeople = new ConcurrentHashMap<>();
+
+  public void reassigned(GroupOfPeopleEntity group) {
+    long waitMillis = Math.max(0, System.currentTimeMillis() - group.getInsertDate().getTime());
+    waitTimesByPeople.computeIfAbsent(group.getPeople(), people -> new ConcurrentHistogram(MAX_WAIT_MILLIS, SIGNIFICANT_DIGITS))
+      .recordValue(Math.min(waitMillis, MAX_WAIT_MILLIS));
+    Metrics.timer("carpooling.wait.time", "people", String.valueOf(group.getPeople()))
+      .record(waitMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * @return the distribution of the waits recorded so far, by group size.
+   */
+  public List<WaitTimeDistributionDTO> distributions() {
+    return waitTimesByPeople.entrySet().stream()
+      .sorted(Comparator.comparing(Map.Entry::getKey))
+      .map(waitTimes -> distribution(waitTimes.getKey(), waitTimes.getValue().copy()))
+      .collect(Collectors.toList());
+  }
+
+  private WaitTimeDistributionDTO distribution(int people, Histogram waitTimes) {
+    return new WaitTimeDistributionDTO(people, waitTimes.getTotalCount(),
+      waitTimes.getValueAtPercentile(50), waitTimes.getValueAtPercentile(99), waitTimes.getValueAtPercentile(99.9),
+      waitTimes.getMaxValue());
+  }
+}
@@ -0,0 +1,176 @@
+package bs.carpooling.repository;
+
+import bs.carpooling.cache.FleetCache;
+import bs.carpooling.entity.CarEntity;
+import bs.carpooling.entity.GroupLocationEntity;
+import bs.carpooling.entity.GroupOfPeopleEntity;
+import bs.carpooling.entity.WaitingGroupEntity;
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import static bs.carpooling.metrics.CarPoolingMetrics.cacheRead;
+
+/**
+ * Serves the reads of a group (locate, waiting) from the {@link FleetCache} while it is fresh, and from mongodb
+ * otherwise or for groups the cache does not know (e.g. assigned a moment ago). Writes go to mongodb, reaching the
+ * cache through its change stream.
+ */
+@RequiredArgsConstructor
+public class CachedCarsRepository implements CustomizedCarsRepository {
+
+  private final @NonNull CustomizedCarsRepository carsRepository;
+  private final @NonNull FleetCache fleetCache;
+
+  @Override
+  public Flux<CarEntity> initWith(Flux<CarEntity> carEntities) {
+    return carsRepository.initWith(carEntities);
+  }
+
+  @Override
+  public Mono<CarEntity> assignToCarWithAvailableSeats(GroupOfPeopleEntity group) {
+    return carsRepository.assignToCarWithAvailableSeats(group);
+  }
+
+  @Override
+  public Mono<CarEntity> assignToCar(Integer carId, GroupOfPeopleEntity group) {
+    return carsRepository.assignToCar(carId, group);
+  }
+
+  @Override
+  public Mono<GroupOfPeopleEntity> locateGroupById(Integer groupId) {
+    return Mono.defer(() -> {
+      boolean fresh = fleetCache.isFresh();
+      if (fresh) {
+        GroupLocationEntity location = fleetCache.location(groupId);
+        if (location != null) {
+          cacheRead("hit");
+          return Mono.just(new GroupOfPeopleEntity(groupId, location.getPeople(), location.getInsertDate()));
+        }
+        if (fleetCache.waitingGroup(groupId) != null) {
+          cacheRead("hit");
+          return Mono.empty();
+        }
+      }
+      cacheRead(fresh ? "miss" : "stale");
+      return carsRepository.locateGroupById(groupId);
+    });
+  }
+
+  @Override
+  public Mono<CarEntity> locateCarOfGroup(Integer groupId) {
+    return Mono.defer(() -> {
+      boolean fresh = fleetCache.isFresh();
+      if (fresh) {
+        GroupLocationEntity location = fleetCache.location(groupId);
+        CarEntity car = location != null ? fleetCache.car(location.getCarId()) : null;
+        if (car != null) {
+          cacheRead("hit");
+          return Mono.just(car);
+        }
+        if (location == null && fleetCache.waitingGroup(groupId) != null) {
+          cacheRead("hit");
+          return Mono.empty();
+        }
+      }
+      cacheRead(fresh ? "miss" : "stale");
+      return carsRepository.locateCarOfGroup(groupId);
+    });
+  }
+
+  @Override
+  public Mono<CarEntity> putInWaitingQueue(GroupOfPeopleEntity group) {
+    return carsRepository.putInWaitingQueue(group);
+  }
+
+  @Override
+  public Mono<GroupOfPeopleEntity> findWaitingById(Integer groupId) {
+    return Mono.defer(() -> {
+      boolean fresh = fleetCache.isFresh();
+      if (fresh) {
+        WaitingGroupEntity waitingGroup = fleetCache.waitingGroup(groupId);
+        if (waitingGroup != null) {
+          cacheRead("hit");
+          return Mono.just(new GroupOfPeopleEntity(groupId, waitingGroup.getPeople(), waitingGroup.getInsertDate(),
+            waitingGroup.getZone()));
+        }
+        if (fleetCache.location(groupId) != null) {
+          cacheRead("hit");
+          return Mono.empty();
+        }
+      }
+      cacheRead(fresh ? "miss" : "stale");
+      return carsRepository.findWaitingById(groupId);
+    });
+  }
+
+  @Override
+  public Flux<GroupOfPeopleEntity> findAllGroupsWaiting() {
+    return carsRepository.findAllGroupsWaiting();
+  }
+
+  @Override
+  public Mono<GroupOfPeopleEntity> findOldestWaiting() {
+    return carsRepository.findOldestWaiting();
+  }
+
+  @Override
+  public Flux<CarEntity> findAllNotWaiting() {
+    return carsRepository.findAllNotWaiting();
+  }
+
+  @Override
+  public Flux<GroupOfPeopleEntity> reassignOneWaitingGroup(String zone) {
+    return carsRepository.reassignOneWaitingGroup(zone);
+  }
+
+  @Override
+  public Mono<GroupOfPeopleEntity> findFirstWaitingThatFits(String zone, int seats, int maxSkipped) {
+    return carsRepository.findFirstWaitingThatFits(zone, seats, maxSkipped);
+  }
+
+  @Override
+  public Mono<CarEntity> reassignToCar(GroupOfPeopleEntity waitingGroup, Integer carId) {
+    return carsRepository.reassignToCar(waitingGroup, carId);
+  }
+
+  @Override
+  public Flux<GroupOfPeopleEntity> releaseStaleClaims(Date claimedBefore) {
+    return carsRepository.releaseStaleClaims(claimedBefore);
+  }
+
+  @Override
+  public Mono<CarEntity> dropoff(Integer groupId) {
+    return carsRepository.dropoff(groupId);
+  }
+
+  @Override
+  public Mono<Map<Integer, CarEntity>> assignAll(List<GroupOfPeopleEntity> groups) {
+    return carsRepository.assignAll(groups);
+  }
+
+  @Override
+  public Mono<Long> countWaiting() {
+    return carsRepository.countWaiting();
+  }
+
+  @Override
+  public Mono<Long> countWaiting(String zone) {
+    return carsRepository.countWaiting(zone);
+  }
+
+  @Override
+  public Mono<Map<Integer, Long>> countCarsBySeatsAvailable() {
+    return carsRepository.countCarsBySeatsAvailable();
+  }
+
+  @Override
+  public Mono<Map<Integer, CarEntity>> dropoffAll(List<Integer> groupIds) {
+    return carsRepository.dropoffAll(groupIds);
+  }
+}
@@ -0,0 +1,108 @@
+package bs.carpooling.repository;
+
+import bs.carpooling.entity.CarEntity;
+import bs.carpooling.entity.GroupOfPeopleEntity;
+import org.bson.BsonReader;
+import org.bson.BsonType;
+import org.bson.BsonWriter;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.springframework.data.mongodb.core.convert.MongoConverter;
+import org.springframework.data.mongodb.core.mapping.MongoPersistentEntity;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads and writes cars straight from and to BSON, in the format of the mapping converter (field names of the schema
+ * in use, {@code _class} unless disabled), so documents written either way read back either way. Fields left out by a
+ * projection stay null.
+ */
+public class CarEntityCodec implements Codec<CarEntity> {
+
+  private static final String TYPE_KEY = "_class";
+
+  private final GroupOfPeopleEntityCodec groupCodec;
+  private final String idField;
+  private final String seatsAvailableField;
+  private final String groupsField;
+  private final String versionField;
+  private final String zoneField;
+  private final boolean writeType;
+
+  public CarEntityCodec(MongoConverter converter) {
+    MongoPersistentEntity<?> car = converter.getMappingContext().getRequiredPersistentEntity(CarEntity.class);
+    this.groupCodec = new GroupOfPeopleEntityCodec(converter);
+    this.idField = car.getRequiredPersistentProperty("id").getFieldName();
+    this.seatsAvailableField = car.getRequiredPersistentProperty("seatsAvailable").getFieldName();
+    this.groupsField = car.getRequiredPersistentProperty("groups").getFieldName();
+    this.versionField = car.getRequiredPersistentProperty("version").getFieldName();
+    this.zoneField = car.getRequiredPersistentProperty("zone").getFieldName();
+    this.writeType = converter.getTypeMapper().isTypeKey(TYPE_KEY);
+  }
+
+  @Override
+  public void encode(BsonWriter writer, CarEntity car, EncoderContext encoderContext) {
+    writer.writeStartDocument();
+    if (car.getId() != null) {
+      writer.writeInt32(idField, car.getId());
+    }
+    if (car.getSeatsAvailable() != null) {
+      writer.writeInt32(seatsAvailableField, car.getSeatsAvailable());
+    }
+    if (car.getGroups() != null) {
+      writer.writeStartArray(groupsField);
+      for (GroupOfPeopleEntity group : car.getGroups()) {
+        encoderContext.encodeWithChildContext(groupCodec, writer, group);
+      }
+      writer.writeEndArray();
+    }
+    if (car.getVersion() != null) {
+      writer.writeInt64(versionField, car.getVersion());
+    }
+    if (car.getZone() != null) {
+      writer.writeString(zoneField, car.getZone());
+    }
+    if (writeType) {
+      writer.writeString(TYPE_KEY, CarEntity.class.getName());
+    }
+    writer.writeEndDocument();
+  }
+
+  @Override
+  public CarEntity decode(BsonReader reader, DecoderContext decoderContext) {
+    CarEntity car = new CarEntity();
+    reader.readStartDocument();
+    while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+      String field = reader.readName();
+      if (field.equals(idField)) {
+        car.setId(reader.readInt32());
+      } else if (field.equals(seatsAvailableField)) {
+        car.setSeatsAvailable(reader.readInt32());
+      } else if (field.equals(groupsField)) {
+        List<GroupOfPeopleEntity> groups = new ArrayList<>();
+        reader.readStartArray();
+        while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+          groups.add(groupCodec.decode(reader, decoderContext));
+        }
+        reader.readEndArray();
+        car.setGroups(groups);
+      } else if (field.equals(versionField)) {
+        // int64 as written, but $inc on a car without version creates an int32
+        car.setVersion(reader.getCurrentBsonType() == BsonType.INT32 ? reader.readInt32() : reader.readInt64());
+      } else if (field.equals(zoneField) && reader.getCurrentBsonType() == BsonType.STRING) {
+        car.setZone(reader.readString());
+      } else {
+        reader.skipValue();
+      }
+    }
+    reader.readEndDocument();
+    return car;
+  }
+
+  @Override
+  public Class<CarEntity> getEncoderClass() {
+    return CarEntity.class;
+  }
+}
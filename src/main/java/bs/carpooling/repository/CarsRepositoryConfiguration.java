@@ -0,0 +1,163 @@
+package bs.carpooling.repository;
+
+import bs.carpooling.allocation.AllocationPolicy;
+import bs.carpooling.allocation.BestFitPolicy;
+import bs.carpooling.allocation.SeatBuckets;
+import bs.carpooling.allocation.SeatHistogram;
+import bs.carpooling.cache.FleetCache;
+import bs.carpooling.engine.FleetEventLog;
+import bs.carpooling.engine.FleetStateEngine;
+import bs.carpooling.engine.JournalFleetEventLog;
+import bs.carpooling.engine.MongoFleetEventLog;
+import bs.carpooling.service.GroupEvents;
+import bs.carpooling.service.ReassignmentScheduler;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.data.mongodb.ReactiveMongoDatabaseFactory;
+import org.springframework.data.mongodb.core.ReactiveMongoOperations;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+
+/**
+ * Selects how cars are allocated to groups with {@code carpooling.allocation.mode}: {@code mongo} (default) sorts cars
+ * by seats available in mongodb, {@code memory} picks them from in-memory {@link SeatBuckets}, {@code engine} keeps the
+ * whole fleet state in memory and writes it behind to mongodb ({@link FleetStateEngine}). Any of them is metered.
+ */
+@Configuration
+public class CarsRepositoryConfiguration {
+
+  @Bean
+  @Primary
+  @ConditionalOnProperty(name = "carpooling.allocation.mode", havingValue = "mongo", matchIfMissing = true)
+  public CustomizedCarsRepository mongoAllocation(CarsRepository carsRepository,
+                                                  ObjectProvider<SeatHistogramCarsRepository> seatHistogram,
+                                                  ObjectProvider<FleetCache> fleetCache,
+                                                  ObjectProvider<CompactSchemaMigration> schemaMigration) {
+    migrateFirst(schemaMigration);
+    CustomizedCarsRepository seatHistogramCarsRepository = seatHistogram.getIfAvailable();
+    return new MeteredCarsRepository(cached(seatHistogramCarsRepository != null ? seatHistogramCarsRepository : carsRepository,
+      fleetCache));
+  }
+
+  /**
+   * {@code carpooling.allocation.policy}: which car takes a group, see {@link AllocationPolicy}. Only the {@code mongo}
+   * mode applies it: the other modes index cars by seats for best fit.
+   */
+  @Bean
+  public AllocationPolicy allocationPolicy(@Value("${carpooling.allocation.policy:best-fit}") String policy,
+                                           @Value("${carpooling.allocation.large-group:4}") int largeGroup,
+                                           @Value("${carpooling.allocation.mode:mongo}") String mode) {
+    AllocationPolicy allocationPolicy = AllocationPolicy.named(policy, largeGroup);
+    if (!"mongo".equals(mode) && !(allocationPolicy instanceof BestFitPolicy)) {
+      throw new IllegalStateException("carpooling.allocation.policy=" + policy + " needs carpooling.allocation.mode=mongo");
+    }
+    return allocationPolicy;
+  }
+
+  /**
+   * {@code mongo} mode with {@code carpooling.allocation.histogram} (default): journeys skip the car search when the
+   * {@link SeatHistogram} of this node tells no car fits the group.
+   */
+  @Bean
+  @ConditionalOnExpression("'${carpooling.allocation.mode:mongo}' == 'mongo' && ${carpooling.allocation.histogram:true}")
+  public SeatHistogramCarsRepository seatHistogramAllocation(CarsRepository carsRepository,
+                                                             @Value("${carpooling.allocation.max-seats:6}") int maxSeats,
+                                                             @Value("${carpooling.allocation.histogram-refresh-interval:10s}") Duration refreshInterval,
+                                                             ObjectProvider<ReassignmentScheduler> reassignmentScheduler,
+                                                             ObjectProvider<CompactSchemaMigration> schemaMigration) {
+    migrateFirst(schemaMigration);
+    return new SeatHistogramCarsRepository(carsRepository, maxSeats, refreshInterval,
+      car -> reassignmentScheduler.getObject().seatsFreed(car));
+  }
+
+  @Bean
+  @Primary
+  @ConditionalOnProperty(name = "carpooling.allocation.mode", havingValue = "memory")
+  public CustomizedCarsRepository seatBucketAllocation(CarsRepository carsRepository,
+                                                      @Value("${carpooling.allocation.max-seats:6}") int maxSeats,
+                                                      ObjectProvider<FleetCache> fleetCache,
+                                                      ObjectProvider<CompactSchemaMigration> schemaMigration) {
+    migrateFirst(schemaMigration);
+    SeatBucketCarsRepository seatBucketCarsRepository = new SeatBucketCarsRepository(carsRepository, new SeatBuckets(maxSeats));
+    seatBucketCarsRepository.load().block();
+    return new MeteredCarsRepository(cached(seatBucketCarsRepository, fleetCache));
+  }
+
+  /**
+   * {@code carpooling.cache.enabled} (mongodb replica set only): reads of groups are served by a {@link FleetCache} of
+   * this node, kept coherent by a change stream, while it lags behind by at most
+   * {@code carpooling.cache.max-staleness}.
+   */
+  @Bean
+  @ConditionalOnExpression("${carpooling.cache.enabled:false} && '${carpooling.allocation.mode:mongo}' != 'engine'")
+  public FleetCache fleetCache(ReactiveMongoDatabaseFactory mongoDatabaseFactory,
+                               ReactiveMongoOperations mongoOperations,
+                               GroupEvents groupEvents,
+                               @Value("${carpooling.cache.node-id:${HOSTNAME:carpooling}}") String nodeId,
+                               @Value("${carpooling.cache.heartbeat-interval:500ms}") Duration heartbeatInterval,
+                               @Value("${carpooling.cache.max-staleness:2s}") Duration maxStaleness,
+                               ObjectProvider<CompactSchemaMigration> schemaMigration) {
+    migrateFirst(schemaMigration);
+    return new FleetCache(mongoDatabaseFactory.getMongoDatabase(), mongoOperations.getConverter(), groupEvents, nodeId,
+      heartbeatInterval, maxStaleness);
+  }
+
+  private static CustomizedCarsRepository cached(CustomizedCarsRepository carsRepository,
+                                                 ObjectProvider<FleetCache> fleetCache) {
+    FleetCache cache = fleetCache.getIfAvailable();
+    return cache != null ? new CachedCarsRepository(carsRepository, cache) : carsRepository;
+  }
+
+  /**
+   * Repositories are read right away (fleet gauges, seat buckets and histogram): migrate the documents first, if a
+   * migration is configured.
+   */
+  private static void migrateFirst(ObjectProvider<CompactSchemaMigration> schemaMigration) {
+    schemaMigration.getIfAvailable();
+  }
+
+  /**
+   * {@code engine} mode: the fleet state engine, writing behind to the event log selected by
+   * {@code carpooling.engine.log}, {@code mongo} (default) or a local {@code journal}.
+   */
+  @Configuration
+  @ConditionalOnProperty(name = "carpooling.allocation.mode", havingValue = "engine")
+  public static class EngineConfiguration {
+
+    @Bean
+    @ConditionalOnProperty(name = "carpooling.engine.log", havingValue = "mongo", matchIfMissing = true)
+    public FleetEventLog mongoFleetEventLog(ReactiveMongoOperations mongoOperations) {
+      return new MongoFleetEventLog(mongoOperations);
+    }
+
+    @Bean
+    @ConditionalOnProperty(name = "carpooling.engine.log", havingValue = "journal")
+    public FleetEventLog journalFleetEventLog(@Value("${carpooling.engine.journal.dir:journal}") Path directory,
+                                              @Value("${carpooling.engine.journal.segment-size:64MB}") DataSize segmentSize) throws IOException {
+      return new JournalFleetEventLog(directory, (int) segmentSize.toBytes());
+    }
+
+    @Bean
+    public FleetStateEngine fleetStateEngine(FleetEventLog fleetEventLog,
+                                             @Value("${carpooling.engine.flush-interval:100ms}") Duration flushInterval,
+                                             @Value("${carpooling.engine.snapshot-interval:5m}") Duration snapshotInterval) {
+      return new FleetStateEngine(fleetEventLog, flushInterval, snapshotInterval);
+    }
+
+    @Bean
+    @Primary
+    public CustomizedCarsRepository engineAllocation(FleetStateEngine fleetStateEngine,
+                                                     ObjectProvider<CompactSchemaMigration> schemaMigration) {
+      migrateFirst(schemaMigration);
+      return new MeteredCarsRepository(fleetStateEngine);
+    }
+  }
+}
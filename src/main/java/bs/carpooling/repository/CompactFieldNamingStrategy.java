@@ -0,0 +1,49 @@
+package bs.carpooling.repository;
+
+import org.springframework.data.mapping.PersistentProperty;
+import org.springframework.data.mapping.model.FieldNamingStrategy;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * One or two letter field names for the properties repeated in every car, group and waiting group document. Other
+ * properties keep their name.
+ */
+public class CompactFieldNamingStrategy implements FieldNamingStrategy {
+
+  private static final Map<String, String> FIELD_NAMES = new HashMap<>();
+
+  static {
+    FIELD_NAMES.put("seatsAvailable", "s");
+    FIELD_NAMES.put("groups", "g");
+    FIELD_NAMES.put("version", "v");
+    FIELD_NAMES.put("people", "p");
+    FIELD_NAMES.put("insertDate", "t");
+    FIELD_NAMES.put("reassigningSince", "r");
+    FIELD_NAMES.put("carId", "c");
+    FIELD_NAMES.put("zone", "z");
+    FIELD_NAMES.put("skipped", "k");
+  }
+
+  /**
+   * @return the compact name of a field of the default schema.
+   */
+  public static String compact(String fieldName) {
+    return FIELD_NAMES.getOrDefault(fieldName, fieldName);
+  }
+
+  /**
+   * @return the field names of the default schema that are compacted.
+   */
+  public static Set<String> compactedFieldNames() {
+    return Collections.unmodifiableSet(FIELD_NAMES.keySet());
+  }
+
+  @Override
+  public String getFieldName(PersistentProperty<?> property) {
+    return compact(property.getName());
+  }
+}
@@ -0,0 +1,44 @@
+package bs.carpooling.repository;
+
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.mongodb.core.ReactiveMongoOperations;
+import org.springframework.data.mongodb.core.convert.DefaultMongoTypeMapper;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+import org.springframework.data.mongodb.core.mapping.MongoMappingContext;
+
+/**
+ * {@code carpooling.storage.schema=compact}: documents are stored with {@link CompactFieldNamingStrategy} field names
+ * and without the {@code _class} type key, every entity being read as its declared type. Existing documents are
+ * converted on startup by {@link CompactSchemaMigration} with {@code carpooling.storage.migrate=true}.
+ */
+@Configuration
+@ConditionalOnProperty(name = "carpooling.storage.schema", havingValue = "compact")
+public class CompactSchemaConfiguration {
+
+  @Bean
+  public static BeanPostProcessor compactSchemaPostProcessor() {
+    return new BeanPostProcessor() {
+      @Override
+      public Object postProcessBeforeInitialization(Object bean, String beanName) {
+        // Before the mapping context initializes its entities
+        if (bean instanceof MongoMappingContext) {
+          ((MongoMappingContext) bean).setFieldNamingStrategy(new CompactFieldNamingStrategy());
+        }
+        if (bean instanceof MappingMongoConverter) {
+          MappingMongoConverter converter = (MappingMongoConverter) bean;
+          converter.setTypeMapper(new DefaultMongoTypeMapper(null, converter.getMappingContext()));
+        }
+        return bean;
+      }
+    };
+  }
+
+  @Bean
+  @ConditionalOnProperty(name = "carpooling.storage.migrate", havingValue = "true")
+  public CompactSchemaMigration compactSchemaMigration(ReactiveMongoOperations mongoOperations) {
+    return new CompactSchemaMigration(mongoOperations);
+  }
+}
@@ -0,0 +1,143 @@
+package bs.carpooling.repository;
+
+import bs.carpooling.entity.*;
+import com.mongodb.MongoCommandException;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.WriteModel;
+import com.mongodb.reactivestreams.client.MongoCollection;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.data.mongodb.core.ReactiveMongoOperations;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Converts the documents of the default schema to the compact one in place, collection by collection, while mongodb
+ * keeps serving: each document is replaced only if unchanged since read, and documents changed meanwhile are picked up
+ * by the next pass. Then the indexes are created again on the compact field names.
+ * <p>
+ * Runs before the repositories read anything (see {@link CarsRepositoryConfiguration}). Nodes still on the default
+ * schema must be stopped first: they would write default field names into converted documents.
+ */
+@Slf4j
+public class CompactSchemaMigration implements InitializingBean {
+
+  private static final List<Class<?>> ENTITIES = Arrays.asList(CarEntity.class, WaitingGroupEntity.class,
+    GroupLocationEntity.class, FleetEventEntity.class, FleetSnapshotEntity.class, FleetSnapshotChunkEntity.class);
+  private static final String TYPE_KEY = "_class";
+  private static final String ID_INDEX = "_id_";
+  private static final int INDEX_NOT_FOUND = 27;
+  private static final int BATCH_SIZE = 1000;
+
+  private final ReactiveMongoOperations mongoOperations;
+  private final EntityIndexes entityIndexes;
+
+  public CompactSchemaMigration(ReactiveMongoOperations mongoOperations) {
+    this.mongoOperations = mongoOperations;
+    this.entityIndexes = new EntityIndexes(mongoOperations);
+  }
+
+  @Override
+  public void afterPropertiesSet() {
+    // Driver operations only: unlike the template, they publish no application events while the context starts
+    Long migrated = migrate().block();
+    log.info("compact schema migration converted {} documents", migrated);
+  }
+
+  /**
+   * @return documents converted.
+   */
+  public Mono<Long> migrate() {
+    return Flux.fromIterable(ENTITIES)
+      .concatMap(this::migrate)
+      .reduce(0L, Long::sum);
+  }
+
+  private Mono<Long> migrate(Class<?> entityClass) {
+    String collectionName = mongoOperations.getCollectionName(entityClass);
+    MongoCollection<Document> collection = mongoOperations.getCollection(collectionName);
+    return pass(collection)
+      // a pass that replaced nothing would only read the same documents again
+      .expand(pass -> pass.found > 0 && pass.replaced > 0 ? pass(collection) : Mono.empty())
+      .doOnNext(pass -> {
+        if (pass.found > 0 && pass.replaced == 0) {
+          log.warn("{}: {} documents changed during the migration, run it again", collectionName, pass.found);
+        }
+      })
+      .reduce(0L, (total, pass) -> total + pass.replaced)
+      .flatMap(converted -> (converted > 0 ? dropIndexes(collection) : Mono.<Void>empty())
+        .thenMany(entityIndexes.ensure(entityClass))
+        .then(Mono.just(converted)))
+      .doOnNext(converted -> log.info("{}: {} documents converted to the compact schema", collectionName, converted));
+  }
+
+  /**
+   * Drop the indexes on default field names, all but the {@code _id} one.
+   */
+  private static Mono<Void> dropIndexes(MongoCollection<Document> collection) {
+    return Flux.from(collection.listIndexes())
+      .filter(index -> !ID_INDEX.equals(index.getString("name")))
+      .concatMap(index -> Mono.from(collection.dropIndex(index.get("key", Document.class)))
+        // dropped meanwhile, by another node migrating
+        .onErrorResume(MongoCommandException.class, err -> err.getErrorCode() == INDEX_NOT_FOUND
+          ? Mono.empty() : Mono.error(err)))
+      .then();
+  }
+
+  private static class Pass {
+    long found;
+    long replaced;
+  }
+
+  private Mono<Pass> pass(MongoCollection<Document> collection) {
+    Pass pass = new Pass();
+    return Flux.from(collection.find(defaultSchema()).batchSize(BATCH_SIZE))
+      .buffer(BATCH_SIZE)
+      .concatMap(documents -> {
+        pass.found += documents.size();
+        List<WriteModel<Document>> replacements = documents.stream()
+          // the whole document as filter: replaced only if unchanged since read
+          .map(document -> new ReplaceOneModel<>(document, compact(document)))
+          .collect(Collectors.toList());
+        return Mono.from(collection.bulkWrite(replacements, new BulkWriteOptions().ordered(false)));
+      })
+      .doOnNext(result -> pass.replaced += result.getModifiedCount())
+      .then(Mono.just(pass));
+  }
+
+  private static Bson defaultSchema() {
+    List<Bson> defaultFields = new ArrayList<>();
+    defaultFields.add(Filters.exists(TYPE_KEY));
+    CompactFieldNamingStrategy.compactedFieldNames().forEach(field -> defaultFields.add(Filters.exists(field)));
+    return Filters.or(defaultFields);
+  }
+
+  static Document compact(Document document) {
+    Document compacted = new Document();
+    document.forEach((field, value) -> {
+      if (!TYPE_KEY.equals(field)) {
+        compacted.put(CompactFieldNamingStrategy.compact(field), compactValue(value));
+      }
+    });
+    return compacted;
+  }
+
+  private static Object compactValue(Object value) {
+    if (value instanceof Document) {
+      return compact((Document) value);
+    }
+    if (value instanceof List) {
+      return ((List<?>) value).stream().map(CompactSchemaMigration::compactValue).collect(Collectors.toList());
+    }
+    return value;
+  }
+}
@@ -5,9 +5,17 @@ import bs.carpooling.entity.GroupOfPeopleEntity;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
 public interface CustomizedCarsRepository {
+  Flux<CarEntity> initWith(Flux<CarEntity> carEntities);
+
   Mono<CarEntity> assignToCarWithAvailableSeats(GroupOfPeopleEntity group);
 
+  Mono<CarEntity> assignToCar(Integer carId, GroupOfPeopleEntity group);
+
   Mono<GroupOfPeopleEntity> locateGroupById(Integer groupId);
 
   Mono<CarEntity> locateCarOfGroup(Integer groupId);
@@ -18,9 +26,41 @@ public interface CustomizedCarsRepository {
 
   Flux<GroupOfPeopleEntity> findAllGroupsWaiting();
 
+  Mono<GroupOfPeopleEntity> findOldestWaiting();
+
   Flux<CarEntity> findAllNotWaiting();
 
-  Flux<GroupOfPeopleEntity> reassignOneWaitingGroup();
+  /**
+   * Reassign the head of the waiting queue of a zone ({@link CarsRepository#DEFAULT_ZONE} or null for the default one)
+   * to a car of the zone, if any fits it.
+   */
+  Flux<GroupOfPeopleEntity> reassignOneWaitingGroup(String zone);
+
+  Mono<GroupOfPeopleEntity> findFirstWaitingThatFits(String zone, int seats, int maxSkipped);
+
+  Mono<CarEntity> reassignToCar(GroupOfPeopleEntity waitingGroup, Integer carId);
+
+  Flux<GroupOfPeopleEntity> releaseStaleClaims(Date claimedBefore);
 
   Mono<CarEntity> dropoff(Integer groupId);
+
+  /**
+   * @return per group id, the car it was assigned to or the waiting queue pseudo-car; groups already assigned or
+   * waiting, and ids repeated in the list, are not journeyed again and are absent.
+   */
+  Mono<Map<Integer, CarEntity>> assignAll(List<GroupOfPeopleEntity> groups);
+
+  /**
+   * @return per group id found, the car it left or the waiting queue pseudo-car; groups not found are absent.
+   */
+  Mono<Map<Integer, CarEntity>> dropoffAll(List<Integer> groupIds);
+
+  Mono<Long> countWaiting();
+
+  Mono<Long> countWaiting(String zone);
+
+  /**
+   * @return cars per seats available, e.g. 0 for cars at full capacity.
+   */
+  Mono<Map<Integer, Long>> countCarsBySeatsAvailable();
 }
@@ -1,180 +1,775 @@
 package bs.carpooling.repository;
 
+import bs.carpooling.allocation.AllocationPolicy;
+import bs.carpooling.allocation.BestFitPolicy;
 import bs.carpooling.entity.CarEntity;
+import bs.carpooling.entity.GroupLocationEntity;
 import bs.carpooling.entity.GroupOfPeopleEntity;
-import lombok.NonNull;
-import lombok.RequiredArgsConstructor;
+import bs.carpooling.entity.WaitingGroupEntity;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.WriteModel;
+import com.mongodb.reactivestreams.client.FindPublisher;
+import com.mongodb.reactivestreams.client.MongoCollection;
 import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.bson.codecs.configuration.CodecRegistries;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Sort;
 import org.springframework.data.mongodb.core.FindAndModifyOptions;
 import org.springframework.data.mongodb.core.ReactiveMongoOperations;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.convert.QueryMapper;
+import org.springframework.data.mongodb.core.convert.UpdateMapper;
+import org.springframework.data.mongodb.core.mapping.MongoMappingContext;
+import org.springframework.data.mongodb.core.mapping.MongoPersistentEntity;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.data.mongodb.core.query.Update;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.util.function.Tuple2;
+import reactor.util.function.Tuples;
 
 import java.time.Duration;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
+import static bs.carpooling.metrics.CarPoolingMetrics.optimisticFailure;
+import static bs.carpooling.metrics.CarPoolingMetrics.reassignmentAborted;
+import static bs.carpooling.repository.CarsRepository.DEFAULT_ZONE;
 import static bs.carpooling.repository.CarsRepository.WAITING_QUEUE;
 import static org.springframework.data.domain.Sort.Order.asc;
 import static org.springframework.data.domain.Sort.by;
+import static org.springframework.data.mongodb.core.aggregation.Aggregation.group;
+import static org.springframework.data.mongodb.core.aggregation.Aggregation.newAggregation;
 import static org.springframework.data.mongodb.core.query.Query.query;
 
-@RequiredArgsConstructor
 @Slf4j
 public class CustomizedCarsRepositoryImpl implements CustomizedCarsRepository {
 
   private static final String SEATS_AVAILABLE = "seatsAvailable";
   private static final String GROUPS = "groups";
+  private static final String INSERT_DATE = "insertDate";
+  private static final String PEOPLE = "people";
+  private static final String VERSION = "version";
+  private static final String REASSIGNING_SINCE = "reassigningSince";
+  private static final String ZONE = "zone";
+  private static final String SKIPPED = "skipped";
+
+  private final ReactiveMongoOperations mongoOperations;
+  private final QueryMapper queryMapper;
+  private final UpdateMapper updateMapper;
+  private final MongoPersistentEntity<?> carEntity;
+  private final CodecRegistry carCodecs;
+  private final EntityIndexes entityIndexes;
+  private final int bulkSize;
+  private final int bulkParallelism;
+  private final AllocationPolicy allocationPolicy;
+
+  public CustomizedCarsRepositoryImpl(ReactiveMongoOperations mongoOperations, int bulkSize, int bulkParallelism) {
+    this(mongoOperations, bulkSize, bulkParallelism, new BestFitPolicy());
+  }
+
+  /**
+   * @param allocationPolicy best fit if there is no policy bean (data slice tests).
+   */
+  @Autowired
+  public CustomizedCarsRepositoryImpl(ReactiveMongoOperations mongoOperations,
+                                      @Value("${carpooling.cars.bulk-size:1000}") int bulkSize,
+                                      @Value("${carpooling.cars.bulk-parallelism:4}") int bulkParallelism,
+                                      ObjectProvider<AllocationPolicy> allocationPolicy) {
+    this(mongoOperations, bulkSize, bulkParallelism, allocationPolicy.getIfAvailable(BestFitPolicy::new));
+  }
+
+  public CustomizedCarsRepositoryImpl(ReactiveMongoOperations mongoOperations, int bulkSize, int bulkParallelism,
+                                      AllocationPolicy allocationPolicy) {
+    this.mongoOperations = mongoOperations;
+    MongoMappingContext mappingContext = (MongoMappingContext) mongoOperations.getConverter().getMappingContext();
+    this.entityIndexes = new EntityIndexes(mongoOperations);
+    // Bulk writes go to the driver: map them as the template maps its own queries and updates
+    this.queryMapper = new QueryMapper(mongoOperations.getConverter());
+    this.updateMapper = new UpdateMapper(mongoOperations.getConverter());
+    this.carEntity = mappingContext.getRequiredPersistentEntity(CarEntity.class);
+    this.carCodecs = CodecRegistries.fromCodecs(new CarEntityCodec(mongoOperations.getConverter()));
+    this.bulkSize = bulkSize;
+    this.bulkParallelism = bulkParallelism;
+    this.allocationPolicy = allocationPolicy;
+  }
+
+  @Override
+  public Flux<CarEntity> initWith(Flux<CarEntity> carEntities) {
+    return recreate(CarEntity.class)
+      .then(recreate(WaitingGroupEntity.class))
+      .then(recreate(GroupLocationEntity.class))
+      // one insertMany per chunk, a few chunks in flight while the next ones are read
+      .thenMany(carEntities
+        .buffer(bulkSize)
+        .flatMap(this::insertCars, bulkParallelism));
+  }
 
-  private final @NonNull ReactiveMongoOperations mongoOperations;
+  private Flux<CarEntity> insertCars(List<CarEntity> cars) {
+    // New cars start at version 0, as the template would set them
+    cars.stream().filter(car -> car.getVersion() == null).forEach(car -> car.setVersion(0L));
+    return Mono.from(cars().insertMany(cars)).thenMany(Flux.fromIterable(cars));
+  }
+
+  private Mono<Void> recreate(Class<?> entityClass) {
+    // Dropping is O(1) whatever the size of the collection, but also drops its indexes: create them again
+    return mongoOperations.dropCollection(entityClass)
+      .then(mongoOperations.createCollection(entityClass))
+      .thenMany(entityIndexes.ensure(entityClass))
+      .then();
+  }
 
   @Override
   public Mono<CarEntity> assignToCarWithAvailableSeats(GroupOfPeopleEntity group) {
-    return groupEntersCarWithSeatsAvailable(group, mongoOperations);
+    return groupEntersCar(carWithSeatsAvailable(group.getZone(), group.getPeople()), group);
+  }
+
+  @Override
+  public Mono<CarEntity> assignToCar(Integer carId, GroupOfPeopleEntity group) {
+    return groupEntersCar(carWithSeatsAvailable(carId, group.getPeople()), group);
+  }
+
+  private Query carWithSeatsAvailable(Integer carId, int people) {
+    return query(Criteria.where("id").is(carId).and(SEATS_AVAILABLE).gte(people));
   }
 
-  private Mono<CarEntity> groupEntersCarWithSeatsAvailable(GroupOfPeopleEntity group, ReactiveMongoOperations action) {
-    return action
-      .findAndModify(carWithSeatsAvailable(group.getPeople()), enterCar(group), new FindAndModifyOptions().returnNew(true), CarEntity.class);
+  private Mono<CarEntity> groupEntersCar(Query car, GroupOfPeopleEntity group) {
+    return findAndModifyCar(car, enterCar(group))
+      .flatMap(assignedCar -> mongoOperations.save(location(group, assignedCar)).thenReturn(assignedCar));
   }
 
-  private Query carWithSeatsAvailable(int people) {
-    return query(Criteria.where(SEATS_AVAILABLE).gte(people)).with(by(asc(SEATS_AVAILABLE)));
+  private GroupLocationEntity location(GroupOfPeopleEntity group, CarEntity car) {
+    return new GroupLocationEntity(group.getId(), car.getId(), group.getPeople(), group.getInsertDate());
+  }
+
+  private Query carWithSeatsAvailable(String zone, int people) {
+    // Covered by the cars "zone-seats" index (but the first-fit order), null being the default zone (no zone field)
+    return query(new Criteria().andOperator(zoneIs(zone), allocationPolicy.cars(people))).with(allocationPolicy.order());
   }
 
   private Update enterCar(GroupOfPeopleEntity waitingGroup) {
     return new Update()
       .inc(SEATS_AVAILABLE, -waitingGroup.getPeople())
+      .inc(VERSION, 1)
       .addToSet(GROUPS).value(waitingGroup);
   }
 
   @Override
   public Mono<GroupOfPeopleEntity> locateGroupById(Integer groupId) {
-    return locateCarOfGroup(groupId)
-      .flatMapMany(car -> Flux.fromIterable(car.getGroups()))
-      .filter(group -> group.getId().equals(groupId))
-      .next()
-      ;
+    return mongoOperations.findById(groupId, GroupLocationEntity.class)
+      .map(this::toGroup);
   }
 
+  private GroupOfPeopleEntity toGroup(GroupLocationEntity location) {
+    return new GroupOfPeopleEntity(location.getId(), location.getPeople(), location.getInsertDate());
+  }
+
+  /**
+   * @return car with only id, seatsAvailable, version, zone and the located group, whatever the other groups in the
+   * car.
+   */
   @Override
   public Mono<CarEntity> locateCarOfGroup(Integer groupId) {
-    return mongoOperations.findOne(groupById(groupId), CarEntity.class);
+    return mongoOperations.findById(groupId, GroupLocationEntity.class)
+      .flatMap(location -> {
+        Query car = groupInCar(location);
+        car.fields().include(SEATS_AVAILABLE).include(VERSION).include(ZONE).elemMatch(GROUPS, Criteria.where("id").is(groupId));
+        return findCars(car).next();
+      });
   }
 
-  private Query groupById(Integer groupId) {
+  private Query groupInCar(GroupLocationEntity location) {
+    // The car is found by id, the group condition only guards against a stale location
     return query(Criteria
-      .where("groups.id").is(groupId)
-      .and("id").ne(WAITING_QUEUE));
+      .where("id").is(location.getCarId())
+      .and("groups.id").is(location.getId()));
   }
 
   @Override
   public Mono<CarEntity> putInWaitingQueue(GroupOfPeopleEntity group) {
-    Update enterWaitingQueue = new Update().addToSet(GROUPS).value(group);
-    return mongoOperations.findAndModify(waitingQueue(), enterWaitingQueue, new FindAndModifyOptions().returnNew(true), CarEntity.class);
+    return mongoOperations.insert(toWaitingGroup(group))
+      .map(waitingGroup -> waitingQueue(group.getZone(), Collections.singletonList(group)));
   }
 
-  private Query waitingQueue() {
-    return query(Criteria
-      .where("id").is(WAITING_QUEUE));
+  // Pseudo-car that tells callers the group is in the waiting queue of its zone
+  private CarEntity waitingQueue(String zone, List<GroupOfPeopleEntity> groups) {
+    return CarEntity.builder().id(WAITING_QUEUE).seatsAvailable(0).groups(groups).zone(zone).build();
+  }
+
+  private WaitingGroupEntity toWaitingGroup(GroupOfPeopleEntity group) {
+    return new WaitingGroupEntity(group.getId(), group.getPeople(), group.getInsertDate(), null, group.getZone(), null);
+  }
+
+  private GroupOfPeopleEntity toGroup(WaitingGroupEntity waitingGroup) {
+    return new GroupOfPeopleEntity(waitingGroup.getId(), waitingGroup.getPeople(), waitingGroup.getInsertDate(),
+      waitingGroup.getZone());
   }
 
   @Override
   public Mono<GroupOfPeopleEntity> findWaitingById(Integer groupId) {
-    return findWaitingGroups()
-      .filter(group -> group.getId().equals(groupId))
-      .next()
-      ;
+    // Point read on the waiting group, without its reassignment claim
+    Query waitingGroup = waitingGroup(groupId);
+    waitingGroup.fields().include(PEOPLE).include(INSERT_DATE).include(ZONE);
+    return mongoOperations.findOne(waitingGroup, WaitingGroupEntity.class)
+      .map(this::toGroup);
   }
 
   @Override
   public Flux<GroupOfPeopleEntity> findAllGroupsWaiting() {
-    return findWaitingGroups();
+    // Every zone at once, sorted in memory
+    return mongoOperations.find(new Query().with(fifo()), WaitingGroupEntity.class)
+      .map(this::toGroup);
   }
 
-  private Flux<GroupOfPeopleEntity> findWaitingGroups() {
-    return findWaitingQueue()
-      .flatMapMany(car -> Flux.fromIterable(car.getGroups()));
+  @Override
+  public Mono<GroupOfPeopleEntity> findOldestWaiting() {
+    // The oldest of the heads of the waiting queues
+    return waitingZones(new Criteria())
+      .flatMap(zone -> mongoOperations.findOne(waitingQueueInOrder(zone).limit(1), WaitingGroupEntity.class))
+      .sort(inFifoOrder())
+      .next()
+      .map(this::toGroup);
   }
 
-  private Mono<CarEntity> findWaitingQueue() {
-    return mongoOperations.findOne(waitingQueue(), CarEntity.class);
+  /**
+   * @return the zones with waiting groups matching the criteria, plus the default zone (its groups have no zone field,
+   * which distinct leaves out).
+   */
+  private Flux<String> waitingZones(Criteria criteria) {
+    return mongoOperations.findDistinct(query(criteria), ZONE, WaitingGroupEntity.class, String.class)
+      .startWith(DEFAULT_ZONE);
+  }
+
+  private Query waitingQueueInOrder(String zone) {
+    // Covered by the waitingGroups "zone-fifo" index
+    return query(zoneIs(zone)).with(fifo());
+  }
+
+  private static Sort fifo() {
+    return by(asc(INSERT_DATE), asc("id"));
+  }
+
+  private static Comparator<WaitingGroupEntity> inFifoOrder() {
+    return Comparator.comparing(WaitingGroupEntity::getInsertDate).thenComparing(WaitingGroupEntity::getId);
+  }
+
+  private static Criteria zoneIs(String zone) {
+    return Criteria.where(ZONE).is(DEFAULT_ZONE.equals(zone) ? null : zone);
   }
 
   @Override
   public Flux<CarEntity> findAllNotWaiting() {
-    return mongoOperations.find(query(Criteria.where("id").ne(WAITING_QUEUE)), CarEntity.class);
+    return findCars(new Query());
   }
 
   @Override
-  public Flux<GroupOfPeopleEntity> reassignOneWaitingGroup() {
-    // Thread-safety: optimistic locking with transaction, does rollback in case of failure
+  public Flux<GroupOfPeopleEntity> reassignOneWaitingGroup(String zone) {
+    // Thread-safety: the waiting group is claimed before moving it, see reassign()
 
-    return firstWaitingGroup()
+    return firstWaitingGroup(zone)
       .flatMapMany(this::reassign)
+      .doOnError(err -> optimisticFailure("reassignOneWaitingGroup"))
       // retry failed optimistic concurrent executions of reassignOneWaitingGroup
       .retryBackoff(3, Duration.ofMillis(200))
       ;
   }
 
-  private Mono<GroupOfPeopleEntity> firstWaitingGroup() {
-    return findWaitingQueue()
-      .flatMap(car -> Mono.justOrEmpty(car.getGroups().stream().findFirst()));
+  private Mono<GroupOfPeopleEntity> firstWaitingGroup(String zone) {
+    return mongoOperations.findOne(waitingQueueInOrder(zone).addCriteria(unclaimed()).limit(1), WaitingGroupEntity.class)
+      .map(this::toGroup);
   }
 
-  private Flux<GroupOfPeopleEntity> reassign(GroupOfPeopleEntity waitingGroup) {
-    // Thread-safety: transaction needed to atomically update two documents (waitingQueue and carWithSeatsAvailable)
+  private Criteria unclaimed() {
+    return Criteria.where(REASSIGNING_SINCE).is(null);
+  }
 
-    return mongoOperations.inTransaction()
-      .execute(action -> groupEntersCarWithSeatsAvailable(waitingGroup, action)
-        .flatMap(car -> groupLeavesWaitingQueue(waitingGroup, action)
-          .switchIfEmpty(Mono.error(new RuntimeException("Waiting group not found on reassigning it, rolling back transaction"))))
-        .flatMap(car -> Mono.just(waitingGroup))
-      );
+  private Mono<GroupOfPeopleEntity> reassign(GroupOfPeopleEntity waitingGroup) {
+    return reassign(waitingGroup, carWithSeatsAvailable(waitingGroup.getZone(), waitingGroup.getPeople()))
+      .map(car -> waitingGroup);
   }
 
-  private Mono<CarEntity> groupLeavesWaitingQueue(GroupOfPeopleEntity group, ReactiveMongoOperations action) {
-    return action
-      .findAndModify(waitingGroup(group.getId()), leaveWaitingQueue(group), new FindAndModifyOptions().returnNew(true), CarEntity.class);
+  /**
+   * Moves a waiting group to a car without a transaction, through single document updates: the waiting group is
+   * claimed (WAITING -> CLAIMED, {@code reassigningSince} set), enters the car, and is removed from the waiting queue
+   * only if still claimed by this reassignment (-> ASSIGNED). A claim lost meanwhile (dropped off, or released by
+   * {@link #releaseStaleClaims(Date)}) undoes the assignment.
+   */
+  private Mono<CarEntity> reassign(GroupOfPeopleEntity waitingGroup, Query carWithSeatsAvailable) {
+    Integer groupId = waitingGroup.getId();
+    Date claimedAt = new Date();
+
+    return claim(groupId, claimedAt)
+      .switchIfEmpty(Mono.defer(() -> {
+        reassignmentAborted("not-claimable");
+        return Mono.error(new RuntimeException("Waiting group not claimable on reassigning it, claimed or dropped off meanwhile"));
+      }))
+      .then(groupEntersCar(carWithSeatsAvailable.addCriteria(notInCar(groupId)), waitingGroup)
+        .flatMap(car -> groupLeavesClaimedWaitingQueue(groupId, claimedAt)
+          .flatMap(left -> left
+            ? Mono.just(car)
+            : undoAssignment(waitingGroup, car)
+            .doOnSuccess(undone -> reassignmentAborted("claim-lost"))
+            .then(Mono.error(new RuntimeException("Waiting group claim lost on reassigning it, assignment undone")))))
+        .switchIfEmpty(Mono.defer(() -> release(groupId, claimedAt)).then(Mono.empty())));
   }
 
-  private Query waitingGroup(Integer waitingGroupId) {
-    return query(Criteria
-      .where("id").is(WAITING_QUEUE)
-      .and("groups.id").is(waitingGroupId));
+  private Criteria notInCar(Integer groupId) {
+    // Same as groups.id $ne, which mongo-java-server (benchmarks) does not match against arrays
+    return Criteria.where(GROUPS).not().elemMatch(Criteria.where("id").is(groupId));
+  }
+
+  private Mono<WaitingGroupEntity> claim(Integer groupId, Date claimedAt) {
+    return mongoOperations.findAndModify(waitingGroup(groupId).addCriteria(unclaimed()),
+      new Update().set(REASSIGNING_SINCE, claimedAt), new FindAndModifyOptions().returnNew(true), WaitingGroupEntity.class);
+  }
+
+  private Query claimed(Integer groupId, Date claimedAt) {
+    return waitingGroup(groupId).addCriteria(Criteria.where(REASSIGNING_SINCE).is(claimedAt));
   }
 
-  private Update leaveWaitingQueue(GroupOfPeopleEntity waitingGroup) {
-    return new Update().pull(GROUPS, waitingGroup);
+  private Mono<Void> release(Integer groupId, Date claimedAt) {
+    return mongoOperations.updateFirst(claimed(groupId, claimedAt), new Update().unset(REASSIGNING_SINCE), WaitingGroupEntity.class)
+      .then();
+  }
+
+  private Mono<Boolean> groupLeavesClaimedWaitingQueue(Integer groupId, Date claimedAt) {
+    return mongoOperations.remove(claimed(groupId, claimedAt), WaitingGroupEntity.class)
+      .map(result -> result.getDeletedCount() > 0);
+  }
+
+  private Mono<Void> undoAssignment(GroupOfPeopleEntity group, CarEntity car) {
+    GroupLocationEntity location = location(group, car);
+    return mongoOperations.updateFirst(groupInCar(location), leaveCar(location), CarEntity.class)
+      .then(mongoOperations.remove(query(Criteria.where("id").is(group.getId()).and("carId").is(car.getId())), GroupLocationEntity.class))
+      .then();
   }
 
   @Override
-  public Mono<CarEntity> dropoff(Integer groupId) {
-    Mono<GroupOfPeopleEntity> groupToRemove = findGroupById(groupId);
+  public Flux<GroupOfPeopleEntity> releaseStaleClaims(Date claimedBefore) {
+    // Only claimed groups are in the sparse "reassigning" index
+    return mongoOperations.find(query(Criteria.where(REASSIGNING_SINCE).lt(claimedBefore)), WaitingGroupEntity.class)
+      .concatMap(this::recoverClaim);
+  }
 
-    return groupToRemove
-      .flatMap(group ->
-        groupLeavesWaitingQueue(group, mongoOperations)
-          .switchIfEmpty(groupLeavesCar(group))
-      );
+  private Mono<GroupOfPeopleEntity> recoverClaim(WaitingGroupEntity claimedGroup) {
+    // The reassignment stopped after the group entered a car: complete it, otherwise the group waits unclaimed again.
+    // Querying groups.id scans the cars, acceptable since it only happens after a reassignment failed.
+    GroupOfPeopleEntity group = toGroup(claimedGroup);
+    Query carOfGroup = query(Criteria.where("groups.id").is(group.getId()));
+    carOfGroup.fields().include("id");
+    return findCars(carOfGroup).next()
+      .flatMap(car -> mongoOperations.save(location(group, car))
+        .then(groupLeavesClaimedWaitingQueue(group.getId(), claimedGroup.getReassigningSince())))
+      .switchIfEmpty(release(group.getId(), claimedGroup.getReassigningSince()).then(Mono.empty()))
+      .thenReturn(group);
   }
 
-  private Mono<GroupOfPeopleEntity> findGroupById(Integer groupId) {
-    return findWaitingGroups()
-      .filter(group -> group.getId().equals(groupId))
+  @Override
+  public Mono<GroupOfPeopleEntity> findFirstWaitingThatFits(String zone, int seats, int maxSkipped) {
+    // One index seek per group size that fits (see waitingGroups "zone-size" index), then the oldest of those groups.
+    // Claimed groups are only skipped after the seek, so that the distinct sizes are read from the index alone.
+    return mongoOperations.findDistinct(query(zoneIs(zone)).addCriteria(Criteria.where(PEOPLE).lte(seats)), PEOPLE, WaitingGroupEntity.class, Integer.class)
+      .filter(people -> allocationPolicy.fits(seats, people))
+      .flatMap(people -> mongoOperations.findOne(waitingQueueInOrder(zone).addCriteria(Criteria.where(PEOPLE).is(people)).addCriteria(unclaimed()), WaitingGroupEntity.class))
+      .sort(inFifoOrder())
       .next()
-      .switchIfEmpty(locateGroupById(groupId))
-      ;
+      // held for the groups ahead when there are too many of them, or one of them was skipped too often already
+      .filterWhen(waitingGroup -> mongoOperations.find(groupsAhead(waitingGroup).limit(maxSkipped + 1), WaitingGroupEntity.class)
+        .collectList()
+        .map(ahead -> ahead.size() <= maxSkipped && ahead.stream().allMatch(group -> skipped(group) < maxSkipped)))
+      .map(this::toGroup);
+  }
+
+  private Query groupsAhead(WaitingGroupEntity waitingGroup) {
+    Query ahead = query(zoneIs(waitingGroup.getZone())).addCriteria(new Criteria().orOperator(
+      Criteria.where(INSERT_DATE).lt(waitingGroup.getInsertDate()),
+      Criteria.where(INSERT_DATE).is(waitingGroup.getInsertDate()).and("id").lt(waitingGroup.getId())));
+    ahead.fields().include("id").include(SKIPPED);
+    return ahead;
+  }
+
+  private static int skipped(WaitingGroupEntity waitingGroup) {
+    return waitingGroup.getSkipped() != null ? waitingGroup.getSkipped() : 0;
+  }
+
+  /**
+   * The groups still waiting ahead of the group were skipped once more: at most {@code maxSkipped} of them, checked by
+   * {@link #findFirstWaitingThatFits(String, int, int)}.
+   */
+  @Override
+  public Mono<CarEntity> reassignToCar(GroupOfPeopleEntity waitingGroup, Integer carId) {
+    return reassign(waitingGroup, carWithSeatsAvailable(carId, waitingGroup.getPeople()))
+      .flatMap(car -> mongoOperations.updateMulti(groupsAhead(toWaitingGroup(waitingGroup)), new Update().inc(SKIPPED, 1), WaitingGroupEntity.class)
+        .thenReturn(car));
   }
 
-  private Mono<CarEntity> groupLeavesCar(GroupOfPeopleEntity group) {
+  private Mono<CarEntity> groupLeavesWaitingQueue(Integer groupId) {
     return mongoOperations
-      .findAndModify(groupById(group.getId()), leaveCar(group), new FindAndModifyOptions().returnNew(true), CarEntity.class);
+      .findAndRemove(waitingGroup(groupId), WaitingGroupEntity.class)
+      .map(waitingGroup -> waitingQueue(waitingGroup.getZone(), Collections.emptyList()));
+  }
+
+  private Query waitingGroup(Integer waitingGroupId) {
+    return query(Criteria
+      .where("id").is(waitingGroupId));
+  }
+
+  /**
+   * Two point writes: the location tells whether the group is in a car, and carries the people that then leave that
+   * car in one update, guarded by the group so its seats are freed only once. The location is removed afterwards, so
+   * a dropoff stopped in between (failed car write, node down) still finds the group, and a retry completes it.
+   *
+   * @return car with only id, seatsAvailable and version if the group was in a car, the waiting queue pseudo-car if
+   * it was waiting, or empty if not found.
+   */
+  @Override
+  public Mono<CarEntity> dropoff(Integer groupId) {
+    return mongoOperations.findById(groupId, GroupLocationEntity.class)
+      .flatMap(location -> groupLeavesCar(location)
+        .flatMap(car -> removeLocation(location).thenReturn(car))
+        .switchIfEmpty(Mono.defer(() -> groupLeftCar(location))))
+      .switchIfEmpty(groupLeavesWaitingQueue(groupId));
+  }
+
+  /**
+   * The group already left its car, but a previous dropoff stopped before removing its location: remove it now.
+   *
+   * @return the car, if this dropoff removed the location.
+   */
+  private Mono<CarEntity> groupLeftCar(GroupLocationEntity location) {
+    Query car = query(Criteria.where("id").is(location.getCarId()));
+    car.fields().include(SEATS_AVAILABLE).include(VERSION).include(ZONE);
+    return removeLocation(location)
+      .filter(removed -> removed)
+      .flatMap(removed -> findCars(car).next());
+  }
+
+  private Mono<Boolean> removeLocation(GroupLocationEntity location) {
+    Query groupLocation = query(Criteria.where("id").is(location.getId()).and("carId").is(location.getCarId()));
+    return mongoOperations.remove(groupLocation, GroupLocationEntity.class)
+      .map(result -> result.getDeletedCount() > 0);
+  }
+
+  private Mono<CarEntity> groupLeavesCar(GroupLocationEntity location) {
+    // Guarded by the group so a concurrent dropoffAll() of the same group frees its seats only once
+    Query car = groupInCar(location);
+    car.fields().include(SEATS_AVAILABLE).include(VERSION).include(ZONE);
+    return findAndModifyCar(car, leaveCar(location));
+  }
+
+  private Update leaveCar(GroupLocationEntity location) {
+    return new Update().inc(SEATS_AVAILABLE, location.getPeople()).inc(VERSION, 1).pull(GROUPS, toGroup(location));
+  }
+
+  /**
+   * Plans the groups, biggest first, on the car the allocation policy prefers among a few candidate cars of their zone
+   * (at most one query per zone and group size), then writes every planned car in one unordered bulk write. Car updates
+   * are guarded by the seats they need, so a car taken meanwhile only makes its groups fall back to
+   * {@link #assignToCarWithAvailableSeats(GroupOfPeopleEntity)}.
+   */
+  @Override
+  public Mono<Map<Integer, CarEntity>> assignAll(List<GroupOfPeopleEntity> groups) {
+    // Known and repeated ids are left out before any car is written, their locations would not be unique
+    List<Integer> groupIds = groups.stream().map(GroupOfPeopleEntity::getId).collect(Collectors.toList());
+    Query knownGroups = query(Criteria.where("id").in(groupIds));
+    knownGroups.fields().include("id");
+    return mongoOperations.find(knownGroups, GroupLocationEntity.class).map(GroupLocationEntity::getId)
+      .concatWith(mongoOperations.find(knownGroups, WaitingGroupEntity.class).map(WaitingGroupEntity::getId))
+      .collect(Collectors.toCollection(HashSet::new))
+      .flatMap(known -> {
+        List<GroupOfPeopleEntity> newGroups = groups.stream()
+          .filter(group -> known.add(group.getId()))
+          .collect(Collectors.toList());
+        return newGroups.isEmpty() ? Mono.just(Collections.<Integer, CarEntity>emptyMap()) : assignAllNew(newGroups);
+      });
+  }
+
+  private Mono<Map<Integer, CarEntity>> assignAllNew(List<GroupOfPeopleEntity> groups) {
+    Map<String, Map<Integer, Long>> groupsByZoneAndSize = groups.stream()
+      .collect(Collectors.groupingBy(CustomizedCarsRepositoryImpl::zoneOf,
+        Collectors.groupingBy(GroupOfPeopleEntity::getPeople, TreeMap::new, Collectors.counting())));
+
+    return Flux.fromIterable(groupsByZoneAndSize.entrySet())
+      .flatMap(zone -> Flux.fromIterable(zone.getValue().entrySet())
+        .map(size -> Tuples.of(zone.getKey(), size.getKey(), size.getValue())))
+      .flatMap(size -> candidateCars(size.getT1(), size.getT2(), size.getT3())
+        .collectList()
+        .map(cars -> Tuples.of(size.getT1(), size.getT2(), cars)))
+      .collectList()
+      .flatMap(candidates -> {
+        SeatPlan plan = new SeatPlan(allocationPolicy);
+        Map<String, Set<Integer>> sizesWithoutCar = new HashMap<>();
+        candidates.forEach(candidate -> {
+          candidate.getT3().forEach(car -> plan.addCar(candidate.getT1(), car));
+          if (candidate.getT3().isEmpty()) {
+            sizesWithoutCar.computeIfAbsent(candidate.getT1(), zone -> new HashSet<>()).add(candidate.getT2());
+          }
+        });
+        // Biggest first (best fit decreasing by default): small groups fill the seats left by big ones instead of
+        // fragmenting the cars first
+        List<GroupOfPeopleEntity> unplanned = groups.stream()
+          .sorted(Comparator.comparing(GroupOfPeopleEntity::getPeople).reversed())
+          .filter(group -> !plan.place(zoneOf(group), group))
+          .collect(Collectors.toList());
+        return groupsEnterCars(plan).flatMap(assigned -> {
+          Map<Integer, CarEntity> outcomes = new HashMap<>(assigned);
+          List<GroupOfPeopleEntity> mustWait = new ArrayList<>();
+          List<GroupOfPeopleEntity> retry = new ArrayList<>();
+          plan.groups().filter(group -> !assigned.containsKey(group.getId())).forEach(retry::add);
+          // No car of the zone had seats for that size when planning: straight to the waiting queue
+          unplanned.forEach(group -> (sizesWithoutCar.getOrDefault(zoneOf(group), Collections.emptySet())
+            .contains(group.getPeople()) ? mustWait : retry).add(group));
+          return groupsWait(mustWait)
+            .doOnNext(waiting -> outcomes.put(waiting.getId(), waitingQueue(waiting.getZone(), Collections.singletonList(waiting))))
+            .thenMany(Flux.fromIterable(retry)
+              .concatMap(group -> assignToCarWithAvailableSeats(group)
+                .switchIfEmpty(putInWaitingQueue(group))
+                .doOnNext(car -> outcomes.put(group.getId(), car))))
+            .then(Mono.just(outcomes));
+        });
+      });
+  }
+
+  private static String zoneOf(GroupOfPeopleEntity group) {
+    return group.getZone() != null ? group.getZone() : DEFAULT_ZONE;
+  }
+
+  private Flux<CarEntity> candidateCars(String zone, int people, long groups) {
+    Query cars = carWithSeatsAvailable(zone, people).limit((int) groups);
+    cars.fields().include(SEATS_AVAILABLE);
+    return findCars(cars);
+  }
+
+  /**
+   * @return the planned groups that entered their car, and the car (id, seatsAvailable and version) after the bulk
+   * write.
+   */
+  private Mono<Map<Integer, CarEntity>> groupsEnterCars(SeatPlan plan) {
+    if (plan.groupsByCar.isEmpty()) {
+      return Mono.just(Collections.emptyMap());
+    }
+    List<WriteModel<Document>> writes = new ArrayList<>();
+    plan.groupsByCar.forEach((carId, carGroups) -> {
+      int people = carGroups.stream().mapToInt(GroupOfPeopleEntity::getPeople).sum();
+      Update enterCar = new Update()
+        .inc(SEATS_AVAILABLE, -people)
+        .inc(VERSION, 1)
+        .addToSet(GROUPS).each(carGroups.toArray());
+      writes.add(new UpdateOneModel<>(mapped(carWithSeatsAvailable(carId, people)), mapped(enterCar)));
+    });
+
+    Query plannedCars = query(Criteria.where("id").in(plan.groupsByCar.keySet()));
+    plannedCars.fields().include(SEATS_AVAILABLE).include(VERSION).include(ZONE).include("groups.id");
+    return bulkWrite(CarEntity.class, writes)
+      // Read back which car updates were applied, instead of trusting the matched count of the whole bulk
+      .thenMany(findCars(plannedCars))
+      .collectList()
+      .flatMap(cars -> {
+        Map<Integer, CarEntity> assigned = new HashMap<>();
+        List<GroupLocationEntity> locations = new ArrayList<>();
+        cars.forEach(car -> plan.groupsByCar.get(car.getId()).stream()
+          .filter(group -> car.getGroups() != null && car.getGroups().contains(group))
+          .forEach(group -> {
+            CarEntity assignedCar = CarEntity.builder().id(car.getId()).seatsAvailable(car.getSeatsAvailable())
+              .version(car.getVersion()).zone(car.getZone()).build();
+            assigned.put(group.getId(), assignedCar);
+            locations.add(location(group, assignedCar));
+          }));
+        return locations.isEmpty()
+          ? Mono.just(assigned)
+          : mongoOperations.insertAll(locations).then(Mono.just(assigned));
+      });
+  }
+
+  private Flux<GroupOfPeopleEntity> groupsWait(List<GroupOfPeopleEntity> groups) {
+    if (groups.isEmpty()) {
+      return Flux.empty();
+    }
+    return mongoOperations.insertAll(groups.stream().map(this::toWaitingGroup).collect(Collectors.toList()))
+      .map(this::toGroup);
+  }
+
+  /**
+   * @return groups waiting in every zone, claimed ones included.
+   */
+  @Override
+  public Mono<Long> countWaiting() {
+    return mongoOperations.count(new Query(), WaitingGroupEntity.class);
+  }
+
+  @Override
+  public Mono<Long> countWaiting(String zone) {
+    return mongoOperations.count(query(zoneIs(zone)), WaitingGroupEntity.class);
+  }
+
+  @Override
+  public Mono<Map<Integer, Long>> countCarsBySeatsAvailable() {
+    Aggregation carsBySeats = newAggregation(group(SEATS_AVAILABLE).count().as("cars"));
+    return mongoOperations.aggregate(carsBySeats, CarEntity.class, Document.class)
+      .collectMap(seats -> seats.getInteger("_id"), seats -> seats.get("cars", Number.class).longValue());
+  }
+
+  /**
+   * Cars are updated before the locations are removed: the car update is guarded by the group, so a concurrent
+   * {@link #dropoff(Integer)} of the same group cannot free its seats twice.
+   *
+   * @return per group found, the car (only id, seatsAvailable and version) it left, or the waiting queue pseudo-car.
+   */
+  @Override
+  public Mono<Map<Integer, CarEntity>> dropoffAll(List<Integer> groupIds) {
+    return mongoOperations.find(query(Criteria.where("id").in(groupIds)), GroupLocationEntity.class)
+      .collectList()
+      .flatMap(locations -> {
+        Set<Integer> located = locations.stream().map(GroupLocationEntity::getId).collect(Collectors.toSet());
+        List<Integer> notLocated = groupIds.stream().filter(id -> !located.contains(id)).collect(Collectors.toList());
+        return groupsLeaveCars(locations)
+          .flatMap(droppedOff -> groupsLeaveWaitingQueue(notLocated)
+            .map(leftWaitingQueue -> {
+              Map<Integer, CarEntity> outcomes = new HashMap<>(droppedOff);
+              outcomes.putAll(leftWaitingQueue);
+              return outcomes;
+            }));
+      });
+  }
+
+  private Mono<Map<Integer, CarEntity>> groupsLeaveCars(List<GroupLocationEntity> locations) {
+    if (locations.isEmpty()) {
+      return Mono.just(Collections.emptyMap());
+    }
+    List<WriteModel<Document>> writes = locations.stream()
+      .map(location -> new UpdateOneModel<Document>(mapped(groupInCar(location)), mapped(leaveCar(location))))
+      .collect(Collectors.toList());
+    Set<Integer> carIds = locations.stream().map(GroupLocationEntity::getCarId).collect(Collectors.toSet());
+    Query cars = query(Criteria.where("id").in(carIds));
+    cars.fields().include(SEATS_AVAILABLE).include(VERSION).include(ZONE);
+    Query groupLocations = query(Criteria.where("id").in(locations.stream().map(GroupLocationEntity::getId).collect(Collectors.toList())));
+
+    return bulkWrite(CarEntity.class, writes)
+      .then(mongoOperations.remove(groupLocations, GroupLocationEntity.class))
+      .thenMany(findCars(cars))
+      .collectMap(CarEntity::getId)
+      .map(carsById -> locations.stream()
+        .filter(location -> carsById.containsKey(location.getCarId()))
+        .collect(Collectors.toMap(GroupLocationEntity::getId, location -> carsById.get(location.getCarId()))));
+  }
+
+  private Mono<Map<Integer, CarEntity>> groupsLeaveWaitingQueue(List<Integer> groupIds) {
+    if (groupIds.isEmpty()) {
+      return Mono.just(Collections.emptyMap());
+    }
+    Query waitingGroups = query(Criteria.where("id").in(groupIds));
+    waitingGroups.fields().include(ZONE);
+    return mongoOperations.find(waitingGroups, WaitingGroupEntity.class)
+      .collectMap(WaitingGroupEntity::getId, waitingGroup -> waitingQueue(waitingGroup.getZone(), Collections.emptyList()))
+      .flatMap(waiting -> mongoOperations.remove(query(Criteria.where("id").in(waiting.keySet())), WaitingGroupEntity.class)
+        .flatMap(result -> {
+          if (result.getDeletedCount() == waiting.size()) {
+            return Mono.just(waiting);
+          }
+          // Some groups were reassigned meanwhile: drop them off one by one from wherever they are now
+          return Flux.fromIterable(waiting.keySet())
+            .concatMap(id -> dropoff(id)
+              .defaultIfEmpty(waiting.get(id))
+              .map(car -> Tuples.of(id, car)))
+            .collectMap(Tuple2::getT1, Tuple2::getT2);
+        }));
+  }
+
+  private Mono<BulkWriteResult> bulkWrite(Class<?> entityClass, List<WriteModel<Document>> writes) {
+    return Mono.from(mongoOperations.getCollection(mongoOperations.getCollectionName(entityClass))
+      .bulkWrite(writes, new BulkWriteOptions().ordered(false)));
+  }
+
+  /**
+   * Cars are read and written with {@link CarEntityCodec}, straight from and to BSON instead of through the mapping
+   * converter; queries and updates are still mapped from the entity.
+   */
+  private MongoCollection<CarEntity> cars() {
+    MongoCollection<Document> cars = mongoOperations.getCollection(mongoOperations.getCollectionName(CarEntity.class));
+    return cars.withCodecRegistry(CodecRegistries.fromRegistries(carCodecs, cars.getCodecRegistry()))
+      .withDocumentClass(CarEntity.class);
+  }
+
+  private Flux<CarEntity> findCars(Query query) {
+    FindPublisher<CarEntity> cars = cars().find(mapped(query))
+      .projection(mappedFields(query))
+      .sort(mappedSort(query));
+    return Flux.from(query.getLimit() > 0 ? cars.limit(query.getLimit()) : cars);
+  }
+
+  private Mono<CarEntity> findAndModifyCar(Query query, Update update) {
+    return Mono.from(cars().findOneAndUpdate(mapped(query), mapped(update), new FindOneAndUpdateOptions()
+      .returnDocument(ReturnDocument.AFTER)
+      .projection(mappedFields(query))
+      .sort(mappedSort(query))));
+  }
+
+  private Document mapped(Query query) {
+    return queryMapper.getMappedObject(query.getQueryObject(), carEntity);
+  }
+
+  // null rather than empty, for the driver to leave them out
+  private Document mappedFields(Query query) {
+    Document fields = query.getFieldsObject();
+    return fields.isEmpty() ? null : queryMapper.getMappedFields(fields, carEntity);
+  }
+
+  private Document mappedSort(Query query) {
+    Document sort = query.getSortObject();
+    return sort.isEmpty() ? null : queryMapper.getMappedSort(sort, carEntity);
+  }
+
+  private Document mapped(Update update) {
+    return updateMapper.getMappedObject(update.getUpdateObject(), carEntity);
   }
 
-  private Update leaveCar(GroupOfPeopleEntity group) {
-    return new Update().inc(SEATS_AVAILABLE, group.getPeople()).pull(GROUPS, group);
+  /**
+   * The allocation policy applied to groups on the seats available of candidate cars, as the single journey does, but
+   * in memory.
+   */
+  private static class SeatPlan {
+    private final AllocationPolicy allocationPolicy;
+    // zone -> candidate cars, with the seats available the plan leaves them
+    private final Map<String, List<CarEntity>> carsByZone = new HashMap<>();
+    private final Set<Integer> cars = new HashSet<>();
+    private final Map<Integer, List<GroupOfPeopleEntity>> groupsByCar = new LinkedHashMap<>();
+
+    SeatPlan(AllocationPolicy allocationPolicy) {
+      this.allocationPolicy = allocationPolicy;
+    }
+
+    void addCar(String zone, CarEntity car) {
+      if (cars.add(car.getId())) {
+        carsByZone.computeIfAbsent(zone, inZone -> new ArrayList<>())
+          .add(CarEntity.builder().id(car.getId()).seatsAvailable(car.getSeatsAvailable()).build());
+      }
+    }
+
+    boolean place(String zone, GroupOfPeopleEntity group) {
+      // Linear in the candidate cars of the zone, no more than the groups of the bulk
+      Optional<CarEntity> chosen = carsByZone.getOrDefault(zone, Collections.emptyList()).stream()
+        .filter(car -> allocationPolicy.fits(car.getSeatsAvailable(), group.getPeople()))
+        .min(allocationPolicy.preference());
+      chosen.ifPresent(car -> {
+        car.setSeatsAvailable(car.getSeatsAvailable() - group.getPeople());
+        groupsByCar.computeIfAbsent(car.getId(), id -> new ArrayList<>()).add(group);
+      });
+      return chosen.isPresent();
+    }
+
+    Stream<GroupOfPeopleEntity> groups() {
+      return groupsByCar.values().stream().flatMap(List::stream);
+    }
   }
 
 }
@@ -0,0 +1,54 @@
+package bs.carpooling.repository;
+
+import org.bson.Document;
+import org.springframework.data.mongodb.core.ReactiveMongoOperations;
+import org.springframework.data.mongodb.core.convert.QueryMapper;
+import org.springframework.data.mongodb.core.index.IndexDefinition;
+import org.springframework.data.mongodb.core.index.MongoPersistentEntityIndexResolver;
+import org.springframework.data.mongodb.core.mapping.MongoMappingContext;
+import org.springframework.data.mongodb.core.mapping.MongoPersistentEntity;
+import reactor.core.publisher.Flux;
+
+import static org.springframework.data.util.ClassTypeInformation.from;
+
+/**
+ * Indexes declared on an entity, with their keys mapped to the field names of the schema in use: the definitions of
+ * {@code @CompoundIndex} are not mapped by the resolver.
+ */
+class EntityIndexes {
+
+  private final ReactiveMongoOperations mongoOperations;
+  private final MongoMappingContext mappingContext;
+  private final MongoPersistentEntityIndexResolver indexResolver;
+  private final QueryMapper queryMapper;
+
+  EntityIndexes(ReactiveMongoOperations mongoOperations) {
+    this.mongoOperations = mongoOperations;
+    this.mappingContext = (MongoMappingContext) mongoOperations.getConverter().getMappingContext();
+    this.indexResolver = new MongoPersistentEntityIndexResolver(mappingContext);
+    this.queryMapper = new QueryMapper(mongoOperations.getConverter());
+  }
+
+  Flux<String> ensure(Class<?> entityClass) {
+    MongoPersistentEntity<?> entity = mappingContext.getRequiredPersistentEntity(entityClass);
+    return Flux.fromIterable(indexResolver.resolveIndexFor(from(entityClass)))
+      .map(index -> mapped(index, entity))
+      .concatMap(mongoOperations.indexOps(entityClass)::ensureIndex);
+  }
+
+  private IndexDefinition mapped(IndexDefinition index, MongoPersistentEntity<?> entity) {
+    Document keys = queryMapper.getMappedSort(index.getIndexKeys(), entity);
+    Document options = index.getIndexOptions();
+    return new IndexDefinition() {
+      @Override
+      public Document getIndexKeys() {
+        return keys;
+      }
+
+      @Override
+      public Document getIndexOptions() {
+        return options;
+      }
+    };
+  }
+}
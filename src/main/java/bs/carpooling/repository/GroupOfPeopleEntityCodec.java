@@ -0,0 +1,73 @@
+package bs.carpooling.repository;
+
+import bs.carpooling.entity.GroupOfPeopleEntity;
+import org.bson.BsonReader;
+import org.bson.BsonType;
+import org.bson.BsonWriter;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.springframework.data.mongodb.core.convert.MongoConverter;
+import org.springframework.data.mongodb.core.mapping.MongoPersistentEntity;
+
+import java.util.Date;
+
+/**
+ * Reads and writes a group embedded in a car as the mapping converter does ({@code id} as {@code _id}, field names of
+ * the schema in use), straight from and to BSON.
+ */
+public class GroupOfPeopleEntityCodec implements Codec<GroupOfPeopleEntity> {
+
+  private final String idField;
+  private final String peopleField;
+  private final String insertDateField;
+
+  public GroupOfPeopleEntityCodec(MongoConverter converter) {
+    MongoPersistentEntity<?> group = converter.getMappingContext().getRequiredPersistentEntity(GroupOfPeopleEntity.class);
+    this.idField = group.getRequiredPersistentProperty("id").getFieldName();
+    this.peopleField = group.getRequiredPersistentProperty("people").getFieldName();
+    this.insertDateField = group.getRequiredPersistentProperty("insertDate").getFieldName();
+  }
+
+  @Override
+  public void encode(BsonWriter writer, GroupOfPeopleEntity group, EncoderContext encoderContext) {
+    writer.writeStartDocument();
+    if (group.getId() != null) {
+      writer.writeInt32(idField, group.getId());
+    }
+    if (group.getPeople() != null) {
+      writer.writeInt32(peopleField, group.getPeople());
+    }
+    if (group.getInsertDate() != null) {
+      writer.writeDateTime(insertDateField, group.getInsertDate().getTime());
+    }
+    writer.writeEndDocument();
+  }
+
+  @Override
+  public GroupOfPeopleEntity decode(BsonReader reader, DecoderContext decoderContext) {
+    Integer id = null;
+    Integer people = null;
+    Date insertDate = null;
+    reader.readStartDocument();
+    while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+      String field = reader.readName();
+      if (field.equals(idField)) {
+        id = reader.readInt32();
+      } else if (field.equals(peopleField)) {
+        people = reader.readInt32();
+      } else if (field.equals(insertDateField)) {
+        insertDate = new Date(reader.readDateTime());
+      } else {
+        reader.skipValue();
+      }
+    }
+    reader.readEndDocument();
+    return new GroupOfPeopleEntity(id, people, insertDate);
+  }
+
+  @Override
+  public Class<GroupOfPeopleEntity> getEncoderClass() {
+    return GroupOfPeopleEntity.class;
+  }
+}
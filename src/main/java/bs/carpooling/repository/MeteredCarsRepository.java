@@ -0,0 +1,124 @@
+package bs.carpooling.repository;
+
+import bs.carpooling.entity.CarEntity;
+import bs.carpooling.entity.GroupOfPeopleEntity;
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import static bs.carpooling.metrics.CarPoolingMetrics.REPOSITORY;
+import static bs.carpooling.metrics.CarPoolingMetrics.timed;
+
+/**
+ * Times every operation of the allocation repository in use, tagged by operation and outcome.
+ */
+@RequiredArgsConstructor
+public class MeteredCarsRepository implements CustomizedCarsRepository {
+
+  private final @NonNull CustomizedCarsRepository carsRepository;
+
+  @Override
+  public Flux<CarEntity> initWith(Flux<CarEntity> carEntities) {
+    return timed(REPOSITORY, "initWith", carsRepository.initWith(carEntities));
+  }
+
+  @Override
+  public Mono<CarEntity> assignToCarWithAvailableSeats(GroupOfPeopleEntity group) {
+    return timed(REPOSITORY, "assignToCarWithAvailableSeats", carsRepository.assignToCarWithAvailableSeats(group));
+  }
+
+  @Override
+  public Mono<CarEntity> assignToCar(Integer carId, GroupOfPeopleEntity group) {
+    return timed(REPOSITORY, "assignToCar", carsRepository.assignToCar(carId, group));
+  }
+
+  @Override
+  public Mono<GroupOfPeopleEntity> locateGroupById(Integer groupId) {
+    return timed(REPOSITORY, "locateGroupById", carsRepository.locateGroupById(groupId));
+  }
+
+  @Override
+  public Mono<CarEntity> locateCarOfGroup(Integer groupId) {
+    return timed(REPOSITORY, "locateCarOfGroup", carsRepository.locateCarOfGroup(groupId));
+  }
+
+  @Override
+  public Mono<CarEntity> putInWaitingQueue(GroupOfPeopleEntity group) {
+    return timed(REPOSITORY, "putInWaitingQueue", carsRepository.putInWaitingQueue(group));
+  }
+
+  @Override
+  public Mono<GroupOfPeopleEntity> findWaitingById(Integer groupId) {
+    return timed(REPOSITORY, "findWaitingById", carsRepository.findWaitingById(groupId));
+  }
+
+  @Override
+  public Flux<GroupOfPeopleEntity> findAllGroupsWaiting() {
+    return timed(REPOSITORY, "findAllGroupsWaiting", carsRepository.findAllGroupsWaiting());
+  }
+
+  @Override
+  public Mono<GroupOfPeopleEntity> findOldestWaiting() {
+    return timed(REPOSITORY, "findOldestWaiting", carsRepository.findOldestWaiting());
+  }
+
+  @Override
+  public Flux<CarEntity> findAllNotWaiting() {
+    return timed(REPOSITORY, "findAllNotWaiting", carsRepository.findAllNotWaiting());
+  }
+
+  @Override
+  public Flux<GroupOfPeopleEntity> reassignOneWaitingGroup(String zone) {
+    return timed(REPOSITORY, "reassignOneWaitingGroup", carsRepository.reassignOneWaitingGroup(zone));
+  }
+
+  @Override
+  public Mono<GroupOfPeopleEntity> findFirstWaitingThatFits(String zone, int seats, int maxSkipped) {
+    return timed(REPOSITORY, "findFirstWaitingThatFits", carsRepository.findFirstWaitingThatFits(zone, seats, maxSkipped));
+  }
+
+  @Override
+  public Mono<CarEntity> reassignToCar(GroupOfPeopleEntity waitingGroup, Integer carId) {
+    return timed(REPOSITORY, "reassignToCar", carsRepository.reassignToCar(waitingGroup, carId));
+  }
+
+  @Override
+  public Flux<GroupOfPeopleEntity> releaseStaleClaims(Date claimedBefore) {
+    return timed(REPOSITORY, "releaseStaleClaims", carsRepository.releaseStaleClaims(claimedBefore));
+  }
+
+  @Override
+  public Mono<CarEntity> dropoff(Integer groupId) {
+    return timed(REPOSITORY, "dropoff", carsRepository.dropoff(groupId));
+  }
+
+  @Override
+  public Mono<Map<Integer, CarEntity>> assignAll(List<GroupOfPeopleEntity> groups) {
+    return timed(REPOSITORY, "assignAll", carsRepository.assignAll(groups));
+  }
+
+  @Override
+  public Mono<Map<Integer, CarEntity>> dropoffAll(List<Integer> groupIds) {
+    return timed(REPOSITORY, "dropoffAll", carsRepository.dropoffAll(groupIds));
+  }
+
+  @Override
+  public Mono<Long> countWaiting() {
+    return timed(REPOSITORY, "countWaiting", carsRepository.countWaiting());
+  }
+
+  @Override
+  public Mono<Long> countWaiting(String zone) {
+    return timed(REPOSITORY, "countWaitingInZone", carsRepository.countWaiting(zone));
+  }
+
+  @Override
+  public Mono<Map<Integer, Long>> countCarsBySeatsAvailable() {
+    return timed(REPOSITORY, "countCarsBySeatsAvailable", carsRepository.countCarsBySeatsAvailable());
+  }
+}
@@ -0,0 +1,208 @@
+package bs.carpooling.repository;
+
+import bs.carpooling.allocation.SeatBuckets;
+import bs.carpooling.entity.CarEntity;
+import bs.carpooling.entity.GroupOfPeopleEntity;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.OptionalInt;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static bs.carpooling.repository.CarsRepository.DEFAULT_ZONE;
+import static bs.carpooling.repository.CarsRepository.WAITING_QUEUE;
+
+/**
+ * Chooses cars from in-memory {@link SeatBuckets} instead of a sorted query, keeping mongodb as the durable record:
+ * the chosen car is updated by id, guarded by its seats available, so a stale bucket never overbooks a car. Each zone
+ * has buckets of its own.
+ */
+@Slf4j
+public class SeatBucketCarsRepository implements CustomizedCarsRepository {
+
+  // Stale cars refreshed for one journey before it is left to the waiting queue
+  private static final int MAX_STALE_CARS = 3;
+
+  private final CarsRepository carsRepository;
+  private final int maxSeats;
+  private final Map<String, SeatBuckets> seatBucketsByZone = new ConcurrentHashMap<>();
+
+  /**
+   * @param seatBuckets buckets of the default zone, the other zones get empty ones with as many seats.
+   */
+  public SeatBucketCarsRepository(@NonNull CarsRepository carsRepository, @NonNull SeatBuckets seatBuckets) {
+    this.carsRepository = carsRepository;
+    this.maxSeats = seatBuckets.getMaxSeats();
+    seatBucketsByZone.put(DEFAULT_ZONE, seatBuckets);
+  }
+
+  /**
+   * Fill the buckets with the cars currently stored.
+   */
+  public Mono<Void> load() {
+    return Mono.fromRunnable(this::clear)
+      .thenMany(carsRepository.findAllNotWaiting())
+      .doOnNext(this::track)
+      .then();
+  }
+
+  private void clear() {
+    seatBucketsByZone.values().forEach(SeatBuckets::clear);
+  }
+
+  private SeatBuckets seatBuckets(String zone) {
+    return seatBucketsByZone.computeIfAbsent(zone != null ? zone : DEFAULT_ZONE, newZone -> new SeatBuckets(maxSeats));
+  }
+
+  private void track(CarEntity car) {
+    if (!WAITING_QUEUE.equals(car.getId())) {
+      seatBuckets(car.getZone()).put(car.getId(), car.getSeatsAvailable(), versionOf(car));
+    }
+  }
+
+  private long versionOf(CarEntity car) {
+    return car.getVersion() != null ? car.getVersion() : 0;
+  }
+
+  @Override
+  public Flux<CarEntity> initWith(Flux<CarEntity> carEntities) {
+    return Mono.fromRunnable(this::clear)
+      .thenMany(carsRepository.initWith(carEntities))
+      .doOnNext(this::track);
+  }
+
+  @Override
+  public Mono<CarEntity> assignToCarWithAvailableSeats(GroupOfPeopleEntity group) {
+    return assignToBestFit(group, MAX_STALE_CARS);
+  }
+
+  private Mono<CarEntity> assignToBestFit(GroupOfPeopleEntity group, int staleCarsLeft) {
+    return Mono.defer(() -> {
+      OptionalInt carId = seatBuckets(group.getZone()).reserve(group.getPeople());
+      if (carId.isEmpty()) {
+        return Mono.empty();
+      }
+      return assignToReservedCar(carId.getAsInt(), group, staleCarsLeft);
+    });
+  }
+
+  private Mono<CarEntity> assignToReservedCar(int carId, GroupOfPeopleEntity group, int staleCarsLeft) {
+    int people = group.getPeople();
+    SeatBuckets seatBuckets = seatBuckets(group.getZone());
+    return carsRepository.assignToCar(carId, group)
+      .doOnNext(car -> seatBuckets.confirm(carId, people, car.getSeatsAvailable(), versionOf(car)))
+      .doOnError(err -> seatBuckets.cancel(carId, people))
+      .switchIfEmpty(Mono.defer(() -> {
+        // Bucket was stale (seats taken elsewhere, car deleted, or versions reset by another init): replace that car
+        // with its stored state, whatever its version, and look for the next best fit
+        log.debug("car {} had no {} seats available, refreshing it", carId, people);
+        seatBuckets.remove(carId);
+        return carsRepository.findById(carId)
+          .doOnNext(this::track)
+          .then(staleCarsLeft > 0 ? assignToBestFit(group, staleCarsLeft - 1) : Mono.empty());
+      }));
+  }
+
+  @Override
+  public Mono<CarEntity> assignToCar(Integer carId, GroupOfPeopleEntity group) {
+    return carsRepository.assignToCar(carId, group)
+      .doOnNext(this::track);
+  }
+
+  @Override
+  public Mono<GroupOfPeopleEntity> locateGroupById(Integer groupId) {
+    return carsRepository.locateGroupById(groupId);
+  }
+
+  @Override
+  public Mono<CarEntity> locateCarOfGroup(Integer groupId) {
+    return carsRepository.locateCarOfGroup(groupId);
+  }
+
+  @Override
+  public Mono<CarEntity> putInWaitingQueue(GroupOfPeopleEntity group) {
+    return carsRepository.putInWaitingQueue(group);
+  }
+
+  @Override
+  public Mono<GroupOfPeopleEntity> findWaitingById(Integer groupId) {
+    return carsRepository.findWaitingById(groupId);
+  }
+
+  @Override
+  public Flux<GroupOfPeopleEntity> findAllGroupsWaiting() {
+    return carsRepository.findAllGroupsWaiting();
+  }
+
+  @Override
+  public Mono<GroupOfPeopleEntity> findOldestWaiting() {
+    return carsRepository.findOldestWaiting();
+  }
+
+  @Override
+  public Flux<CarEntity> findAllNotWaiting() {
+    return carsRepository.findAllNotWaiting();
+  }
+
+  @Override
+  public Flux<GroupOfPeopleEntity> reassignOneWaitingGroup(String zone) {
+    return carsRepository.reassignOneWaitingGroup(zone)
+      .concatMap(group -> carsRepository.locateCarOfGroup(group.getId())
+        .doOnNext(this::track)
+        .thenReturn(group));
+  }
+
+  @Override
+  public Mono<GroupOfPeopleEntity> findFirstWaitingThatFits(String zone, int seats, int maxSkipped) {
+    return carsRepository.findFirstWaitingThatFits(zone, seats, maxSkipped);
+  }
+
+  @Override
+  public Mono<CarEntity> reassignToCar(GroupOfPeopleEntity waitingGroup, Integer carId) {
+    return carsRepository.reassignToCar(waitingGroup, carId)
+      .doOnNext(this::track);
+  }
+
+  @Override
+  public Flux<GroupOfPeopleEntity> releaseStaleClaims(Date claimedBefore) {
+    return carsRepository.releaseStaleClaims(claimedBefore);
+  }
+
+  @Override
+  public Mono<CarEntity> dropoff(Integer groupId) {
+    return carsRepository.dropoff(groupId)
+      .doOnNext(this::track);
+  }
+
+  @Override
+  public Mono<Map<Integer, CarEntity>> assignAll(List<GroupOfPeopleEntity> groups) {
+    return carsRepository.assignAll(groups)
+      .doOnNext(cars -> cars.values().forEach(this::track));
+  }
+
+  @Override
+  public Mono<Long> countWaiting() {
+    return carsRepository.countWaiting();
+  }
+
+  @Override
+  public Mono<Long> countWaiting(String zone) {
+    return carsRepository.countWaiting(zone);
+  }
+
+  @Override
+  public Mono<Map<Integer, Long>> countCarsBySeatsAvailable() {
+    return carsRepository.countCarsBySeatsAvailable();
+  }
+
+  @Override
+  public Mono<Map<Integer, CarEntity>> dropoffAll(List<Integer> groupIds) {
+    return carsRepository.dropoffAll(groupIds)
+      .doOnNext(cars -> cars.values().forEach(this::track));
+  }
+}
@@ -0,0 +1,220 @@
+package bs.carpooling.repository;
+
+import bs.carpooling.allocation.SeatHistogram;
+import bs.carpooling.entity.CarEntity;
+import bs.carpooling.entity.GroupOfPeopleEntity;
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import static bs.carpooling.metrics.CarPoolingMetrics.queuedBySeatHistogram;
+import static bs.carpooling.repository.CarsRepository.WAITING_QUEUE;
+
+/**
+ * Sends groups straight to the waiting queue when the {@link SeatHistogram} tells no car could fit them, saving the
+ * failed car update of every journey while the fleet is saturated, and skips reassignments while no car has a free
+ * seat.
+ * <p>
+ * The histogram follows the cars changed through this node, and is rebuilt from mongodb every refresh interval to
+ * catch up with the other nodes. Cars found then with the seats of a group sent to the queue meanwhile are signalled
+ * as seats freed, so that group does not wait for the next dropoff. Until the first load every group tries a car.
+ */
+@RequiredArgsConstructor
+@Slf4j
+public class SeatHistogramCarsRepository implements CustomizedCarsRepository, InitializingBean, DisposableBean {
+
+  private final @NonNull CustomizedCarsRepository carsRepository;
+  private final int maxSeats;
+  private final @NonNull Duration refreshInterval;
+  private final @NonNull Consumer<CarEntity> seatsFound;
+
+  // null until loaded
+  private volatile SeatHistogram seatHistogram;
+  // Smallest group sent to the waiting queue by the histogram since the last refresh
+  private final AtomicInteger smallestQueued = new AtomicInteger(Integer.MAX_VALUE);
+  private Disposable refreshing;
+
+  @Override
+  public void afterPropertiesSet() {
+    refreshing = Flux.interval(Duration.ZERO, refreshInterval)
+      .onBackpressureDrop()
+      .concatMap(tick -> refresh()
+        .onErrorResume(err -> {
+          log.info(err.getMessage());
+          return Mono.empty();
+        }))
+      .subscribe();
+  }
+
+  /**
+   * Rebuild the histogram from the cars currently stored.
+   */
+  Mono<Void> refresh() {
+    SeatHistogram refreshed = new SeatHistogram(maxSeats);
+    return carsRepository.findAllNotWaiting()
+      .filter(car -> !WAITING_QUEUE.equals(car.getId()))
+      .doOnNext(car -> refreshed.put(car.getId(), car.getSeatsAvailable(), versionOf(car)))
+      .filter(car -> car.getSeatsAvailable() > 0)
+      .collectList()
+      .doOnNext(carsWithFreeSeats -> {
+        int queued = smallestQueued.getAndSet(Integer.MAX_VALUE);
+        seatHistogram = refreshed;
+        carsWithFreeSeats.stream()
+          .filter(car -> car.getSeatsAvailable() >= queued)
+          .forEach(seatsFound);
+      })
+      .then();
+  }
+
+  private void track(CarEntity car) {
+    SeatHistogram histogram = seatHistogram;
+    if (histogram != null && !WAITING_QUEUE.equals(car.getId())) {
+      histogram.put(car.getId(), car.getSeatsAvailable(), versionOf(car));
+    }
+  }
+
+  private long versionOf(CarEntity car) {
+    return car.getVersion() != null ? car.getVersion() : 0;
+  }
+
+  private boolean noCarFits(int people) {
+    SeatHistogram histogram = seatHistogram;
+    return histogram != null && !histogram.fits(people);
+  }
+
+  @Override
+  public Flux<CarEntity> initWith(Flux<CarEntity> carEntities) {
+    return Mono.fromRunnable(() -> seatHistogram = new SeatHistogram(maxSeats))
+      .thenMany(carsRepository.initWith(carEntities))
+      .doOnNext(this::track);
+  }
+
+  @Override
+  public Mono<CarEntity> assignToCarWithAvailableSeats(GroupOfPeopleEntity group) {
+    return Mono.defer(() -> {
+      if (noCarFits(group.getPeople())) {
+        smallestQueued.accumulateAndGet(group.getPeople(), Math::min);
+        queuedBySeatHistogram();
+        return Mono.empty();
+      }
+      return carsRepository.assignToCarWithAvailableSeats(group)
+        .doOnNext(this::track);
+    });
+  }
+
+  @Override
+  public Mono<CarEntity> assignToCar(Integer carId, GroupOfPeopleEntity group) {
+    return carsRepository.assignToCar(carId, group)
+      .doOnNext(this::track);
+  }
+
+  @Override
+  public Mono<GroupOfPeopleEntity> locateGroupById(Integer groupId) {
+    return carsRepository.locateGroupById(groupId);
+  }
+
+  @Override
+  public Mono<CarEntity> locateCarOfGroup(Integer groupId) {
+    return carsRepository.locateCarOfGroup(groupId);
+  }
+
+  @Override
+  public Mono<CarEntity> putInWaitingQueue(GroupOfPeopleEntity group) {
+    return carsRepository.putInWaitingQueue(group);
+  }
+
+  @Override
+  public Mono<GroupOfPeopleEntity> findWaitingById(Integer groupId) {
+    return carsRepository.findWaitingById(groupId);
+  }
+
+  @Override
+  public Flux<GroupOfPeopleEntity> findAllGroupsWaiting() {
+    return carsRepository.findAllGroupsWaiting();
+  }
+
+  @Override
+  public Mono<GroupOfPeopleEntity> findOldestWaiting() {
+    return carsRepository.findOldestWaiting();
+  }
+
+  @Override
+  public Flux<CarEntity> findAllNotWaiting() {
+    return carsRepository.findAllNotWaiting();
+  }
+
+  @Override
+  public Flux<GroupOfPeopleEntity> reassignOneWaitingGroup(String zone) {
+    // The car it enters is not returned: its seats stay overestimated until the next refresh, which is harmless
+    return Flux.defer(() -> noCarFits(1) ? Flux.empty() : carsRepository.reassignOneWaitingGroup(zone));
+  }
+
+  @Override
+  public Mono<GroupOfPeopleEntity> findFirstWaitingThatFits(String zone, int seats, int maxSkipped) {
+    return carsRepository.findFirstWaitingThatFits(zone, seats, maxSkipped);
+  }
+
+  @Override
+  public Mono<CarEntity> reassignToCar(GroupOfPeopleEntity waitingGroup, Integer carId) {
+    return carsRepository.reassignToCar(waitingGroup, carId)
+      .doOnNext(this::track);
+  }
+
+  @Override
+  public Flux<GroupOfPeopleEntity> releaseStaleClaims(Date claimedBefore) {
+    return carsRepository.releaseStaleClaims(claimedBefore);
+  }
+
+  @Override
+  public Mono<CarEntity> dropoff(Integer groupId) {
+    return carsRepository.dropoff(groupId)
+      .doOnNext(this::track);
+  }
+
+  @Override
+  public Mono<Map<Integer, CarEntity>> assignAll(List<GroupOfPeopleEntity> groups) {
+    // Groups no car fits already cost no car update here: they are queued in bulk after one search for candidates
+    return carsRepository.assignAll(groups)
+      .doOnNext(cars -> cars.values().forEach(this::track));
+  }
+
+  @Override
+  public Mono<Long> countWaiting() {
+    return carsRepository.countWaiting();
+  }
+
+  @Override
+  public Mono<Long> countWaiting(String zone) {
+    return carsRepository.countWaiting(zone);
+  }
+
+  @Override
+  public Mono<Map<Integer, Long>> countCarsBySeatsAvailable() {
+    return carsRepository.countCarsBySeatsAvailable();
+  }
+
+  @Override
+  public Mono<Map<Integer, CarEntity>> dropoffAll(List<Integer> groupIds) {
+    return carsRepository.dropoffAll(groupIds)
+      .doOnNext(cars -> cars.values().forEach(this::track));
+  }
+
+  @Override
+  public void destroy() {
+    if (refreshing != null) {
+      refreshing.dispose();
+    }
+  }
+}
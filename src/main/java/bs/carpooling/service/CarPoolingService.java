@@ -1,58 +1,180 @@
 package bs.carpooling.service;
 
 import bs.carpooling.dto.CarDTO;
+import bs.carpooling.dto.CarsSummaryDTO;
+import bs.carpooling.dto.GroupEventDTO;
+import bs.carpooling.dto.GroupEventDTO.Event;
+import bs.carpooling.dto.GroupIdDTO;
 import bs.carpooling.dto.GroupOfPeopleDTO;
+import bs.carpooling.dto.GroupOutcomeDTO;
+import bs.carpooling.dto.GroupOutcomeDTO.Outcome;
 import bs.carpooling.entity.CarEntity;
 import bs.carpooling.entity.GroupOfPeopleEntity;
-import bs.carpooling.repository.CarsRepository;
-import lombok.RequiredArgsConstructor;
+import bs.carpooling.repository.CustomizedCarsRepository;
+import bs.carpooling.service.GroupEvents.GroupSubscription;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
 import javax.validation.Valid;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.BinaryOperator;
+import java.util.stream.Collectors;
+
+import static bs.carpooling.metrics.CarPoolingMetrics.SERVICE;
+import static bs.carpooling.metrics.CarPoolingMetrics.timed;
+import static bs.carpooling.repository.CarsRepository.WAITING_QUEUE;
 
 @Service
-@RequiredArgsConstructor
 @Slf4j
 public class CarPoolingService {
 
-  private final CarsRepository carsRepository;
+  private static final int DEFAULT_GROUPS_BULK_SIZE = 500;
+
+  private final CustomizedCarsRepository carsRepository;
+  private final ReassignmentScheduler reassignmentScheduler;
+  private final GroupEvents groupEvents;
+  // carpooling.journey.batch.enabled: single journeys are assigned in batches, null otherwise
+  private final JourneyBatcher journeyBatcher;
+  private final int groupsBulkSize;
+
+  public CarPoolingService(CustomizedCarsRepository carsRepository, ReassignmentScheduler reassignmentScheduler,
+                           GroupEvents groupEvents) {
+    this(carsRepository, reassignmentScheduler, groupEvents, Optional.empty(), DEFAULT_GROUPS_BULK_SIZE);
+  }
+
+  @Autowired
+  public CarPoolingService(CustomizedCarsRepository carsRepository, ReassignmentScheduler reassignmentScheduler,
+                           GroupEvents groupEvents, Optional<JourneyBatcher> journeyBatcher,
+                           @Value("${carpooling.groups.bulk-size:" + DEFAULT_GROUPS_BULK_SIZE + "}") int groupsBulkSize) {
+    this.carsRepository = carsRepository;
+    this.reassignmentScheduler = reassignmentScheduler;
+    this.groupEvents = groupEvents;
+    this.journeyBatcher = journeyBatcher.orElse(null);
+    this.groupsBulkSize = groupsBulkSize;
+  }
+
+  public Mono<CarsSummaryDTO> createCars(@Valid List<CarDTO> carDtos) {
+    return createCars(Flux.fromIterable(carDtos));
+  }
 
-  public Flux<CarEntity> createCars(@Valid List<CarDTO> carDtos) {
-    // Clear all info and store cars
-    Flux<CarEntity> carEntities = Flux
-      .fromStream(carDtos.stream().map(requestedCar -> CarEntity.builder().id(requestedCar.getId()).seatsAvailable(requestedCar.getSeats()).build()));
-    return carsRepository.initWith(carEntities);
+  /**
+   * Clear all info and store cars as they are streamed.
+   */
+  public Mono<CarsSummaryDTO> createCars(Flux<CarDTO> carDtos) {
+    Flux<CarEntity> carEntities = carDtos
+      .map(requestedCar -> CarEntity.builder().id(requestedCar.getId()).seatsAvailable(requestedCar.getSeats())
+        .zone(requestedCar.getZone()).build());
+    return timed(SERVICE, "createCars", carsRepository.initWith(carEntities)
+      .reduce(new CarsSummaryDTO(0, 0), (summary, car) -> summary.add(car.getSeatsAvailable())));
   }
 
   public Mono<CarEntity> journey(@Valid GroupOfPeopleDTO groupDto) {
-    GroupOfPeopleEntity group = new GroupOfPeopleEntity(groupDto.getId(), groupDto.getPeople(), new Date());
-    return carsRepository.assignToCarWithAvailableSeats(group)
-      .switchIfEmpty(carsRepository.putInWaitingQueue(group));
+    GroupOfPeopleEntity group = toGroup(groupDto);
+    Mono<CarEntity> assigned = journeyBatcher != null
+      ? journeyBatcher.journey(group)
+      : carsRepository.assignToCarWithAvailableSeats(group).switchIfEmpty(carsRepository.putInWaitingQueue(group));
+    return timed(SERVICE, "journey", assigned)
+      .doOnNext(car -> publishJourney(group.getId(), car));
+  }
+
+  private static GroupOfPeopleEntity toGroup(GroupOfPeopleDTO groupDto) {
+    return new GroupOfPeopleEntity(groupDto.getId(), groupDto.getPeople(), new Date(), groupDto.getZone());
+  }
+
+  private void publishJourney(Integer groupId, CarEntity car) {
+    if (WAITING_QUEUE.equals(car.getId())) {
+      groupEvents.publish(groupId, Event.WAITING, null);
+    } else {
+      groupEvents.publish(groupId, Event.ASSIGNED, car.getId());
+    }
   }
 
   /**
-   * @return car if group was assigned, CarsRepository.WAITING_GROUPS if was waiting, empty if group was not assigned nor waiting.
+   * @return car (only id and seatsAvailable) if group was assigned, CarsRepository.WAITING_QUEUE if was waiting, empty
+   * if group was not assigned nor waiting.
    */
   public Mono<CarEntity> dropoff(Integer groupId) {
     Mono<CarEntity> droppedOff = carsRepository.dropoff(groupId);
 
-    // Fire asynchronous reassign (to start after droppedOff stream is emitted)
-    return droppedOff.doOnSuccess(car -> reAssignWaitingGroups());
+    // Signal asynchronous reassign (to start after droppedOff stream is emitted)
+    return timed(SERVICE, "dropoff", droppedOff.doOnNext(reassignmentScheduler::seatsFreed))
+      .doOnNext(car -> groupEvents.publish(groupId, Event.DROPPED, null));
+  }
+
+  /**
+   * Journeys of many groups, a bulk of {@code carpooling.groups.bulk-size} groups at a time.
+   *
+   * @return the outcome of each group, in the same order.
+   */
+  public Flux<GroupOutcomeDTO> journeys(Flux<GroupOfPeopleDTO> groupDtos) {
+    return groupDtos
+      .map(CarPoolingService::toGroup)
+      .buffer(groupsBulkSize)
+      // concatMap to keep the order of the groups across bulks, each bulk timed on its own
+      .concatMap(groups -> timed(SERVICE, "journeys", carsRepository.assignAll(groups))
+        .doOnNext(cars -> cars.forEach(this::publishJourney))
+        .flatMapIterable(cars -> {
+          // The first group of a repeated id is the one journeyed, if not known already
+          Set<Integer> outcomeGiven = new HashSet<>();
+          return groups.stream()
+            .map(group -> journeyOutcome(group.getId(), outcomeGiven.add(group.getId()) ? cars.get(group.getId()) : null))
+            .collect(Collectors.toList());
+        }));
+  }
+
+  private GroupOutcomeDTO journeyOutcome(Integer groupId, CarEntity car) {
+    if (car == null) {
+      return new GroupOutcomeDTO(groupId, Outcome.DUPLICATE, null);
+    }
+    return WAITING_QUEUE.equals(car.getId())
+      ? new GroupOutcomeDTO(groupId, Outcome.WAITING, null)
+      : new GroupOutcomeDTO(groupId, Outcome.ASSIGNED, car.getId());
+  }
+
+  /**
+   * Dropoffs of many groups, a bulk of {@code carpooling.groups.bulk-size} groups at a time.
+   *
+   * @return the outcome of each group, in the same order.
+   */
+  public Flux<GroupOutcomeDTO> dropoffs(Flux<GroupIdDTO> groupDtos) {
+    return groupDtos
+      .map(GroupIdDTO::getId)
+      .buffer(groupsBulkSize)
+      .concatMap(groupIds -> timed(SERVICE, "dropoffs", carsRepository.dropoffAll(groupIds)
+        .doOnNext(this::signalDroppedOff))
+        .flatMapIterable(cars -> groupIds.stream()
+          .map(groupId -> dropoffOutcome(groupId, cars.get(groupId)))
+          .collect(Collectors.toList())));
   }
 
-  private void reAssignWaitingGroups() {
-    // Thread-safety: see carsRepository.reassign()
+  private void signalDroppedOff(Map<Integer, CarEntity> droppedOff) {
+    droppedOff.keySet().forEach(groupId -> groupEvents.publish(groupId, Event.DROPPED, null));
+    // One signal per car, the latest state of it; the waiting queue pseudo-car has the same id in every zone
+    droppedOff.values().stream()
+      .collect(Collectors.toMap(car -> Arrays.asList(car.getZone(), car.getId()), car -> car,
+        BinaryOperator.maxBy(Comparator.comparing(CarEntity::getVersion, Comparator.nullsFirst(Comparator.naturalOrder())))))
+      .values()
+      .forEach(reassignmentScheduler::seatsFreed);
+  }
 
-    // Reassign as many as waiting groups at the moment (run reassignOneWaitingGroup n times)
-    carsRepository.findAllGroupsWaiting()
-      // concatMap to do only one reassignOneWaitingGroup at a time
-      .concatMap(g -> carsRepository.reassignOneWaitingGroup())
-      .subscribe(g -> log.debug("reassigned group {}", g), err -> log.info(err.getMessage()));
+  private GroupOutcomeDTO dropoffOutcome(Integer groupId, CarEntity car) {
+    if (car == null) {
+      return new GroupOutcomeDTO(groupId, Outcome.NOT_FOUND, null);
+    }
+    return WAITING_QUEUE.equals(car.getId())
+      ? new GroupOutcomeDTO(groupId, Outcome.LEFT_WAITING_QUEUE, null)
+      : new GroupOutcomeDTO(groupId, Outcome.DROPPED_OFF, car.getId());
   }
 
   /**
@@ -70,11 +192,44 @@ public class CarPoolingService {
    * @return car if assigned, or empty if group is not assigned to any car.
    */
   public Mono<CarEntity> locateCarOfGroup(int groupId) {
-    return carsRepository.locateCarOfGroup(groupId);
+    return timed(SERVICE, "locateCarOfGroup", carsRepository.locateCarOfGroup(groupId));
+  }
+
+  /**
+   * Events of a group from now on, starting with its current state (WAITING or ASSIGNED) and completing once DROPPED.
+   *
+   * @return empty if the group is not assigned nor waiting.
+   */
+  public Mono<Flux<GroupEventDTO>> groupEvents(Integer groupId) {
+    return Mono.defer(() -> {
+      // Subscribed before reading the current state, so an event published meanwhile is not missed
+      GroupSubscription subscription = groupEvents.subscribe(groupId);
+      return currentEvent(groupId)
+        .map(subscription::startWith)
+        .switchIfEmpty(Mono.fromRunnable(subscription::cancel))
+        .doOnError(err -> subscription.cancel())
+        .doOnCancel(subscription::cancel);
+    });
+  }
+
+  private Mono<GroupEventDTO> currentEvent(Integer groupId) {
+    return carsRepository.locateCarOfGroup(groupId)
+      .map(car -> new GroupEventDTO(groupId, Event.ASSIGNED, car.getId()))
+      .switchIfEmpty(carsRepository.findWaitingById(groupId)
+        .map(group -> new GroupEventDTO(groupId, Event.WAITING, null)));
   }
 
   public Mono<GroupOfPeopleEntity> findWaitingGroup(Integer id) {
-    return carsRepository.findWaitingById(id);
+    return timed(SERVICE, "findWaitingGroup", carsRepository.findWaitingById(id));
+  }
+
+  /**
+   * @return how long the oldest waiting group has been waiting, 0 if no group is waiting.
+   */
+  public Mono<Long> oldestWaitingMillis() {
+    return carsRepository.findOldestWaiting()
+      .map(group -> System.currentTimeMillis() - group.getInsertDate().getTime())
+      .defaultIfEmpty(0L);
   }
 
   Flux<GroupOfPeopleEntity> waitingGroups() {
@@ -0,0 +1,155 @@
+package bs.carpooling.service;
+
+import bs.carpooling.dto.GroupEventDTO;
+import bs.carpooling.dto.GroupEventDTO.Event;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxSink;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Subscriptions to the events of groups, at most {@code carpooling.events.max-subscriptions} at a time, indexed by
+ * group id. A subscription only keeps the latest event its client has not received yet, so an idle one costs a map
+ * entry and a sink, and publishing to a group nobody subscribed to costs a lookup.
+ */
+@Component
+public class GroupEvents {
+
+  private final int maxSubscriptions;
+  private final AtomicInteger subscriptions = new AtomicInteger();
+  private final Map<Integer, List<GroupSubscription>> subscriptionsByGroup = new ConcurrentHashMap<>();
+
+  public GroupEvents(@Value("${carpooling.events.max-subscriptions:50000}") int maxSubscriptions) {
+    this.maxSubscriptions = maxSubscriptions;
+  }
+
+  /**
+   * Subscribe to the events of a group published from now on, sent once the subscription {@link
+   * GroupSubscription#startWith(GroupEventDTO) starts}.
+   *
+   * @throws TooManySubscriptionsException if {@code carpooling.events.max-subscriptions} are open.
+   */
+  public GroupSubscription subscribe(Integer groupId) {
+    if (subscriptions.incrementAndGet() > maxSubscriptions) {
+      subscriptions.decrementAndGet();
+      throw new TooManySubscriptionsException(maxSubscriptions);
+    }
+    GroupSubscription subscription = new GroupSubscription(groupId);
+    subscriptionsByGroup.merge(groupId, Collections.singletonList(subscription), GroupEvents::plus);
+    return subscription;
+  }
+
+  public boolean isSubscribed(Integer groupId) {
+    return subscriptionsByGroup.containsKey(groupId);
+  }
+
+  public void publish(Integer groupId, Event event, Integer carId) {
+    List<GroupSubscription> groupSubscriptions = subscriptionsByGroup.get(groupId);
+    if (groupSubscriptions != null) {
+      GroupEventDTO groupEvent = new GroupEventDTO(groupId, event, carId);
+      groupSubscriptions.forEach(subscription -> subscription.offer(groupEvent));
+    }
+  }
+
+  public int getSubscriptions() {
+    return subscriptions.get();
+  }
+
+  private void unsubscribe(GroupSubscription subscription) {
+    subscriptionsByGroup.computeIfPresent(subscription.groupId, (groupId, groupSubscriptions) -> {
+      List<GroupSubscription> remaining = new ArrayList<>(groupSubscriptions);
+      remaining.remove(subscription);
+      return remaining.isEmpty() ? null : remaining;
+    });
+    subscriptions.decrementAndGet();
+  }
+
+  // Subscriptions of a group are copied on change: there is rarely more than one
+  private static List<GroupSubscription> plus(List<GroupSubscription> subscriptions, List<GroupSubscription> added) {
+    List<GroupSubscription> all = new ArrayList<>(subscriptions);
+    all.addAll(added);
+    return all;
+  }
+
+  public class GroupSubscription {
+
+    private final Integer groupId;
+    // Latest event published before the events started
+    private GroupEventDTO latest;
+    private GroupEventDTO sent;
+    private FluxSink<GroupEventDTO> sink;
+    private boolean cancelled;
+
+    private GroupSubscription(Integer groupId) {
+      this.groupId = groupId;
+    }
+
+    /**
+     * @return the events of the group, starting with the latest one published since subscribed, or else the current
+     * one, and completing once the group is dropped.
+     */
+    public Flux<GroupEventDTO> startWith(GroupEventDTO current) {
+      // Clients only need the state of their group: an event they did not read yet is replaced by the next one
+      return Flux.create(eventSink -> {
+        eventSink.onDispose(this::cancel);
+        synchronized (this) {
+          if (cancelled) {
+            eventSink.complete();
+            return;
+          }
+          sink = eventSink;
+          send(latest != null ? latest : current);
+        }
+      }, FluxSink.OverflowStrategy.LATEST);
+    }
+
+    private synchronized void offer(GroupEventDTO event) {
+      if (sink != null) {
+        send(event);
+      } else {
+        latest = event;
+      }
+    }
+
+    private void send(GroupEventDTO event) {
+      // The same change may be published by the node making it and by a change stream
+      if (event.equals(sent)) {
+        return;
+      }
+      sent = event;
+      sink.next(event);
+      if (event.getEvent() == Event.DROPPED) {
+        sink.complete();
+      }
+    }
+
+    /**
+     * Stop receiving the events of the group, if not done yet.
+     */
+    public void cancel() {
+      synchronized (this) {
+        if (cancelled) {
+          return;
+        }
+        cancelled = true;
+      }
+      unsubscribe(this);
+    }
+  }
+
+  public static class TooManySubscriptionsException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    TooManySubscriptionsException(int maxSubscriptions) {
+      super("too many group event subscriptions, at most " + maxSubscriptions);
+    }
+  }
+}
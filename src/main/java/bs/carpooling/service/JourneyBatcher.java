@@ -0,0 +1,127 @@
+package bs.carpooling.service;
+
+import bs.carpooling.entity.CarEntity;
+import bs.carpooling.entity.GroupOfPeopleEntity;
+import bs.carpooling.repository.CustomizedCarsRepository;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.FluxSink;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoProcessor;
+import reactor.core.publisher.UnicastProcessor;
+
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static bs.carpooling.metrics.CarPoolingMetrics.journeyBatch;
+
+/**
+ * {@code carpooling.journey.batch.enabled}: journeys are buffered for at most {@code carpooling.journey.batch.window},
+ * or until {@code carpooling.journey.batch.max-size} are buffered, then assigned together by
+ * {@link CustomizedCarsRepository#assignAll(List)} (best fit, biggest groups first, one bulk write). Each journey
+ * completes once its batch is written, with a {@link DuplicateJourneyException} for a group already assigned or
+ * waiting, or journeyed earlier in the same batch.
+ * <p>
+ * Batches are written one at a time: the journeys arriving meanwhile make the next batch bigger instead of racing for
+ * the same cars.
+ */
+@Component
+@ConditionalOnProperty(name = "carpooling.journey.batch.enabled", havingValue = "true")
+@Slf4j
+public class JourneyBatcher implements InitializingBean, DisposableBean {
+
+  private final CustomizedCarsRepository carsRepository;
+  private final Duration window;
+  private final int maxSize;
+  private final UnicastProcessor<PendingJourney> journeys = UnicastProcessor.create();
+  private final FluxSink<PendingJourney> journeysSink = journeys.sink();
+
+  public JourneyBatcher(CustomizedCarsRepository carsRepository,
+                        @Value("${carpooling.journey.batch.window:10ms}") Duration window,
+                        @Value("${carpooling.journey.batch.max-size:500}") int maxSize) {
+    this.carsRepository = carsRepository;
+    this.window = window;
+    this.maxSize = maxSize;
+  }
+
+  @Override
+  public void afterPropertiesSet() {
+    journeys
+      .bufferTimeout(maxSize, window)
+      // batches closed while one is written wait for it
+      .onBackpressureBuffer()
+      .concatMap(this::assign)
+      .subscribe();
+  }
+
+  /**
+   * @return the car of the group, or the waiting queue pseudo-car, once the batch of the journey is written.
+   */
+  public Mono<CarEntity> journey(GroupOfPeopleEntity group) {
+    return Mono.defer(() -> {
+      MonoProcessor<CarEntity> outcome = MonoProcessor.create();
+      journeysSink.next(new PendingJourney(group, outcome));
+      return outcome;
+    });
+  }
+
+  private Mono<Void> assign(List<PendingJourney> batch) {
+    journeyBatch(batch.size());
+    log.debug("assigning a batch of {} journeys", batch.size());
+    List<GroupOfPeopleEntity> groups = batch.stream().map(journey -> journey.group).collect(Collectors.toList());
+    return carsRepository.assignAll(groups)
+      .doOnNext(cars -> {
+        // Only the first journey of a group repeated in the batch journeyed it
+        Set<Integer> journeyed = new HashSet<>();
+        batch.forEach(journey -> {
+          Integer groupId = journey.group.getId();
+          journey.complete(journeyed.add(groupId) ? cars.get(groupId) : null);
+        });
+      })
+      .onErrorResume(err -> {
+        log.info("batch of {} journeys not assigned: {}", batch.size(), err.getMessage());
+        batch.forEach(journey -> journey.outcome.onError(err));
+        return Mono.empty();
+      })
+      .then();
+  }
+
+  /**
+   * Assign the journeys buffered, and stop batching.
+   */
+  @Override
+  public void destroy() {
+    journeysSink.complete();
+  }
+
+  @RequiredArgsConstructor
+  private static class PendingJourney {
+    private final GroupOfPeopleEntity group;
+    private final MonoProcessor<CarEntity> outcome;
+
+    void complete(CarEntity car) {
+      if (car != null) {
+        outcome.onNext(car);
+      } else {
+        outcome.onError(new DuplicateJourneyException(group.getId()));
+      }
+    }
+  }
+
+  public static class DuplicateJourneyException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    DuplicateJourneyException(Integer groupId) {
+      super("group " + groupId + " already assigned or waiting, not journeyed again");
+    }
+  }
+}
@@ -0,0 +1,63 @@
+package bs.carpooling.service;
+
+import bs.carpooling.entity.GroupOfPeopleEntity;
+import bs.carpooling.repository.CustomizedCarsRepository;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+
+import java.time.Duration;
+import java.util.Date;
+
+import static bs.carpooling.metrics.CarPoolingMetrics.staleClaimRecovered;
+
+/**
+ * Recovers waiting groups whose reassignment claim is older than {@code carpooling.reassignment.claim-timeout}, e.g.
+ * because the node reassigning them stopped: the reassignment is completed if the group already entered a car,
+ * otherwise the group is released to be claimed again.
+ */
+@Component
+@Slf4j
+public class ReassignmentClaimSweeper implements InitializingBean, DisposableBean {
+
+  private final CustomizedCarsRepository carsRepository;
+  private final Duration claimTimeout;
+  private final Duration sweepInterval;
+  private Disposable sweeping;
+
+  public ReassignmentClaimSweeper(CustomizedCarsRepository carsRepository,
+                                  @Value("${carpooling.reassignment.claim-timeout:10s}") Duration claimTimeout,
+                                  @Value("${carpooling.reassignment.sweep-interval:5s}") Duration sweepInterval) {
+    this.carsRepository = carsRepository;
+    this.claimTimeout = claimTimeout;
+    this.sweepInterval = sweepInterval;
+  }
+
+  @Override
+  public void afterPropertiesSet() {
+    sweeping = Flux.interval(sweepInterval)
+      .onBackpressureDrop()
+      .concatMap(tick -> sweep()
+        .onErrorResume(err -> {
+          log.info(err.getMessage());
+          return Flux.empty();
+        }))
+      .subscribe(group -> {
+        staleClaimRecovered();
+        log.info("recovered stale reassignment claim of group {}", group.getId());
+      });
+  }
+
+  Flux<GroupOfPeopleEntity> sweep() {
+    return carsRepository.releaseStaleClaims(new Date(System.currentTimeMillis() - claimTimeout.toMillis()));
+  }
+
+  @Override
+  public void destroy() {
+    sweeping.dispose();
+  }
+}
@@ -0,0 +1,252 @@
+package bs.carpooling.service;
+
+import bs.carpooling.entity.CarEntity;
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoWriteException;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.Updates;
+import com.mongodb.reactivestreams.client.MongoCollection;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.data.mongodb.ReactiveMongoDatabaseFactory;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+import static bs.carpooling.repository.CarsRepository.DEFAULT_ZONE;
+import static bs.carpooling.repository.CarsRepository.WAITING_QUEUE;
+
+/**
+ * {@code carpooling.reassignment.leader.enabled}: only the node holding the reassignment lease of a zone runs the
+ * reassignment passes of that zone, the other nodes forward their "seats freed" signals to it through the
+ * {@code reassignmentSignals} collection. A node contends for the zones it has seen signals of, so routing requests by
+ * zone spreads the leases over the nodes.
+ * <p>
+ * Each lease is a document of {@code reassignmentLease} taken once expired and renewed by its holder every
+ * {@code renew-interval}, for {@code lease-duration}. Each holder gets a new fencing token: a pass only runs matches
+ * while the lease that started it is held. The holder takes its lease for lost half a lease duration before it
+ * expires, so node clocks only need to agree within that margin; a paused holder may still finish the match in
+ * flight, which the reassignment claims of waiting groups keep correct.
+ */
+@Component
+@ConditionalOnExpression("${carpooling.reassignment.leader.enabled:false} && '${carpooling.allocation.mode:mongo}' != 'engine'")
+@Slf4j
+public class ReassignmentLeader implements DisposableBean {
+
+  static final String LEASES = "reassignmentLease";
+  static final String SIGNALS = "reassignmentSignals";
+  private static final String LEASE_ID = "reassignment";
+  private static final String ZONE = "zone";
+  private static final String ID = "_id";
+  private static final String HOLDER = "holder";
+  private static final String TOKEN = "token";
+  private static final String EXPIRES_AT = "expiresAt";
+  private static final String CAR_ID = "carId";
+  private static final String SEATS = "seatsAvailable";
+  private static final int SIGNALS_BATCH = 1000;
+
+  private final MongoCollection<Document> leases;
+  private final MongoCollection<Document> signals;
+  private final String holder;
+  private final Duration leaseDuration;
+  private final Duration renewInterval;
+  private final Duration signalPollInterval;
+
+  // Lease of each zone contended for, by zone key
+  private final Map<String, Lease> zoneLeases = new ConcurrentHashMap<>();
+  private Disposable leasing;
+  private Disposable polling;
+
+  public ReassignmentLeader(ReactiveMongoDatabaseFactory mongoDatabaseFactory,
+                            @Value("${carpooling.reassignment.leader.lease-duration:10s}") Duration leaseDuration,
+                            @Value("${carpooling.reassignment.leader.renew-interval:3s}") Duration renewInterval,
+                            @Value("${carpooling.reassignment.leader.signal-poll-interval:100ms}") Duration signalPollInterval) {
+    this.leases = mongoDatabaseFactory.getMongoDatabase().getCollection(LEASES);
+    this.signals = mongoDatabaseFactory.getMongoDatabase().getCollection(SIGNALS);
+    // Unique per process: a restarted node is a new holder
+    this.holder = ManagementFactory.getRuntimeMXBean().getName() + "/" + UUID.randomUUID();
+    this.leaseDuration = leaseDuration;
+    this.renewInterval = renewInterval;
+    this.signalPollInterval = signalPollInterval;
+    zoneLeases.put(DEFAULT_ZONE, new Lease());
+  }
+
+  /**
+   * Contend for the leases, and for the zones held deliver the forwarded signals (plus a match of the waiting queue
+   * head on taking a lease over, for the signals lost with the previous holder) to the reassignment passes of this
+   * node.
+   */
+  public void start(Consumer<CarEntity> seatsFreed) {
+    // Driver operations only: unlike the template, they publish no application events while the context starts
+    leasing = Flux.interval(Duration.ZERO, renewInterval)
+      .onBackpressureDrop()
+      .concatMap(tick -> Flux.fromIterable(zoneLeases.keySet())
+        .concatMap(zone -> acquireOrRenew(zone)
+          .onErrorResume(err -> {
+            log.info("reassignment lease of zone '{}' not renewed: {}", zone, err.getMessage());
+            return Mono.empty();
+          })))
+      .subscribe(zone -> {
+        log.info("reassignment lease of zone '{}' acquired by {} with token {}", zone, holder, zoneLeases.get(zone).token);
+        seatsFreed.accept(CarEntity.builder().id(WAITING_QUEUE).seatsAvailable(0).zone(zoneOf(zone)).build());
+      });
+    polling = Flux.interval(signalPollInterval)
+      .onBackpressureDrop()
+      .filter(tick -> !heldZones().isEmpty())
+      .concatMap(tick -> receiveSignals()
+        .onErrorResume(err -> {
+          log.info("reassignment signals not received: {}", err.getMessage());
+          return Flux.empty();
+        }))
+      .subscribe(seatsFreed);
+  }
+
+  /**
+   * @return the zone if its lease was newly acquired, empty if renewed or not held.
+   */
+  private Mono<String> acquireOrRenew(String zone) {
+    Lease zoneLease = zoneLeases.get(zone);
+    String leaseId = leaseId(zone);
+    long held = zoneLease.token;
+    long start = System.currentTimeMillis();
+    Date expiresAt = new Date(start + leaseDuration.toMillis());
+    Mono<Document> lease = held != 0
+      ? Mono.from(leases.findOneAndUpdate(Filters.and(Filters.eq(ID, leaseId), Filters.eq(HOLDER, holder), Filters.eq(TOKEN, held)),
+      Updates.set(EXPIRES_AT, expiresAt), new FindOneAndUpdateOptions().returnDocument(ReturnDocument.AFTER)))
+      : Mono.from(leases.findOneAndUpdate(Filters.and(Filters.eq(ID, leaseId), Filters.lt(EXPIRES_AT, new Date(start))),
+      Updates.combine(Updates.set(HOLDER, holder), Updates.set(EXPIRES_AT, expiresAt), Updates.inc(TOKEN, 1L)),
+      new FindOneAndUpdateOptions().returnDocument(ReturnDocument.AFTER)))
+      .switchIfEmpty(Mono.defer(() -> firstLease(leaseId, expiresAt)));
+    return lease
+      .map(acquired -> {
+        zoneLease.token = acquired.get(TOKEN, Number.class).longValue();
+        zoneLease.heldUntil = start + leaseDuration.toMillis() / 2;
+        return held != zoneLease.token;
+      })
+      .switchIfEmpty(Mono.fromRunnable(() -> {
+        if (held != 0) {
+          log.info("reassignment lease of zone '{}' with token {} lost by {}", zone, held, holder);
+        }
+        zoneLease.token = 0;
+      }))
+      .filter(acquired -> acquired)
+      .map(acquired -> zone);
+  }
+
+  // The default zone keeps the lease id of the unpartitioned fleet
+  private static String leaseId(String zone) {
+    return DEFAULT_ZONE.equals(zone) ? LEASE_ID : LEASE_ID + ":" + zone;
+  }
+
+  private static String zoneOf(String zone) {
+    return DEFAULT_ZONE.equals(zone) ? null : zone;
+  }
+
+  private static String keyOf(String zone) {
+    return zone != null ? zone : DEFAULT_ZONE;
+  }
+
+  // Empty if the lease exists already, held by another node
+  private Mono<Document> firstLease(String leaseId, Date expiresAt) {
+    Document lease = new Document(ID, leaseId).append(HOLDER, holder).append(TOKEN, 1L).append(EXPIRES_AT, expiresAt);
+    return Mono.from(leases.insertOne(lease))
+      .thenReturn(lease)
+      .onErrorResume(err -> err instanceof MongoWriteException
+        && ((MongoWriteException) err).getError().getCategory() == ErrorCategory.DUPLICATE_KEY, err -> Mono.empty());
+  }
+
+  private Flux<CarEntity> receiveSignals() {
+    return Flux.from(signals.find(Filters.in(ZONE, heldZones())).sort(Sorts.ascending(ID)).limit(SIGNALS_BATCH))
+      .collectList()
+      .filter(received -> !received.isEmpty())
+      // Removed before being served: a signal lost with this node is covered by the next holder's match of the head
+      .flatMapMany(received -> Mono.from(signals.deleteMany(Filters.in(ID, ids(received))))
+        .thenMany(Flux.fromIterable(received)))
+      .map(signal -> CarEntity.builder().id(signal.getInteger(CAR_ID)).seatsAvailable(signal.getInteger(SEATS))
+        .zone(zoneOf(signal.getString(ZONE))).build());
+  }
+
+  private List<String> heldZones() {
+    return zoneLeases.keySet().stream().filter(this::isLeader).collect(Collectors.toList());
+  }
+
+  private static List<Object> ids(List<Document> documents) {
+    return documents.stream().map(document -> document.get(ID)).collect(Collectors.toList());
+  }
+
+  /**
+   * @return whether this node holds the lease of a zone, for at least half a lease duration since last renewed.
+   */
+  public boolean isLeader(String zone) {
+    Lease lease = zoneLeases.get(keyOf(zone));
+    return lease != null && lease.token != 0 && System.currentTimeMillis() < lease.heldUntil;
+  }
+
+  /**
+   * @return the fencing token of the lease held for a zone, 0 if not held.
+   */
+  public long getToken(String zone) {
+    return isLeader(zone) ? zoneLeases.get(keyOf(zone)).token : 0;
+  }
+
+  public boolean holds(String zone, long leaseToken) {
+    return leaseToken != 0 && leaseToken == getToken(zone);
+  }
+
+  /**
+   * Forward a "seats freed" signal to the lease holder of the zone of the car, and contend for that lease from now on.
+   */
+  public void forward(CarEntity car) {
+    String zone = keyOf(car.getZone());
+    zoneLeases.computeIfAbsent(zone, newZone -> new Lease());
+    Mono.from(signals.insertOne(new Document(CAR_ID, car.getId()).append(SEATS, car.getSeatsAvailable()).append(ZONE, zone)))
+      .subscribe(success -> log.debug("seats freed in car {} forwarded", car.getId()),
+        err -> log.info("seats freed in car {} not forwarded: {}", car.getId(), err.getMessage()));
+  }
+
+  @Override
+  public void destroy() {
+    if (polling != null) {
+      polling.dispose();
+    }
+    if (leasing != null) {
+      leasing.dispose();
+    }
+    zoneLeases.forEach((zone, lease) -> {
+      long held = lease.token;
+      lease.token = 0;
+      if (held != 0) {
+        // Hand over right away instead of after the lease duration
+        Bson ownLease = Filters.and(Filters.eq(ID, leaseId(zone)), Filters.eq(HOLDER, holder), Filters.eq(TOKEN, held));
+        Mono.from(leases.updateOne(ownLease, Updates.set(EXPIRES_AT, new Date(0))))
+          .timeout(renewInterval)
+          .onErrorResume(err -> Mono.empty())
+          .block();
+      }
+    });
+  }
+
+  private static class Lease {
+    // Fencing token of the lease held, 0 if not held
+    private volatile long token;
+    private volatile long heldUntil;
+  }
+}
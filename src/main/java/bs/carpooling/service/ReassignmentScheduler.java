@@ -0,0 +1,204 @@
+package bs.carpooling.service;
+
+import bs.carpooling.entity.CarEntity;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static bs.carpooling.metrics.CarPoolingMetrics.reassignmentFailed;
+import static bs.carpooling.repository.CarsRepository.DEFAULT_ZONE;
+import static bs.carpooling.repository.CarsRepository.WAITING_QUEUE;
+
+/**
+ * Single writer of waiting group reassignments: runs at most one reassignment pass at a time on its own thread, and
+ * coalesces every "seats freed" signal received while a pass is running into one more pass. With a
+ * {@link ReassignmentLeader}, the matches of a zone only run on the node holding its reassignment lease, and the other
+ * nodes forward their signals to it.
+ */
+@Component
+@Slf4j
+public class ReassignmentScheduler implements InitializingBean, DisposableBean {
+
+  private final WaitingQueueMatcher waitingQueueMatcher;
+  private final ReassignmentLeader leader;
+  private final Scheduler scheduler = Schedulers.newSingle("reassignment", true);
+  // Signals not yet served by a finished pass, non-zero while a pass is in flight
+  private final AtomicInteger pendingSignals = new AtomicInteger();
+  // Latest seats available of each car that freed seats since the last pass started
+  private final Map<Integer, CarEntity> carsWithSeatsFreed = new ConcurrentHashMap<>();
+  // Zones (by key) whose waiting queue head left since the last pass started
+  private final Set<String> waitingQueueHeadLeft = ConcurrentHashMap.newKeySet();
+
+  private volatile Duration lastPassDuration = Duration.ZERO;
+  private volatile long lastPassWaitingGroups;
+
+  public ReassignmentScheduler(WaitingQueueMatcher waitingQueueMatcher) {
+    this(waitingQueueMatcher, (ReassignmentLeader) null);
+  }
+
+  @Autowired
+  public ReassignmentScheduler(WaitingQueueMatcher waitingQueueMatcher, ObjectProvider<ReassignmentLeader> leader) {
+    this(waitingQueueMatcher, leader.getIfAvailable());
+  }
+
+  ReassignmentScheduler(WaitingQueueMatcher waitingQueueMatcher, ReassignmentLeader leader) {
+    this.waitingQueueMatcher = waitingQueueMatcher;
+    this.leader = leader;
+  }
+
+  @Override
+  public void afterPropertiesSet() {
+    if (leader != null) {
+      leader.start(this::schedule);
+    }
+  }
+
+  /**
+   * A group left the car (or the waiting queue): make sure a pass runs after this signal, on the node holding the
+   * reassignment lease of its zone if any.
+   */
+  public void seatsFreed(CarEntity car) {
+    if (leader != null && !leader.isLeader(car.getZone())) {
+      leader.forward(car);
+    } else {
+      schedule(car);
+    }
+  }
+
+  private void schedule(CarEntity car) {
+    if (WAITING_QUEUE.equals(car.getId())) {
+      waitingQueueHeadLeft.add(keyOf(car.getZone()));
+    } else {
+      carsWithSeatsFreed.put(car.getId(), car);
+    }
+    if (pendingSignals.getAndIncrement() == 0) {
+      runPass();
+    }
+  }
+
+  private void runPass() {
+    int servedSignals = pendingSignals.get();
+    long start = System.nanoTime();
+
+    // Built on the reassignment thread too: a failure building it (e.g. reading a lease) must still end the pass
+    Flux.defer(this::reassignmentPass)
+      .subscribeOn(scheduler)
+      .doFinally(signal -> {
+        lastPassDuration = Duration.ofNanos(System.nanoTime() - start);
+        log.debug("reassignment pass served {} signals in {}", servedSignals, lastPassDuration);
+        if (pendingSignals.addAndGet(-servedSignals) != 0) {
+          runPass();
+        }
+      })
+      .subscribe(reassigned -> log.debug("reassigned {}", reassigned), err -> {
+        reassignmentFailed();
+        log.warn("reassignment pass failed: {}", err.getMessage());
+      });
+  }
+
+  private Flux<?> reassignmentPass() {
+    // Thread-safety: see carsRepository.reassign()
+
+    // Tokens of the leases held as the pass starts, by zone key
+    Map<String, Long> leaseTokens = new HashMap<>();
+    List<Flux<?>> matches = new ArrayList<>();
+    for (Integer carId : carsWithSeatsFreed.keySet()) {
+      CarEntity car = carsWithSeatsFreed.remove(carId);
+      if (car != null) {
+        matches.add(fenced(leaseToken(leaseTokens, car.getZone()), car,
+          () -> waitingQueueMatcher.fillCar(carId, car.getZone(), car.getSeatsAvailable())));
+      }
+    }
+    for (String zone : waitingQueueHeadLeft) {
+      if (waitingQueueHeadLeft.remove(zone)) {
+        String carZone = DEFAULT_ZONE.equals(zone) ? null : zone;
+        matches.add(fenced(leaseToken(leaseTokens, carZone), CarEntity.builder().id(WAITING_QUEUE).seatsAvailable(0).zone(carZone).build(),
+          () -> waitingQueueMatcher.matchHeadOfQueue(carZone)));
+      }
+    }
+    // concat to do only one reassignment at a time
+    return Flux.concat(matches)
+      .concatWith(waitingQueueMatcher.countWaiting()
+        .doOnNext(waitingGroups -> lastPassWaitingGroups = waitingGroups)
+        .onErrorResume(err -> Mono.empty()));
+  }
+
+  private long leaseToken(Map<String, Long> leaseTokens, String zone) {
+    return leader != null ? leaseTokens.computeIfAbsent(keyOf(zone), key -> leader.getToken(zone)) : 0;
+  }
+
+  private static String keyOf(String zone) {
+    return zone != null ? zone : DEFAULT_ZONE;
+  }
+
+  // A match left once the lease of its zone is lost goes to the next holder
+  private Flux<?> fenced(long leaseToken, CarEntity seatsFreed, Supplier<Flux<?>> match) {
+    return Flux.defer(() -> {
+      if (leader != null && !leader.holds(seatsFreed.getZone(), leaseToken)) {
+        leader.forward(seatsFreed);
+        return Flux.empty();
+      }
+      return logErrors(match.get());
+    });
+  }
+
+  // A failed match must not stop the other ones of the pass
+  private Flux<?> logErrors(Flux<?> match) {
+    return match.onErrorResume(err -> {
+      reassignmentFailed();
+      log.info(err.getMessage());
+      return Flux.empty();
+    });
+  }
+
+  /**
+   * @return signals waiting for a pass, including those being served by the pass in flight.
+   */
+  public int getPendingSignals() {
+    return pendingSignals.get();
+  }
+
+  /**
+   * @return cars whose freed seats wait for the next pass.
+   */
+  public int getPendingCars() {
+    return carsWithSeatsFreed.size();
+  }
+
+  public boolean isPassInFlight() {
+    return pendingSignals.get() != 0;
+  }
+
+  /**
+   * @return groups waiting (every zone) once the last pass was done.
+   */
+  public long getLastPassWaitingGroups() {
+    return lastPassWaitingGroups;
+  }
+
+  public Duration getLastPassDuration() {
+    return lastPassDuration;
+  }
+
+  @Override
+  public void destroy() {
+    scheduler.dispose();
+  }
+}
@@ -0,0 +1,95 @@
+package bs.carpooling.service;
+
+import bs.carpooling.dto.GroupEventDTO.Event;
+import bs.carpooling.entity.CarEntity;
+import bs.carpooling.entity.GroupOfPeopleEntity;
+import bs.carpooling.metrics.WaitTimes;
+import bs.carpooling.repository.CustomizedCarsRepository;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+
+import static bs.carpooling.metrics.CarPoolingMetrics.optimisticFailure;
+
+/**
+ * Assigns waiting groups to free seats in FIFO order within their zone, skipping groups that do not fit. How far it may
+ * skip the head of the waiting queue, and how many times a group may be skipped before the seats are held for it, are
+ * bounded by {@code carpooling.reassignment.max-skipped} (0 is strict FIFO), so big groups are not starved by smaller
+ * ones arriving later.
+ */
+@Component
+@Slf4j
+public class WaitingQueueMatcher {
+
+  private final CustomizedCarsRepository carsRepository;
+  private final int maxSkipped;
+  private final WaitTimes waitTimes;
+  private final GroupEvents groupEvents;
+
+  public WaitingQueueMatcher(CustomizedCarsRepository carsRepository,
+                             @Value("${carpooling.reassignment.max-skipped:0}") int maxSkipped,
+                             WaitTimes waitTimes,
+                             GroupEvents groupEvents) {
+    this.carsRepository = carsRepository;
+    this.maxSkipped = maxSkipped;
+    this.waitTimes = waitTimes;
+    this.groupEvents = groupEvents;
+  }
+
+  /**
+   * Assign every waiting group of the zone of a car that fits in its seats available, oldest first.
+   *
+   * @return the car after each assignment.
+   */
+  public Flux<CarEntity> fillCar(Integer carId, String zone, int seatsAvailable) {
+    return assignOneTo(carId, zone, seatsAvailable)
+      .expand(car -> assignOneTo(carId, zone, car.getSeatsAvailable()));
+  }
+
+  private Mono<CarEntity> assignOneTo(Integer carId, String zone, int seatsAvailable) {
+    return carsRepository.findFirstWaitingThatFits(zone, seatsAvailable, maxSkipped)
+      // empty if the seats were taken meanwhile: nothing left to fill
+      .flatMap(waitingGroup -> carsRepository.reassignToCar(waitingGroup, carId)
+        .doOnNext(car -> {
+          waitTimes.reassigned(waitingGroup);
+          groupEvents.publish(waitingGroup.getId(), Event.ASSIGNED, carId);
+        }))
+      .doOnError(err -> optimisticFailure("fillCar"))
+      // retry failed optimistic concurrent executions (e.g. the waiting group was dropped off meanwhile)
+      .retryBackoff(3, Duration.ofMillis(200));
+  }
+
+  /**
+   * Assign the head of the waiting queue of a zone to any car of the zone, as long as it fits.
+   */
+  public Flux<GroupOfPeopleEntity> matchHeadOfQueue(String zone) {
+    // Reassign as many as waiting groups at the moment (run reassignOneWaitingGroup n times)
+    return carsRepository.countWaiting(zone)
+      .flatMapMany(waitingGroups -> Flux.range(0, waitingGroups.intValue()))
+      // concatMap to do only one reassignOneWaitingGroup at a time
+      .concatMap(i -> carsRepository.reassignOneWaitingGroup(zone).collectList())
+      // the first waiting group did not fit in any car, the next runs would try it again
+      .takeWhile(reassigned -> !reassigned.isEmpty())
+      .flatMapIterable(reassigned -> reassigned)
+      .doOnNext(waitTimes::reassigned)
+      .concatMap(this::publishAssigned);
+  }
+
+  public Mono<Long> countWaiting() {
+    return carsRepository.countWaiting();
+  }
+
+  // The car is not known here: only located for subscribed groups
+  private Mono<GroupOfPeopleEntity> publishAssigned(GroupOfPeopleEntity group) {
+    if (!groupEvents.isSubscribed(group.getId())) {
+      return Mono.just(group);
+    }
+    return carsRepository.locateCarOfGroup(group.getId())
+      .doOnNext(car -> groupEvents.publish(group.getId(), Event.ASSIGNED, car.getId()))
+      .thenReturn(group);
+  }
+}
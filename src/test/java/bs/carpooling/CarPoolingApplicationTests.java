@@ -16,6 +16,7 @@ import reactor.core.publisher.Flux;
 import reactor.core.publisher.Hooks;
 import reactor.test.StepVerifier;
 
+import static bs.carpooling.controller.CodecConfiguration.APPLICATION_NDJSON_VALUE;
 import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.awaitility.Awaitility.await;
 
@@ -54,6 +55,17 @@ public class CarPoolingApplicationTests {
       .syncBody(FileUtil.loadFile("put-cars-46.ok.json")).exchange();
   }
 
+  @Test
+  public void WhenPutCarsNdjson_ThenCarsSummary() {
+    ResponseSpec result = webClient.put().uri("http://localhost/cars").contentType(MediaType.parseMediaType(APPLICATION_NDJSON_VALUE))
+      .syncBody(FileUtil.loadFile("put-cars-46.ok.ndjson")).exchange();
+
+    result.expectStatus().isOk()
+      .expectBody()
+      .jsonPath("$.cars").isEqualTo(2)
+      .jsonPath("$.seats").isEqualTo(10);
+  }
+
   @Test
   public void WhenPutCarsBadFormat_Then400BadRequest() {
     webClient.put().uri("http://localhost/cars").contentType(MediaType.APPLICATION_JSON)
@@ -72,6 +84,28 @@ public class CarPoolingApplicationTests {
       .syncBody(FileUtil.loadFile("post-journey-4.ok.json")).exchange();
   }
 
+  private ResponseSpec postJourney(int groupId, int people) {
+    return webClient.post().uri("http://localhost/journey").contentType(MediaType.APPLICATION_JSON)
+      .syncBody("{\"id\": " + groupId + ", \"people\": " + people + "}").exchange();
+  }
+
+  @Test
+  public void GivenCars_WhenPostJourneys_ThenOutcomesInOrder() {
+    putCars46().expectStatus().isOk();
+
+    ResponseSpec result = webClient.post().uri("http://localhost/journeys").contentType(MediaType.APPLICATION_JSON)
+      .syncBody("[{\"id\": 1, \"people\": 6}, {\"id\": 2, \"people\": 4}, {\"id\": 3, \"people\": 1}, {\"id\": 1, \"people\": 2}]")
+      .exchange();
+
+    result.expectStatus().isOk()
+      .expectBody()
+      .jsonPath("$.length()").isEqualTo(4)
+      .jsonPath("$[0].outcome").isEqualTo("ASSIGNED").jsonPath("$[0].carId").isEqualTo(2)
+      .jsonPath("$[1].outcome").isEqualTo("ASSIGNED").jsonPath("$[1].carId").isEqualTo(1)
+      .jsonPath("$[2].outcome").isEqualTo("WAITING").jsonPath("$[2].carId").doesNotExist()
+      .jsonPath("$[3].id").isEqualTo(1).jsonPath("$[3].outcome").isEqualTo("DUPLICATE");
+  }
+
   @Test
   public void WhenPostJourneyBadFormat_Then400BadRequest() {
     webClient.post().uri("http://localhost/journey").contentType(MediaType.APPLICATION_JSON)
@@ -112,6 +146,22 @@ public class CarPoolingApplicationTests {
     result.expectStatus().isOk();
   }
 
+  @Test
+  public void GivenGroupsAssignedAndWaiting_WhenPostDropoffsNdjson_ThenOutcomesInOrder() {
+    putCars46().expectStatus().isOk();
+    postJourney(1, 6).expectStatus().isOk();
+    postJourney(2, 6).expectStatus().isOk();
+
+    ResponseSpec result = webClient.post().uri("http://localhost/dropoffs").contentType(MediaType.parseMediaType(APPLICATION_NDJSON_VALUE))
+      .syncBody("{\"id\": 2}\n{\"id\": 13}\n{\"id\": 1}\n").exchange();
+
+    result.expectStatus().isOk()
+      .expectBody()
+      .jsonPath("$[0].outcome").isEqualTo("LEFT_WAITING_QUEUE")
+      .jsonPath("$[1].outcome").isEqualTo("NOT_FOUND")
+      .jsonPath("$[2].outcome").isEqualTo("DROPPED_OFF").jsonPath("$[2].carId").isEqualTo(2);
+  }
+
   @Test
   public void WhenPostDropoffBadFormat_Then400() {
     webClient.post().uri("http://localhost/dropoff").contentType(MediaType.APPLICATION_FORM_URLENCODED)
@@ -188,4 +238,48 @@ public class CarPoolingApplicationTests {
     StepVerifier.create(carsRepository.findAllGroupsWaiting()).verifyComplete();
   }
 
+  @Test
+  public void GivenGroupAssigned_WhenGetGroupEvents_ThenAssigned_AndDroppedOnDropoff() {
+    putCars46();
+    postJourney4();
+
+    Flux<String> events = webClient.get().uri("http://localhost/groups/1/events").accept(MediaType.TEXT_EVENT_STREAM)
+      .exchange()
+      .expectStatus().isOk()
+      .returnResult(String.class).getResponseBody();
+
+    StepVerifier.create(events)
+      .expectNextMatches(event -> event.contains("\"ASSIGNED\"") && event.contains("\"carId\":1"))
+      .then(() -> postDropoff(1).expectStatus().isOk())
+      .expectNextMatches(event -> event.contains("\"DROPPED\""))
+      .verifyComplete();
+  }
+
+  @Test
+  public void GivenGroupNotExists_WhenGetGroupEvents_Then404() {
+    webClient.get().uri("http://localhost/groups/13/events").accept(MediaType.TEXT_EVENT_STREAM)
+      .exchange()
+      .expectStatus().isNotFound();
+  }
+
+  @Test
+  public void GivenGroupReassigned_WhenGetWaitTimes_ThenDistributionOfItsSize() {
+    putCars46();
+    postJourney(2, 4).expectStatus().isOk();
+    postJourney(3, 6).expectStatus().isOk();
+    postJourney4().expectStatus().isOk();
+    postDropoff(2).expectStatus().isOk();
+    await().atMost(1, SECONDS).ignoreExceptions().until(() -> {
+      postLocate(1).expectStatus().isOk();
+      return true;
+    });
+
+    ResponseSpec result = webClient.get().uri("http://localhost/admin/wait-times").accept(MediaType.APPLICATION_JSON).exchange();
+
+    result.expectStatus().isOk()
+      .expectBody()
+      .jsonPath("$.oldestWaitingMillis").isEqualTo(0)
+      .jsonPath("$.byPeople[?(@.people == 4)].count").isNotEmpty();
+  }
+
 }
@@ -0,0 +1,46 @@
+package bs.carpooling.allocation;
+
+import bs.carpooling.entity.CarEntity;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class AllocationPolicyTest {
+
+  private static final int LARGE_GROUP = 4;
+
+  private final List<CarEntity> cars = Arrays.asList(
+    CarEntity.builder().id(1).seatsAvailable(6).build(),
+    CarEntity.builder().id(2).seatsAvailable(2).build(),
+    CarEntity.builder().id(3).seatsAvailable(4).build());
+
+  @Test
+  public void GivenPolicies_WhenPreferredCar_ThenCarOfEachPolicy() {
+    assertEquals(Integer.valueOf(2), preferred(new BestFitPolicy()));
+    assertEquals(Integer.valueOf(1), preferred(new FirstFitPolicy()));
+    assertEquals(Integer.valueOf(1), preferred(new WorstFitPolicy()));
+  }
+
+  @Test
+  public void GivenSizeClassPolicy_WhenSmallGroup_ThenFitsOnlyCarsKeepingSeatsForLargeGroup() {
+    AllocationPolicy policy = new SizeClassPolicy(LARGE_GROUP);
+
+    assertTrue(policy.fits(3, 2));
+    assertFalse(policy.fits(5, 2));
+    assertTrue(policy.fits(6, 2));
+    assertTrue(policy.fits(5, 4));
+    assertFalse(policy.fits(1, 2));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void GivenUnknownPolicyName_WhenNamed_ThenRejected() {
+    AllocationPolicy.named("random-fit", LARGE_GROUP);
+  }
+
+  private Integer preferred(AllocationPolicy policy) {
+    return cars.stream().min(policy.preference()).map(CarEntity::getId).orElse(null);
+  }
+}
@@ -0,0 +1,89 @@
+package bs.carpooling.allocation;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.OptionalInt;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class SeatBucketsTest {
+
+  private static final int CONCURRENT_REQUESTS = 20;
+
+  private SeatBuckets seatBuckets;
+
+  @Before
+  public void before() {
+    seatBuckets = new SeatBuckets(6);
+  }
+
+  @Test
+  public void GivenCarsWithAvailableSeats_WhenReserve_ThenCarWithLeastNeededAvailableSeats() {
+    seatBuckets.put(1, 1, 0);
+    seatBuckets.put(2, 6, 0);
+    seatBuckets.put(3, 3, 0);
+
+    OptionalInt result = seatBuckets.reserve(2);
+
+    assertEquals(OptionalInt.of(3), result);
+    assertEquals(OptionalInt.of(1), seatBuckets.freeSeats(3));
+  }
+
+  @Test
+  public void GivenCarsWithoutEnoughAvailableSeats_WhenReserve_ThenEmpty() {
+    seatBuckets.put(1, 3, 0);
+
+    assertFalse(seatBuckets.reserve(4).isPresent());
+  }
+
+  @Test
+  public void GivenReservation_WhenCancel_ThenSeatsFreed() {
+    seatBuckets.put(1, 4, 0);
+    seatBuckets.reserve(4);
+
+    seatBuckets.cancel(1, 4);
+
+    assertEquals(OptionalInt.of(1), seatBuckets.reserve(4));
+  }
+
+  @Test
+  public void GivenReservation_WhenConfirmedOutOfOrder_ThenOlderVersionIgnored() {
+    seatBuckets.put(1, 6, 0);
+    seatBuckets.reserve(2);
+    seatBuckets.reserve(2);
+
+    seatBuckets.confirm(1, 2, 2, 2);
+    seatBuckets.confirm(1, 2, 4, 1);
+
+    assertEquals(OptionalInt.of(2), seatBuckets.freeSeats(1));
+  }
+
+  @Test
+  public void GivenCarWith4SeatsAvailable_WhenConcurrentReservesOf4_ThenReservedForOnlyOne() throws InterruptedException {
+    seatBuckets.put(1, 4, 0);
+    CountDownLatch startGate = new CountDownLatch(1);
+    CountDownLatch finishLine = new CountDownLatch(CONCURRENT_REQUESTS);
+    List<Integer> reserved = new CopyOnWriteArrayList<>();
+
+    for (int i = 0; i < CONCURRENT_REQUESTS; i++) {
+      new Thread(() -> {
+        try {
+          startGate.await();
+          seatBuckets.reserve(4).ifPresent(reserved::add);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        finishLine.countDown();
+      }).start();
+    }
+    startGate.countDown();
+
+    assertTrue(finishLine.await(5, TimeUnit.SECONDS));
+    assertEquals(1, reserved.size());
+  }
+}
@@ -0,0 +1,42 @@
+package bs.carpooling.allocation;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SeatHistogramTest {
+
+  private SeatHistogram seatHistogram;
+
+  @Before
+  public void before() {
+    seatHistogram = new SeatHistogram(6);
+  }
+
+  @Test
+  public void GivenCarsWithoutEnoughAvailableSeats_WhenFits_ThenFalse() {
+    seatHistogram.put(1, 3, 0);
+    seatHistogram.put(2, 0, 0);
+
+    assertTrue(seatHistogram.fits(3));
+    assertFalse(seatHistogram.fits(4));
+  }
+
+  @Test
+  public void GivenCarChanged_WhenPut_ThenCountedOnlyWithItsNewSeats() {
+    seatHistogram.put(1, 6, 0);
+    seatHistogram.put(1, 2, 1);
+
+    assertArrayEquals(new long[]{0, 0, 1, 0, 0, 0, 0}, seatHistogram.carsBySeats());
+    assertFalse(seatHistogram.fits(3));
+  }
+
+  @Test
+  public void GivenNewerVersionKnown_WhenPutOlderVersion_ThenIgnored() {
+    seatHistogram.put(1, 2, 2);
+    seatHistogram.put(1, 6, 1);
+
+    assertArrayEquals(new long[]{0, 0, 1, 0, 0, 0, 0}, seatHistogram.carsBySeats());
+  }
+}
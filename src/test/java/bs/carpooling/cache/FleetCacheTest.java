@@ -0,0 +1,103 @@
+package bs.carpooling.cache;
+
+import bs.carpooling.dto.GroupEventDTO;
+import bs.carpooling.dto.GroupEventDTO.Event;
+import bs.carpooling.service.GroupEvents;
+import com.mongodb.MongoNamespace;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.OperationType;
+import com.mongodb.client.model.changestream.UpdateDescription;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonInt64;
+import org.bson.Document;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+import org.springframework.data.mongodb.core.convert.NoOpDbRefResolver;
+import org.springframework.data.mongodb.core.mapping.MongoMappingContext;
+import reactor.test.StepVerifier;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Date;
+
+import static org.junit.Assert.*;
+
+public class FleetCacheTest {
+
+  private GroupEvents groupEvents;
+  private FleetCache fleetCache;
+
+  @Before
+  public void before() {
+    MappingMongoConverter converter = new MappingMongoConverter(NoOpDbRefResolver.INSTANCE, new MongoMappingContext());
+    converter.afterPropertiesSet();
+    groupEvents = new GroupEvents(10);
+    fleetCache = new FleetCache(null, converter, groupEvents, "node", Duration.ofMillis(500), Duration.ofSeconds(2));
+  }
+
+  @Test
+  public void GivenCarUpdatedTwice_WhenOlderUpdateArrivesLast_ThenNewerSeatsKept() {
+    fleetCache.apply(change("carEntity", OperationType.INSERT, 7, new Document("_id", 7).append("seatsAvailable", 4).append("version", 0L)), true);
+    fleetCache.apply(carUpdate(7, 1, 2), true);
+    fleetCache.apply(carUpdate(7, 3, 1), true);
+
+    assertEquals(1, (int) fleetCache.car(7).getSeatsAvailable());
+    assertEquals(2L, (long) fleetCache.car(7).getVersion());
+  }
+
+  @Test
+  public void GivenZonedCarAndWaitingGroup_WhenSeatsUpdated_ThenZonesKept() {
+    fleetCache.apply(change("carEntity", OperationType.INSERT, 7,
+      new Document("_id", 7).append("seatsAvailable", 4).append("version", 0L).append("zone", "north")), true);
+    fleetCache.apply(change("waitingGroups", OperationType.INSERT, 1, group(1).append("zone", "north")), true);
+    fleetCache.apply(carUpdate(7, 1, 1), true);
+
+    assertEquals(1, (int) fleetCache.car(7).getSeatsAvailable());
+    assertEquals("north", fleetCache.car(7).getZone());
+    assertEquals("north", fleetCache.waitingGroup(1).getZone());
+  }
+
+  @Test
+  public void GivenWaitingGroupSubscribed_WhenReassignedThenDropped_ThenAssignedAndDroppedPublished() {
+    fleetCache.apply(change("waitingGroups", OperationType.INSERT, 1, group(1)), true);
+
+    StepVerifier.create(groupEvents.subscribe(1).startWith(new GroupEventDTO(1, Event.WAITING, null)))
+      .expectNext(new GroupEventDTO(1, Event.WAITING, null))
+      .then(() -> fleetCache.apply(change("groupLocations", OperationType.INSERT, 1, group(1).append("carId", 7)), true))
+      .expectNext(new GroupEventDTO(1, Event.ASSIGNED, 7))
+      // leaves the waiting queue once in its car: still assigned
+      .then(() -> fleetCache.apply(change("waitingGroups", OperationType.DELETE, 1, null), true))
+      .then(() -> fleetCache.apply(change("groupLocations", OperationType.DELETE, 1, null), true))
+      .expectNext(new GroupEventDTO(1, Event.DROPPED, null))
+      .verifyComplete();
+    assertNull(fleetCache.location(1));
+    assertNull(fleetCache.waitingGroup(1));
+  }
+
+  @Test
+  public void GivenNoHeartbeatReceived_WhenIsFresh_ThenFalse() {
+    fleetCache.apply(change("waitingGroups", OperationType.INSERT, 1, group(1)), true);
+
+    assertFalse(fleetCache.isFresh());
+    assertNotNull(fleetCache.waitingGroup(1));
+  }
+
+  private static Document group(int id) {
+    return new Document("_id", id).append("people", 3).append("insertDate", new Date(1000));
+  }
+
+  private static ChangeStreamDocument<Document> carUpdate(int carId, int seats, long version) {
+    return new ChangeStreamDocument<>(new BsonDocument(), new MongoNamespace("carpooling", "carEntity"), null,
+      new BsonDocument("_id", new BsonInt32(carId)), OperationType.UPDATE,
+      new UpdateDescription(Collections.emptyList(),
+        new BsonDocument("seatsAvailable", new BsonInt32(seats)).append("version", new BsonInt64(version))));
+  }
+
+  private static ChangeStreamDocument<Document> change(String collection, OperationType operation, int id,
+                                                       Document fullDocument) {
+    return new ChangeStreamDocument<>(new BsonDocument(), new MongoNamespace("carpooling", collection), fullDocument,
+      new BsonDocument("_id", new BsonInt32(id)), operation, null);
+  }
+}
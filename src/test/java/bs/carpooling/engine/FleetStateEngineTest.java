@@ -0,0 +1,141 @@
+package bs.carpooling.engine;
+
+import bs.carpooling.entity.CarEntity;
+import bs.carpooling.entity.FleetEventEntity;
+import bs.carpooling.entity.GroupOfPeopleEntity;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+
+import static bs.carpooling.repository.CarsRepository.WAITING_QUEUE;
+import static org.junit.Assert.*;
+
+public class FleetStateEngineTest {
+
+  // Flushes and snapshots are triggered by the tests
+  private static final Duration NEVER = Duration.ofHours(1);
+
+  private InMemoryFleetEventLog eventLog;
+  private FleetStateEngine engine;
+
+  @Before
+  public void before() {
+    eventLog = new InMemoryFleetEventLog();
+    engine = recovered();
+  }
+
+  @After
+  public void after() {
+    engine.destroy();
+  }
+
+  private FleetStateEngine recovered() {
+    FleetStateEngine recovered = new FleetStateEngine(eventLog, NEVER, NEVER);
+    recovered.recover().block();
+    return recovered;
+  }
+
+  private static GroupOfPeopleEntity group(int id, int people) {
+    return new GroupOfPeopleEntity(id, people, new Date(1_000L * id));
+  }
+
+  private static String describe(FleetStateEngine fleet) {
+    return fleet.findAllNotWaiting().collectList().block() + " waiting " + fleet.findAllGroupsWaiting().collectList().block();
+  }
+
+  @Test
+  public void GivenJourneysAndDropoffs_WhenRecoveredFromSnapshotAndEvents_ThenSameFleetState() {
+    engine.initWith(Flux.just(new CarEntity(1, 4, null, null), new CarEntity(2, 6, null, null))).blockLast();
+    assertEquals(Integer.valueOf(1), engine.assignToCarWithAvailableSeats(group(1, 3)).block().getId());
+    assertEquals(Integer.valueOf(2), engine.assignToCarWithAvailableSeats(group(2, 5)).block().getId());
+    engine.putInWaitingQueue(group(3, 6)).block();
+    engine.putInWaitingQueue(group(4, 1)).block();
+    engine.dropoff(2).block();
+    assertEquals(Integer.valueOf(2), engine.reassignToCar(group(3, 6), 2).block().getId());
+    engine.snapshot().block();
+    engine.dropoff(1).block();
+    engine.assignAll(Arrays.asList(group(5, 2), group(6, 6))).block();
+    engine.flush().block();
+    String live = describe(engine);
+
+    FleetStateEngine recovered = recovered();
+    try {
+      assertEquals(live, describe(recovered));
+      assertEquals(Integer.valueOf(1), recovered.locateCarOfGroup(5).block().getId());
+      assertEquals(WAITING_QUEUE, recovered.dropoff(6).block().getId());
+    } finally {
+      recovered.destroy();
+    }
+  }
+
+  @Test
+  public void GivenBigGroupFirstInWaitingQueue_WhenSkippedMaxSkippedTimes_ThenHeldForIt() {
+    engine.initWith(Flux.just(new CarEntity(1, 2, null, null))).blockLast();
+    engine.putInWaitingQueue(group(1, 5)).block();
+    engine.putInWaitingQueue(group(2, 1)).block();
+    engine.putInWaitingQueue(group(3, 1)).block();
+
+    assertEquals(Integer.valueOf(2), engine.findFirstWaitingThatFits(null, 2, 1).block().getId());
+    engine.reassignToCar(group(2, 1), 1).block();
+    assertNull(engine.findFirstWaitingThatFits(null, 1, 1).block());
+    assertEquals(Integer.valueOf(3), engine.findFirstWaitingThatFits(null, 1, 2).block().getId());
+  }
+
+  @Test
+  public void GivenEventLogFailing_WhenFlushedAgain_ThenNoEventLostNorReordered() {
+    engine.initWith(Flux.just(new CarEntity(1, 4, null, null))).blockLast();
+    engine.assignToCarWithAvailableSeats(group(1, 2)).block();
+    eventLog.failing.set(true);
+    try {
+      engine.flush().block();
+      fail("flush should fail while the event log is failing");
+    } catch (RuntimeException expected) {
+      // events are put back in front of the next ones
+    }
+    engine.dropoff(1).block();
+    eventLog.failing.set(false);
+    engine.flush().block();
+
+    assertEquals(Arrays.asList(FleetEventEntity.Type.ASSIGNED, FleetEventEntity.Type.DROPPED_OFF),
+      eventLog.events.values().stream().map(FleetEventEntity::getType).collect(Collectors.toList()));
+  }
+
+  private static class InMemoryFleetEventLog implements FleetEventLog {
+    private final TreeMap<Long, FleetEventEntity> events = new TreeMap<>();
+    private final AtomicBoolean failing = new AtomicBoolean();
+    private FleetSnapshot snapshot;
+
+    @Override
+    public synchronized Mono<Void> append(List<FleetEventEntity> appended) {
+      if (failing.get()) {
+        return Mono.error(new IllegalStateException("event log unavailable"));
+      }
+      appended.forEach(event -> events.put(event.getId(), event));
+      return Mono.empty();
+    }
+
+    @Override
+    public synchronized Mono<Void> saveSnapshot(FleetSnapshot saved) {
+      snapshot = saved;
+      events.headMap(saved.getSeq(), true).clear();
+      return Mono.empty();
+    }
+
+    @Override
+    public synchronized Mono<FleetSnapshot> loadSnapshot() {
+      return Mono.justOrEmpty(snapshot);
+    }
+
+    @Override
+    public synchronized Flux<FleetEventEntity> eventsAfter(long seq) {
+      return Flux.fromIterable(new ArrayList<>(events.tailMap(seq, false).values()));
+    }
+  }
+}
@@ -0,0 +1,187 @@
+package bs.carpooling.engine;
+
+import bs.carpooling.entity.CarEntity;
+import bs.carpooling.entity.FleetEventEntity;
+import bs.carpooling.entity.GroupOfPeopleEntity;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import reactor.core.publisher.Flux;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+
+import static bs.carpooling.engine.JournalFleetEventLog.RECORD_SIZE;
+import static org.junit.Assert.*;
+
+public class JournalFleetEventLogTest {
+
+  private static final int EVENTS_PER_SEGMENT = 4;
+  private static final Duration NEVER = Duration.ofHours(1);
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private Path directory;
+  private JournalFleetEventLog journal;
+
+  @Before
+  public void before() throws IOException {
+    directory = folder.getRoot().toPath();
+    journal = reopened();
+  }
+
+  @After
+  public void after() {
+    journal.close();
+  }
+
+  private JournalFleetEventLog reopened() throws IOException {
+    if (journal != null) {
+      journal.close();
+    }
+    return journal = new JournalFleetEventLog(directory, EVENTS_PER_SEGMENT * RECORD_SIZE);
+  }
+
+  private static FleetEventEntity event(long seq) {
+    FleetEventEntity event = seq % 2 == 0
+      ? FleetEventEntity.assigned(new GroupOfPeopleEntity((int) seq, 2, new Date(seq)), 7)
+      : FleetEventEntity.droppedOff((int) seq);
+    event.setId(seq);
+    return event;
+  }
+
+  private static List<FleetEventEntity> events(long from, long to) {
+    return LongStream.rangeClosed(from, to).mapToObj(JournalFleetEventLogTest::event).collect(Collectors.toList());
+  }
+
+  private List<Long> seqsAfter(long seq) {
+    return journal.eventsAfter(seq).map(FleetEventEntity::getId).collectList().block();
+  }
+
+  private List<Path> files(String prefix) throws IOException {
+    try (Stream<Path> files = Files.list(directory)) {
+      return files.filter(file -> file.getFileName().toString().startsWith(prefix)).sorted().collect(Collectors.toList());
+    }
+  }
+
+  // Overwrite part of the record at index of a segment, as a crash while writing it would leave it
+  private void tear(Path segment, int index) throws IOException {
+    try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+      channel.write(ByteBuffer.wrap(new byte[]{1, 2, 3}), (long) index * RECORD_SIZE + RECORD_SIZE - 3);
+    }
+  }
+
+  @Test
+  public void GivenEventsOverManySegments_WhenReopened_ThenSameEventsInOrder() throws IOException {
+    journal.append(events(1, 5)).block();
+    journal.append(events(6, 10)).block();
+
+    journal = reopened();
+
+    assertEquals(3, files("segment-").size());
+    assertEquals(events(1, 10).toString(), journal.eventsAfter(0).collectList().block().toString());
+    assertEquals(Arrays.asList(9L, 10L), seqsAfter(8));
+  }
+
+  @Test
+  public void GivenWriteTornMidSegment_WhenReopened_ThenEventsBeforeIt_AndNextEventsReplaceIt() throws IOException {
+    journal.append(events(1, 6)).block();
+    journal.close();
+    // events 5 and 6 are in the second segment: 6 was being written
+    tear(directory.resolve("segment-5"), 1);
+
+    journal = reopened();
+    assertEquals(Arrays.asList(1L, 2L, 3L, 4L, 5L), seqsAfter(0));
+
+    journal.append(events(6, 7)).block();
+    journal = reopened();
+    assertEquals(Arrays.asList(1L, 2L, 3L, 4L, 5L, 6L, 7L), seqsAfter(0));
+  }
+
+  @Test
+  public void GivenEarlierRecordTornThanLaterOnes_WhenReopened_ThenLaterOnesNeverReadBack() throws IOException {
+    // pages of a mapped segment reach the disk in any order: 3 torn while 4 made it
+    journal.append(events(1, 4)).block();
+    journal.close();
+    tear(directory.resolve("segment-1"), 2);
+
+    journal = reopened();
+    journal.append(Collections.singletonList(event(3))).block();
+    journal = reopened();
+
+    assertEquals(Arrays.asList(1L, 2L, 3L), seqsAfter(0));
+  }
+
+  @Test
+  public void GivenBatchAppendedAgainAfterFailure_WhenReopened_ThenEachEventOnce() throws IOException {
+    journal.append(events(1, 3)).block();
+    journal.append(events(2, 5)).block();
+
+    journal = reopened();
+
+    assertEquals(Arrays.asList(1L, 2L, 3L, 4L, 5L), seqsAfter(0));
+  }
+
+  @Test
+  public void GivenSnapshot_WhenReopened_ThenSnapshotAndEventsAfterIt_AndCoveredSegmentsRemoved() throws IOException {
+    journal.append(events(1, 10)).block();
+    GroupOfPeopleEntity inCar = new GroupOfPeopleEntity(1, 2, new Date(1));
+    FleetSnapshot snapshot = new FleetSnapshot(9, Collections.singletonList(new CarEntity(7, 2, Collections.singletonList(inCar), 3L)),
+      Collections.singletonList(new GroupOfPeopleEntity(2, 5, new Date(2))));
+    journal.saveSnapshot(snapshot).block();
+
+    journal = reopened();
+
+    FleetSnapshot loaded = journal.loadSnapshot().block();
+    assertEquals(9, loaded.getSeq());
+    assertEquals(snapshot.getCars().toString(), loaded.getCars().toString());
+    assertEquals(snapshot.getWaitingGroups().toString(), loaded.getWaitingGroups().toString());
+    assertEquals(Collections.singletonList(10L), seqsAfter(9));
+    assertEquals(Collections.singletonList(directory.resolve("segment-9")), files("segment-"));
+  }
+
+  @Test
+  public void GivenSnapshotInterruptedBeforeRename_WhenReopened_ThenPreviousSnapshot() throws IOException {
+    journal.append(events(1, 2)).block();
+    journal.saveSnapshot(new FleetSnapshot(2, Collections.emptyList(), Collections.emptyList())).block();
+    Files.write(directory.resolve("snapshot-5.tmp"), new byte[]{1, 2});
+
+    journal = reopened();
+
+    assertEquals(2, journal.loadSnapshot().block().getSeq());
+  }
+
+  @Test
+  public void GivenEngineOnJournal_WhenCrashedWithoutShutdown_ThenRecoversFlushedState() throws IOException {
+    FleetStateEngine engine = new FleetStateEngine(journal, NEVER, NEVER);
+    engine.recover().block();
+    engine.initWith(Flux.just(new CarEntity(1, 4, null, null), new CarEntity(2, 6, null, null))).blockLast();
+    for (int id = 1; id <= 5; id++) {
+      engine.assignAll(Collections.singletonList(new GroupOfPeopleEntity(id, id, new Date(id)))).block();
+    }
+    engine.dropoff(4).block();
+    engine.flush().block();
+    String flushed = engine.findAllNotWaiting().collectList().block() + " " + engine.findAllGroupsWaiting().collectList().block();
+    // not flushed: lost by the crash
+    engine.dropoff(1).block();
+
+    journal = reopened();
+    FleetStateEngine recovered = new FleetStateEngine(journal, NEVER, NEVER);
+    recovered.recover().block();
+
+    assertEquals(flushed, recovered.findAllNotWaiting().collectList().block() + " " + recovered.findAllGroupsWaiting().collectList().block());
+    recovered.destroy();
+  }
+}
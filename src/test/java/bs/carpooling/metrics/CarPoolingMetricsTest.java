@@ -0,0 +1,42 @@
+package bs.carpooling.metrics;
+
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+import static org.junit.Assert.assertEquals;
+
+public class CarPoolingMetricsTest {
+
+  private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+  @Before
+  public void before() {
+    Metrics.addRegistry(meterRegistry);
+  }
+
+  @After
+  public void after() {
+    Metrics.removeRegistry(meterRegistry);
+  }
+
+  @Test
+  public void GivenOperations_WhenTimed_ThenTimedByOutcome() {
+    StepVerifier.create(CarPoolingMetrics.timed(CarPoolingMetrics.SERVICE, "journey", Mono.just(1))).expectNext(1).verifyComplete();
+    StepVerifier.create(CarPoolingMetrics.timed(CarPoolingMetrics.SERVICE, "journey", Mono.error(new RuntimeException()))).verifyError();
+
+    assertEquals(1, meterRegistry.get(CarPoolingMetrics.SERVICE).tags("operation", "journey", "outcome", "success").timer().count());
+    assertEquals(1, meterRegistry.get(CarPoolingMetrics.SERVICE).tags("operation", "journey", "outcome", "error").timer().count());
+  }
+
+  @Test
+  public void GivenUnsubscribedOperation_WhenTimed_ThenNotTimed() {
+    CarPoolingMetrics.timed(CarPoolingMetrics.SERVICE, "dropoff", Mono.just(1));
+
+    assertEquals(0, meterRegistry.find(CarPoolingMetrics.SERVICE).tags("operation", "dropoff").timers().size());
+  }
+}
@@ -0,0 +1,36 @@
+package bs.carpooling.metrics;
+
+import bs.carpooling.dto.WaitTimeDistributionDTO;
+import bs.carpooling.entity.GroupOfPeopleEntity;
+import org.junit.Test;
+
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class WaitTimesTest {
+
+  private final WaitTimes waitTimes = new WaitTimes();
+
+  @Test
+  public void GivenGroupsReassigned_WhenDistributions_ThenWaitsByPeople() {
+    long now = System.currentTimeMillis();
+    for (int i = 1; i <= 100; i++) {
+      waitTimes.reassigned(new GroupOfPeopleEntity(i, 2, new Date(now - i * 1000L)));
+    }
+    waitTimes.reassigned(new GroupOfPeopleEntity(101, 6, new Date(now - 60_000)));
+
+    List<WaitTimeDistributionDTO> distributions = waitTimes.distributions();
+
+    assertEquals(2, distributions.size());
+    WaitTimeDistributionDTO pairs = distributions.get(0);
+    assertEquals(2, pairs.getPeople());
+    assertEquals(100, pairs.getCount());
+    assertTrue(Math.abs(pairs.getP50Millis() - 50_000) < 1_000);
+    assertTrue(pairs.getP999Millis() >= 100_000 && pairs.getP999Millis() < 101_000);
+    assertEquals(6, distributions.get(1).getPeople());
+    assertEquals(1, distributions.get(1).getCount());
+  }
+}
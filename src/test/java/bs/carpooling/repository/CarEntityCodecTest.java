@@ -0,0 +1,126 @@
+package bs.carpooling.repository;
+
+import bs.carpooling.entity.CarEntity;
+import bs.carpooling.entity.GroupOfPeopleEntity;
+import com.mongodb.MongoClientSettings;
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentReader;
+import org.bson.BsonDocumentWriter;
+import org.bson.Document;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.data.mongodb.core.convert.DefaultMongoTypeMapper;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+import org.springframework.data.mongodb.core.convert.NoOpDbRefResolver;
+import org.springframework.data.mongodb.core.mapping.MongoMappingContext;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+
+import static org.junit.Assert.*;
+
+public class CarEntityCodecTest {
+
+  private CarEntityCodec codec;
+  private MappingMongoConverter converter;
+
+  private final CarEntity car = new CarEntity(7, 1, Arrays.asList(
+    new GroupOfPeopleEntity(1, 2, new Date(1000)),
+    new GroupOfPeopleEntity(2, 3, new Date(2000))), 4L);
+
+  @Before
+  public void before() {
+    converter = new MappingMongoConverter(NoOpDbRefResolver.INSTANCE, new MongoMappingContext());
+    converter.afterPropertiesSet();
+    codec = new CarEntityCodec(converter);
+  }
+
+  // As configured by CompactSchemaConfiguration
+  private static MappingMongoConverter compactConverter() {
+    MongoMappingContext mappingContext = new MongoMappingContext();
+    mappingContext.setFieldNamingStrategy(new CompactFieldNamingStrategy());
+    MappingMongoConverter compactConverter = new MappingMongoConverter(NoOpDbRefResolver.INSTANCE, mappingContext);
+    compactConverter.setTypeMapper(new DefaultMongoTypeMapper(null, mappingContext));
+    compactConverter.afterPropertiesSet();
+    return compactConverter;
+  }
+
+  private BsonDocument encoded(CarEntity car) {
+    BsonDocument encoded = new BsonDocument();
+    codec.encode(new BsonDocumentWriter(encoded), car, EncoderContext.builder().build());
+    return encoded;
+  }
+
+  private CarEntity decoded(BsonDocument document) {
+    return codec.decode(new BsonDocumentReader(document), DecoderContext.builder().build());
+  }
+
+  private static BsonDocument bson(Document document) {
+    return document.toBsonDocument(BsonDocument.class, MongoClientSettings.getDefaultCodecRegistry());
+  }
+
+  @Test
+  public void GivenCar_WhenEncoded_ThenSameDocumentAsMappingConverter() {
+    Document written = new Document();
+    converter.write(car, written);
+
+    assertEquals(bson(written), encoded(car));
+  }
+
+  @Test
+  public void GivenDocumentWrittenByMappingConverter_WhenDecoded_ThenSameCar() {
+    Document written = new Document();
+    converter.write(car, written);
+
+    CarEntity decoded = decoded(bson(written));
+
+    assertEquals(car.toString(), decoded.toString());
+    assertEquals(converter.read(CarEntity.class, written).toString(), decoded.toString());
+  }
+
+  @Test
+  public void GivenZonedCar_WhenEncoded_ThenSameDocumentAsMappingConverter_AndDecodedWithItsZone() {
+    CarEntity zonedCar = car.toBuilder().zone("north").build();
+    Document written = new Document();
+    converter.write(zonedCar, written);
+
+    assertEquals(bson(written), encoded(zonedCar));
+    assertEquals("north", decoded(encoded(zonedCar)).getZone());
+  }
+
+  @Test
+  public void GivenProjectedDocument_WhenDecoded_ThenFieldsLeftOutAreNull() {
+    BsonDocument projected = bson(new Document("_id", 7).append("seatsAvailable", 1).append("version", 4));
+
+    CarEntity decoded = decoded(projected);
+
+    assertEquals(new CarEntity(7, 1, null, 4L).toString(), decoded.toString());
+  }
+
+  @Test
+  public void GivenCompactSchema_WhenEncoded_ThenSameDocumentAsMappingConverter_WithCompactFieldsAndNoType() {
+    MappingMongoConverter compactConverter = compactConverter();
+    Document written = new Document();
+    compactConverter.write(car, written);
+
+    BsonDocument encoded = new BsonDocument();
+    new CarEntityCodec(compactConverter).encode(new BsonDocumentWriter(encoded), car, EncoderContext.builder().build());
+
+    assertEquals(bson(written), encoded);
+    assertEquals(new HashSet<>(Arrays.asList("_id", "s", "g", "v")), encoded.keySet());
+  }
+
+  @Test
+  public void GivenDefaultSchemaDocument_WhenMigrated_ThenSameDocumentAsCompactSchema() {
+    MappingMongoConverter compactConverter = compactConverter();
+    Document compact = new Document();
+    compactConverter.write(car, compact);
+    Document written = new Document();
+    converter.write(car, written);
+
+    assertEquals(bson(compact), bson(CompactSchemaMigration.compact(written)));
+  }
+}
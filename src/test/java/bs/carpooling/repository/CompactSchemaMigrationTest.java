@@ -0,0 +1,164 @@
+package bs.carpooling.repository;
+
+import bs.carpooling.entity.*;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Updates;
+import com.mongodb.reactivestreams.client.MongoCollection;
+import org.bson.Document;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.data.mongo.DataMongoTest;
+import org.springframework.data.mongodb.ReactiveMongoDatabaseFactory;
+import org.springframework.data.mongodb.core.ReactiveMongoOperations;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.convert.DefaultMongoTypeMapper;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+import org.springframework.data.mongodb.core.convert.MongoCustomConversions;
+import org.springframework.data.mongodb.core.convert.NoOpDbRefResolver;
+import org.springframework.data.mongodb.core.mapping.MongoMappingContext;
+import org.springframework.test.context.junit4.SpringRunner;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@DataMongoTest
+@RunWith(SpringRunner.class)
+public class CompactSchemaMigrationTest {
+
+  private static final List<Class<?>> ENTITIES = Arrays.asList(CarEntity.class, WaitingGroupEntity.class,
+    GroupLocationEntity.class, FleetEventEntity.class, FleetSnapshotEntity.class, FleetSnapshotChunkEntity.class);
+
+  @Autowired
+  private ReactiveMongoOperations mongoOperations;
+
+  @Autowired
+  private ReactiveMongoDatabaseFactory mongoDatabaseFactory;
+
+  private CustomizedCarsRepositoryImpl defaultSchemaRepository;
+
+  @Before
+  public void before() {
+    dropCollections();
+    defaultSchemaRepository = new CustomizedCarsRepositoryImpl(mongoOperations, 1000, 4);
+    defaultSchemaRepository.initWith(Flux.just(new CarEntity(1, 4, null, null), new CarEntity(2, 6, null, null))).blockLast();
+    defaultSchemaRepository.assignToCarWithAvailableSeats(new GroupOfPeopleEntity(1, 3, new Date(1000))).block();
+    defaultSchemaRepository.putInWaitingQueue(new GroupOfPeopleEntity(2, 7, new Date(2000))).block();
+  }
+
+  // The other tests create the indexes of the default schema again
+  @After
+  public void dropCollections() {
+    Flux.fromIterable(ENTITIES).concatMap(mongoOperations::dropCollection).blockLast();
+  }
+
+  @Test
+  public void GivenDefaultSchemaDocuments_WhenMigrated_ThenReadThroughCompactSchema() {
+    ReactiveMongoTemplate compactOperations = compactTemplate(collection -> Mono.empty());
+
+    StepVerifier.create(new CompactSchemaMigration(compactOperations).migrate()).expectNext(4L).verifyComplete();
+
+    CustomizedCarsRepositoryImpl compactRepository = new CustomizedCarsRepositoryImpl(compactOperations, 1000, 4);
+    StepVerifier.create(compactRepository.locateCarOfGroup(1))
+      .expectNextMatches(car -> car.getId() == 1 && car.getSeatsAvailable() == 1).verifyComplete();
+    StepVerifier.create(compactRepository.findAllGroupsWaiting())
+      .expectNextMatches(group -> group.getId() == 2 && group.getPeople() == 7 && group.getInsertDate().getTime() == 2000)
+      .verifyComplete();
+    StepVerifier.create(compactRepository.findAllNotWaiting().filter(car -> car.getId() == 1))
+      .expectNextMatches(car -> car.getGroups().size() == 1 && car.getGroups().get(0).getPeople() == 3).verifyComplete();
+    StepVerifier.create(documentsWith(CarEntity.class, "seatsAvailable")).expectNext(0L).verifyComplete();
+    StepVerifier.create(Flux.from(rawCollection(CarEntity.class).listIndexes())
+      .filter(index -> "zone-seats".equals(index.getString("name")))
+      .map(index -> index.get("key", Document.class)))
+      .expectNext(new Document("z", 1).append("s", 1))
+      .verifyComplete();
+  }
+
+  @Test
+  public void GivenCarChangedDuringFirstPass_WhenMigrated_ThenReplacedOnNextPass_AndChangeKept() {
+    AtomicInteger bulkWrites = new AtomicInteger();
+    ReactiveMongoTemplate compactOperations = compactTemplate(collection -> {
+      if (!mongoOperations.getCollectionName(CarEntity.class).equals(collection) || bulkWrites.getAndIncrement() > 0) {
+        return Mono.empty();
+      }
+      // A node still on the default schema frees a seat of car 1 between the read and the replacement
+      return Mono.from(rawCollection(CarEntity.class).updateOne(Filters.eq("_id", 1), Updates.inc("seatsAvailable", 1)));
+    });
+
+    StepVerifier.create(new CompactSchemaMigration(compactOperations).migrate()).expectNext(4L).verifyComplete();
+
+    assertEquals(2, bulkWrites.get());
+    StepVerifier.create(new CustomizedCarsRepositoryImpl(compactOperations, 1000, 4).locateCarOfGroup(1))
+      .expectNextMatches(car -> car.getSeatsAvailable() == 2).verifyComplete();
+    StepVerifier.create(documentsWith(CarEntity.class, "seatsAvailable")).expectNext(0L).verifyComplete();
+  }
+
+  private interface BeforeBulkWrite {
+    Mono<?> run(String collectionName);
+  }
+
+  /**
+   * Compact schema template, as configured by {@link CompactSchemaConfiguration}, whose collections run a change before
+   * each bulk write.
+   */
+  private ReactiveMongoTemplate compactTemplate(BeforeBulkWrite beforeBulkWrite) {
+    MongoCustomConversions conversions = new MongoCustomConversions(Collections.emptyList());
+    MongoMappingContext mappingContext = new MongoMappingContext();
+    mappingContext.setFieldNamingStrategy(new CompactFieldNamingStrategy());
+    mappingContext.setSimpleTypeHolder(conversions.getSimpleTypeHolder());
+    mappingContext.afterPropertiesSet();
+    MappingMongoConverter converter = new MappingMongoConverter(NoOpDbRefResolver.INSTANCE, mappingContext);
+    converter.setCustomConversions(conversions);
+    converter.setTypeMapper(new DefaultMongoTypeMapper(null, mappingContext));
+    converter.afterPropertiesSet();
+    ReactiveMongoTemplate template = new ReactiveMongoTemplate(mongoDatabaseFactory, converter) {
+      @Override
+      @SuppressWarnings("unchecked")
+      public MongoCollection<Document> getCollection(String collectionName) {
+        MongoCollection<Document> collection = super.getCollection(collectionName);
+        return (MongoCollection<Document>) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{MongoCollection.class},
+          (proxy, method, args) -> {
+            if (!"bulkWrite".equals(method.getName())) {
+              return invoke(collection, method, args);
+            }
+            return beforeBulkWrite.run(collectionName).then(Mono.from(invoke(collection, method, args)));
+          });
+      }
+    };
+    // The template would create the compound indexes on default field names as each entity is added to this lazily
+    // filled context, racing with the migration: in the application, they are all added before the template is created
+    mappingContext.setApplicationEventPublisher(event -> {
+    });
+    return template;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <T> T invoke(MongoCollection<Document> collection, java.lang.reflect.Method method, Object[] args) throws Throwable {
+    try {
+      return (T) method.invoke(collection, args);
+    } catch (InvocationTargetException e) {
+      throw e.getCause();
+    }
+  }
+
+  private MongoCollection<Document> rawCollection(Class<?> entityClass) {
+    return mongoOperations.getCollection(mongoOperations.getCollectionName(entityClass));
+  }
+
+  private Mono<Long> documentsWith(Class<?> entityClass, String field) {
+    return Mono.from(rawCollection(entityClass).countDocuments(Filters.exists(field)));
+  }
+}
@@ -4,6 +4,7 @@ import bs.carpooling.entity.CarEntity;
 import bs.carpooling.entity.GroupOfPeopleEntity;
 import bs.carpooling.dto.CarDTO;
 import bs.carpooling.dto.GroupOfPeopleDTO;
+import bs.carpooling.metrics.WaitTimes;
 import bs.carpooling.repository.CarsRepository;
 import lombok.extern.slf4j.Slf4j;
 import org.junit.Before;
@@ -34,17 +35,20 @@ import static org.junit.Assert.fail;
 public class CarPoolingServiceConcurrentTest {
 
   private static final int CONCURRENT_REQUESTS = 20;
+  private static final int MAX_SKIPPED = 5;
 
   @Autowired
   private CarsRepository carsRepository;
 
   private CarPoolingService carPoolingService;
 
+  private final GroupEvents groupEvents = new GroupEvents(CONCURRENT_REQUESTS);
+
   @Before
   public void before() {
     Hooks.onOperatorDebug();
     carsRepository.initWith(Flux.empty()).blockLast();
-    carPoolingService = new CarPoolingService(carsRepository);
+    carPoolingService = new CarPoolingService(carsRepository, new ReassignmentScheduler(new WaitingQueueMatcher(carsRepository, MAX_SKIPPED, new WaitTimes(), groupEvents)), groupEvents);
   }
 
   @Test
@@ -52,7 +56,7 @@ public class CarPoolingServiceConcurrentTest {
     final int numberOfIterations = 10;
     for (int i = 0; i < numberOfIterations; i++) {
       log.debug("iteration {} starts...", i);
-      carPoolingService.createCars(Collections.singletonList(new CarDTO(1, 4))).blockLast();
+      carPoolingService.createCars(Collections.singletonList(new CarDTO(1, 4))).block();
 
       concurrentPostJourneys();
 
@@ -89,7 +93,7 @@ public class CarPoolingServiceConcurrentTest {
     final int numberOfIterations = 10;
     for (int i = 0; i < numberOfIterations; i++) {
       log.debug("iteration {} starts...", i);
-      carPoolingService.createCars(Collections.singletonList(new CarDTO(1, 4))).blockLast();
+      carPoolingService.createCars(Collections.singletonList(new CarDTO(1, 4))).block();
 
       concurrentPostJourneysAndDropoff();
 
@@ -108,7 +112,7 @@ public class CarPoolingServiceConcurrentTest {
         cars.add(new CarDTO(j, 4));
 
       }
-      carPoolingService.createCars(cars).blockLast();
+      carPoolingService.createCars(cars).block();
       List<GroupOfPeopleEntity> createdGroups = concurrentPostJourneys();
       logCarsAndWaitingGroups();
 
@@ -164,7 +168,7 @@ public class CarPoolingServiceConcurrentTest {
         cars.add(new CarDTO(j, 4));
 
       }
-      carPoolingService.createCars(cars).blockLast();
+      carPoolingService.createCars(cars).block();
       List<GroupOfPeopleEntity> createdGroups = concurrentPostJourneys(CONCURRENT_REQUESTS * 2);
       log.debug("createdGroups ({}) = {}", createdGroups.size(), createdGroups);
       List<GroupOfPeopleEntity> assignedGroups = carPoolingService.cars()
@@ -1,30 +1,58 @@
 package bs.carpooling.service;
 
+import bs.carpooling.allocation.SeatBuckets;
+import bs.carpooling.allocation.SizeClassPolicy;
 import bs.carpooling.dto.CarDTO;
+import bs.carpooling.dto.CarsSummaryDTO;
+import bs.carpooling.dto.GroupEventDTO;
+import bs.carpooling.dto.GroupEventDTO.Event;
+import bs.carpooling.dto.GroupIdDTO;
 import bs.carpooling.dto.GroupOfPeopleDTO;
+import bs.carpooling.dto.GroupOutcomeDTO;
+import bs.carpooling.dto.GroupOutcomeDTO.Outcome;
 import bs.carpooling.entity.CarEntity;
+import bs.carpooling.entity.GroupLocationEntity;
 import bs.carpooling.entity.GroupOfPeopleEntity;
+import bs.carpooling.entity.WaitingGroupEntity;
+import bs.carpooling.metrics.WaitTimes;
 import bs.carpooling.repository.CarsRepository;
+import bs.carpooling.repository.CustomizedCarsRepositoryImpl;
+import bs.carpooling.repository.SeatBucketCarsRepository;
+import bs.carpooling.service.JourneyBatcher.DuplicateJourneyException;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Updates;
+import com.mongodb.reactivestreams.client.MongoCollection;
 import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.data.mongo.DataMongoTest;
 import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.data.mongodb.ReactiveMongoDatabaseFactory;
 import org.springframework.data.mongodb.core.ReactiveMongoOperations;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.test.context.junit4.SpringRunner;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Hooks;
 import reactor.core.publisher.Mono;
 import reactor.test.StepVerifier;
 
+import java.time.Duration;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Date;
+import java.util.Optional;
+import java.util.OptionalInt;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
 
 import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.awaitility.Awaitility.await;
+import static org.junit.Assert.assertEquals;
 import static org.springframework.data.mongodb.core.query.Criteria.where;
 import static org.springframework.data.mongodb.core.query.Query.query;
 
@@ -33,26 +61,34 @@ import static org.springframework.data.mongodb.core.query.Query.query;
 @Slf4j
 public class CarPoolingServiceTest {
 
+  private static final int MAX_SKIPPED = 5;
+  private static final int MAX_SUBSCRIPTIONS = 100;
+
   @Autowired
   private CarsRepository carsRepository;
 
   private CarPoolingService carPoolingService;
 
+  private final GroupEvents groupEvents = new GroupEvents(MAX_SUBSCRIPTIONS);
+
   @Autowired
   private ReactiveMongoOperations mongoOperations;
 
+  @Autowired
+  private ReactiveMongoDatabaseFactory mongoDatabaseFactory;
+
 
   @Before
   public void before() {
     Hooks.onOperatorDebug();
     carsRepository.initWith(Flux.empty()).blockLast();
-    carPoolingService = new CarPoolingService(carsRepository);
+    carPoolingService = new CarPoolingService(carsRepository, new ReassignmentScheduler(new WaitingQueueMatcher(carsRepository, MAX_SKIPPED, new WaitTimes(), groupEvents)), groupEvents);
   }
 
   @Test
   public void GivenCarWithAvailableSeats_WhenJourney_ThenCarAssigned() {
     CarDTO expectedCar = new CarDTO(1, 3);
-    carPoolingService.createCars(Collections.singletonList(expectedCar)).blockLast();
+    carPoolingService.createCars(Collections.singletonList(expectedCar)).block();
 
     GroupOfPeopleDTO requestedGroup = new GroupOfPeopleDTO(1, 2);
     Mono<CarEntity> result = carPoolingService.journey(requestedGroup);
@@ -65,10 +101,23 @@ public class CarPoolingServiceTest {
         assignedCar.getGroups().contains(expectedGroup)).verifyComplete();
   }
 
+  @Test
+  public void GivenSizeClassPolicy_WhenSmallGroupJourney_ThenWaitsForCarKeepingSeatsForLargeGroup() {
+    CustomizedCarsRepositoryImpl sizeClassRepository = new CustomizedCarsRepositoryImpl(mongoOperations, 1000, 4,
+      new SizeClassPolicy(4));
+    carPoolingService = new CarPoolingService(sizeClassRepository, new ReassignmentScheduler(new WaitingQueueMatcher(sizeClassRepository, MAX_SKIPPED, new WaitTimes(), groupEvents)), groupEvents);
+    carPoolingService.createCars(Collections.singletonList(new CarDTO(1, 5))).block();
+
+    StepVerifier.create(carPoolingService.journey(new GroupOfPeopleDTO(1, 2)))
+      .expectNextMatches(car -> CarsRepository.WAITING_QUEUE.equals(car.getId())).verifyComplete();
+    StepVerifier.create(carPoolingService.journey(new GroupOfPeopleDTO(2, 4)))
+      .expectNextMatches(car -> car.getId() == 1 && car.getSeatsAvailable() == 1).verifyComplete();
+  }
+
   @Test
   public void GivenCarsWithAvailableSeats_WhenJourney_ThenCarAssignedWithLeastNeededAvailableSeats() {
     CarDTO expectedCar = new CarDTO(3, 3);
-    carPoolingService.createCars(Arrays.asList(new CarDTO(1, 1), new CarDTO(2, 6), expectedCar)).blockLast();
+    carPoolingService.createCars(Arrays.asList(new CarDTO(1, 1), new CarDTO(2, 6), expectedCar)).block();
 
     GroupOfPeopleDTO requestedGroup = new GroupOfPeopleDTO(1, 2);
     Mono<CarEntity> result = carPoolingService.journey(requestedGroup);
@@ -80,6 +129,168 @@ public class CarPoolingServiceTest {
       && assignedCar.getGroups().contains(expectedGroup)).verifyComplete();
   }
 
+  @Test
+  public void GivenSeatBucketAllocation_WhenJourney_ThenCarAssignedWithLeastNeededAvailableSeats() {
+    SeatBucketCarsRepository seatBucketCarsRepository = new SeatBucketCarsRepository(carsRepository, new SeatBuckets(6));
+    carPoolingService = new CarPoolingService(seatBucketCarsRepository, new ReassignmentScheduler(new WaitingQueueMatcher(seatBucketCarsRepository, MAX_SKIPPED, new WaitTimes(), groupEvents)), groupEvents);
+    CarDTO expectedCar = new CarDTO(3, 3);
+    carPoolingService.createCars(Arrays.asList(new CarDTO(1, 1), new CarDTO(2, 6), expectedCar)).block();
+
+    GroupOfPeopleDTO requestedGroup = new GroupOfPeopleDTO(1, 2);
+    Mono<CarEntity> result = carPoolingService.journey(requestedGroup);
+
+    StepVerifier.create(result).expectNextMatches(assignedCar -> expectedCar.getId() == assignedCar.getId()
+      && expectedCar.getSeats() - requestedGroup.getPeople() == assignedCar.getSeatsAvailable()).verifyComplete();
+  }
+
+  @Test
+  public void GivenSeatBucketOfCarWhoseVersionWentBack_WhenJourney_ThenBucketRefreshed_AndGroupWaiting() {
+    SeatBuckets seatBuckets = new SeatBuckets(6);
+    SeatBucketCarsRepository seatBucketCarsRepository = new SeatBucketCarsRepository(carsRepository, seatBuckets);
+    carPoolingService = new CarPoolingService(seatBucketCarsRepository, new ReassignmentScheduler(new WaitingQueueMatcher(seatBucketCarsRepository, MAX_SKIPPED, new WaitTimes(), groupEvents)), groupEvents);
+    // Another node initialized the fleet again: the stored car is at version 0, with fewer seats than the bucket knows
+    seatBuckets.put(1, 4, 5);
+    carsRepository.initWith(Flux.just(CarEntity.builder().id(1).seatsAvailable(1).build())).blockLast();
+
+    StepVerifier.create(carPoolingService.journey(new GroupOfPeopleDTO(1, 3)))
+      .expectNextMatches(car -> CarsRepository.WAITING_QUEUE.equals(car.getId()))
+      .verifyComplete();
+    assertEquals(OptionalInt.of(1), seatBuckets.freeSeats(1));
+  }
+
+  @Test
+  public void GivenSeatBucketOfDeletedCar_WhenJourney_ThenCarForgotten_AndGroupWaiting() {
+    SeatBuckets seatBuckets = new SeatBuckets(6);
+    SeatBucketCarsRepository seatBucketCarsRepository = new SeatBucketCarsRepository(carsRepository, seatBuckets);
+    carPoolingService = new CarPoolingService(seatBucketCarsRepository, new ReassignmentScheduler(new WaitingQueueMatcher(seatBucketCarsRepository, MAX_SKIPPED, new WaitTimes(), groupEvents)), groupEvents);
+    seatBuckets.put(1, 4, 0);
+
+    StepVerifier.create(carPoolingService.journey(new GroupOfPeopleDTO(1, 3)))
+      .expectNextMatches(car -> CarsRepository.WAITING_QUEUE.equals(car.getId()))
+      .verifyComplete();
+    assertEquals(OptionalInt.empty(), seatBuckets.freeSeats(1));
+  }
+
+  @Test
+  public void GivenCarWriteFailingOnDropoff_WhenDropoffRetried_ThenSeatsFreed() {
+    carPoolingService.createCars(Collections.singletonList(new CarDTO(1, 4))).block();
+    carPoolingService.journey(new GroupOfPeopleDTO(1, 3)).block();
+    MongoCollection<Document> cars = mongoOperations.getCollection(mongoOperations.getCollectionName(CarEntity.class));
+    // $inc fails on a non-numeric field
+    Mono.from(cars.updateOne(Filters.eq("_id", 1), Updates.set("seatsAvailable", "broken"))).block();
+
+    StepVerifier.create(carPoolingService.dropoff(1)).verifyError();
+
+    Mono.from(cars.updateOne(Filters.eq("_id", 1), Updates.set("seatsAvailable", 1))).block();
+    StepVerifier.create(carPoolingService.dropoff(1))
+      .expectNextMatches(car -> car.getId() == 1 && car.getSeatsAvailable() == 4)
+      .verifyComplete();
+    StepVerifier.create(carPoolingService.locateCarOfGroup(1)).verifyComplete();
+  }
+
+  @Test
+  public void GivenCarsOfTwoZones_WhenJourney_ThenCarOfItsZoneAssigned_OrWaiting() {
+    CarDTO northCar = new CarDTO(1, 4, "north");
+    carPoolingService.createCars(Arrays.asList(northCar, new CarDTO(2, 2, "south"))).block();
+
+    StepVerifier.create(carPoolingService.journey(new GroupOfPeopleDTO(1, 2, "north")))
+      .expectNextMatches(car -> northCar.getId() == car.getId()).verifyComplete();
+    StepVerifier.create(carPoolingService.journey(new GroupOfPeopleDTO(2, 2)))
+      .expectNextMatches(car -> car.getId().equals(CarsRepository.WAITING_QUEUE)).verifyComplete();
+    StepVerifier.create(carPoolingService.journeys(Flux.just(new GroupOfPeopleDTO(3, 3, "south"), new GroupOfPeopleDTO(4, 2, "north"))))
+      .expectNext(new GroupOutcomeDTO(3, Outcome.WAITING, null))
+      .expectNext(new GroupOutcomeDTO(4, Outcome.ASSIGNED, northCar.getId()))
+      .verifyComplete();
+  }
+
+  @Test
+  public void GivenGroupWaitingInZone_WhenDropoffsInBothZones_ThenReassignedToCarOfItsZone() {
+    CarDTO northCar = new CarDTO(1, 4, "north");
+    carPoolingService.createCars(Arrays.asList(northCar, new CarDTO(2, 4, "south")))
+      .then(carPoolingService.journey(new GroupOfPeopleDTO(1, 4, "north")))
+      .then(carPoolingService.journey(new GroupOfPeopleDTO(2, 4, "south")))
+      .then(carPoolingService.journey(new GroupOfPeopleDTO(3, 4, "north")))
+      .block();
+
+    // The south car frees its seats first
+    carPoolingService.dropoff(2).block();
+    carPoolingService.dropoff(1).subscribe();
+
+    await().atMost(1, SECONDS).until(() -> groupReassigned(3));
+    StepVerifier.create(carPoolingService.locateCarOfGroup(3))
+      .expectNextMatches(car -> northCar.getId() == car.getId() && "north".equals(car.getZone())).verifyComplete();
+  }
+
+  @Test
+  public void GivenHeadsOfWaitingQueuesInBothZones_WhenDropoffs_ThenNextGroupOfEachZoneReassigned() {
+    carPoolingService.createCars(Arrays.asList(new CarDTO(1, 4, "north"), new CarDTO(2, 4, "south"))).block();
+    // Heads of both waiting queues fit no car, and hold the groups behind them
+    Date arrived = new Date();
+    mongoOperations.insertAll(Arrays.asList(
+      new WaitingGroupEntity(1, 6, arrived, null, "north", null), new WaitingGroupEntity(2, 2, new Date(arrived.getTime() + 1), null, "north", null),
+      new WaitingGroupEntity(3, 6, arrived, null, "south", null), new WaitingGroupEntity(4, 2, new Date(arrived.getTime() + 1), null, "south", null)))
+      .blockLast();
+
+    StepVerifier.create(carPoolingService.dropoffs(Flux.just(new GroupIdDTO(1), new GroupIdDTO(3))))
+      .expectNext(new GroupOutcomeDTO(1, Outcome.LEFT_WAITING_QUEUE, null))
+      .expectNext(new GroupOutcomeDTO(3, Outcome.LEFT_WAITING_QUEUE, null))
+      .verifyComplete();
+
+    await().atMost(1, SECONDS).until(() -> groupReassigned(2) && groupReassigned(4));
+  }
+
+  @Test
+  public void GivenSeatBucketAllocation_AndCarsOfTwoZones_WhenJourney_ThenCarOfItsZoneAssigned() {
+    SeatBucketCarsRepository seatBucketCarsRepository = new SeatBucketCarsRepository(carsRepository, new SeatBuckets(6));
+    carPoolingService = new CarPoolingService(seatBucketCarsRepository, new ReassignmentScheduler(new WaitingQueueMatcher(seatBucketCarsRepository, MAX_SKIPPED, new WaitTimes(), groupEvents)), groupEvents);
+    CarDTO southCar = new CarDTO(2, 6, "south");
+    carPoolingService.createCars(Arrays.asList(new CarDTO(1, 3, "north"), southCar)).block();
+
+    StepVerifier.create(carPoolingService.journey(new GroupOfPeopleDTO(1, 2, "south")))
+      .expectNextMatches(car -> southCar.getId() == car.getId()).verifyComplete();
+  }
+
+  @Test
+  public void GivenJourneyBatcher_WhenJourneysWithinWindow_ThenAssignedBiggestFirst() {
+    JourneyBatcher journeyBatcher = new JourneyBatcher(carsRepository, Duration.ofMillis(200), 100);
+    journeyBatcher.afterPropertiesSet();
+    carPoolingService = new CarPoolingService(carsRepository, new ReassignmentScheduler(new WaitingQueueMatcher(carsRepository, MAX_SKIPPED, new WaitTimes(), groupEvents)), groupEvents,
+      Optional.of(journeyBatcher), 100);
+    carPoolingService.createCars(Arrays.asList(new CarDTO(1, 3), new CarDTO(2, 4))).block();
+
+    // One at a time, the group of 1 would take car 1 and leave no car for the second group of 3
+    StepVerifier.create(Mono.zip(
+      carPoolingService.journey(new GroupOfPeopleDTO(1, 1)),
+      carPoolingService.journey(new GroupOfPeopleDTO(2, 3)),
+      carPoolingService.journey(new GroupOfPeopleDTO(3, 3))))
+      .expectNextMatches(cars -> cars.getT1().getId() == 2 && cars.getT2().getId() == 1 && cars.getT3().getId() == 2)
+      .verifyComplete();
+    journeyBatcher.destroy();
+  }
+
+  @Test
+  public void GivenJourneyBatcher_WhenGroupRepeatedInBatch_OrAlreadyJourneyed_ThenDuplicateJourney() {
+    JourneyBatcher journeyBatcher = new JourneyBatcher(carsRepository, Duration.ofMillis(200), 100);
+    journeyBatcher.afterPropertiesSet();
+    carPoolingService = new CarPoolingService(carsRepository, new ReassignmentScheduler(new WaitingQueueMatcher(carsRepository, MAX_SKIPPED, new WaitTimes(), groupEvents)), groupEvents,
+      Optional.of(journeyBatcher), 100);
+    carPoolingService.createCars(Collections.singletonList(new CarDTO(1, 4))).block();
+
+    StepVerifier.create(Mono.zip(
+      carPoolingService.journey(new GroupOfPeopleDTO(1, 2)),
+      carPoolingService.journey(new GroupOfPeopleDTO(1, 2)).map(car -> false)
+        .onErrorReturn(DuplicateJourneyException.class, true)))
+      .expectNextMatches(outcomes -> outcomes.getT1().getId() == 1 && outcomes.getT2())
+      .verifyComplete();
+    StepVerifier.create(carPoolingService.journey(new GroupOfPeopleDTO(1, 2)))
+      .expectError(DuplicateJourneyException.class)
+      .verify();
+    StepVerifier.create(carsRepository.locateCarOfGroup(1))
+      .expectNextMatches(car -> car.getSeatsAvailable() == 2)
+      .verifyComplete();
+    journeyBatcher.destroy();
+  }
+
   @Test
   public void GivenCarsWithoutEnoughAvailableSeats_WhenJourney_ThenCarUnassigned_AndWaiting() {
     carPoolingService.createCars(Collections.singletonList(new CarDTO(1, 3)))
@@ -160,10 +371,10 @@ public class CarPoolingServiceTest {
       .then(carPoolingService.journey(new GroupOfPeopleDTO(givenGroupId, 2)));
 
     int expectedCarId = 13;
-    Flux<CarEntity> result = givenGroup
-      .thenMany(carPoolingService.createCars(Arrays.asList(new CarDTO(expectedCarId, 4), new CarDTO(14, 5), new CarDTO(15, 6))));
+    Mono<CarsSummaryDTO> result = givenGroup
+      .then(carPoolingService.createCars(Arrays.asList(new CarDTO(expectedCarId, 4), new CarDTO(14, 5), new CarDTO(15, 6))));
 
-    result.blockLast();
+    StepVerifier.create(result).expectNext(new CarsSummaryDTO(3, 15)).verifyComplete();
     StepVerifier.create(carPoolingService.locateGroup(givenGroupId)).verifyComplete();
     StepVerifier.create(carPoolingService.journey(new GroupOfPeopleDTO(7, 3))).expectNextMatches(car -> car.getId() == expectedCarId).verifyComplete();
   }
@@ -189,6 +400,29 @@ public class CarPoolingServiceTest {
     logCarsAndWaitingGroups();
   }
 
+  @Test
+  public void GivenGroupWaiting_AndSubscribedToItsEvents_WhenOtherGroupDropoff_ThenWaiting_AndAssigned_AndDropped() {
+    CarDTO car = new CarDTO(randomId(), 4);
+    int assignedGroupId = 1;
+    int waitingGroupId = 2;
+    carPoolingService.createCars(Collections.singletonList(car))
+      .then(carPoolingService.journey(new GroupOfPeopleDTO(assignedGroupId, 4)))
+      .then(carPoolingService.journey(new GroupOfPeopleDTO(waitingGroupId, 3)))
+      .block();
+
+    Flux<GroupEventDTO> events = carPoolingService.groupEvents(waitingGroupId).block();
+
+    StepVerifier.create(events)
+      .expectNext(new GroupEventDTO(waitingGroupId, Event.WAITING, null))
+      .then(() -> carPoolingService.dropoff(assignedGroupId).subscribe())
+      .expectNext(new GroupEventDTO(waitingGroupId, Event.ASSIGNED, car.getId()))
+      .then(() -> carPoolingService.dropoff(waitingGroupId).subscribe())
+      .expectNext(new GroupEventDTO(waitingGroupId, Event.DROPPED, null))
+      .expectComplete()
+      .verify(Duration.ofSeconds(5));
+    assertEquals(0, groupEvents.getSubscriptions());
+  }
+
   @Test
   public void GivenGroupsWaiting_WhenOtherGroupDropoff_AndEnoughAvailableSeats_ThenReassignedFIFO() {
     log.debug("BEGIN GivenGroupsWaiting_WhenOtherGroupDropoff_AndEnoughAvailableSeats_ThenReassignedFIFO");
@@ -225,6 +459,110 @@ public class CarPoolingServiceTest {
     log.debug("END GivenGroupsWaiting_WhenOtherGroupDropoff_AndEnoughAvailableSeats_ThenReassignedFIFO");
   }
 
+  @Test
+  public void GivenBigGroupFirstInWaitingQueue_WhenOtherGroupDropoff_ThenSmallerWaitingGroupReassigned() {
+    CarDTO expectedCar = new CarDTO(randomId(), 4);
+    int assignedGroupId = 1;
+    int bigGroupId = 2;
+    int smallGroupId = 3;
+    carPoolingService.createCars(Collections.singletonList(expectedCar))
+      .then(carPoolingService.journey(new GroupOfPeopleDTO(assignedGroupId, 4)))
+      .then(carPoolingService.journey(new GroupOfPeopleDTO(bigGroupId, 6)))
+      .then(carPoolingService.journey(new GroupOfPeopleDTO(smallGroupId, 2)))
+      .block();
+
+    carPoolingService.dropoff(assignedGroupId).subscribe();
+
+    await().atMost(1, SECONDS).until(() -> groupReassigned(smallGroupId));
+    StepVerifier.create(carPoolingService.locateCarOfGroup(smallGroupId)).expectNextMatches(car -> expectedCar.getId() == car.getId()).verifyComplete();
+    StepVerifier.create(carPoolingService.waitingGroups()).expectNextMatches(g -> g.getId().equals(bigGroupId)).verifyComplete();
+  }
+
+  @Test
+  public void GivenBigGroupFirstInWaitingQueue_WhenSkippedMaxSkippedTimes_ThenCarHeldForIt() {
+    ReassignmentScheduler reassignmentScheduler = new ReassignmentScheduler(new WaitingQueueMatcher(carsRepository, 2, new WaitTimes(), groupEvents));
+    carPoolingService = new CarPoolingService(carsRepository, reassignmentScheduler, groupEvents);
+    int bigGroupId = 10;
+    carPoolingService.createCars(Collections.singletonList(new CarDTO(1, 6)))
+      .thenMany(Flux.just(new GroupOfPeopleDTO(1, 3), new GroupOfPeopleDTO(2, 1), new GroupOfPeopleDTO(3, 1), new GroupOfPeopleDTO(4, 1),
+        new GroupOfPeopleDTO(bigGroupId, 5), new GroupOfPeopleDTO(11, 1), new GroupOfPeopleDTO(12, 1), new GroupOfPeopleDTO(13, 1))
+        .concatMap(carPoolingService::journey))
+      .blockLast();
+
+    // Each small group freed makes room for the next small one waiting, skipping the big group
+    dropoffAndAwaitPass(reassignmentScheduler, 2);
+    dropoffAndAwaitPass(reassignmentScheduler, 3);
+    assertEquals(Arrays.asList(true, true), Arrays.asList(groupReassigned(11), groupReassigned(12)));
+
+    // Skipped twice: the seats freed are held for the big group, until enough of them are
+    dropoffAndAwaitPass(reassignmentScheduler, 4);
+    dropoffAndAwaitPass(reassignmentScheduler, 1);
+    StepVerifier.create(carPoolingService.waitingGroups().map(GroupOfPeopleEntity::getId).sort())
+      .expectNext(bigGroupId, 13).verifyComplete();
+
+    dropoffAndAwaitPass(reassignmentScheduler, 11);
+    StepVerifier.create(carPoolingService.locateCarOfGroup(bigGroupId)).expectNextMatches(car -> car.getId() == 1).verifyComplete();
+    StepVerifier.create(carPoolingService.waitingGroups()).expectNextMatches(g -> g.getId().equals(13)).verifyComplete();
+  }
+
+  private void dropoffAndAwaitPass(ReassignmentScheduler reassignmentScheduler, int groupId) {
+    carPoolingService.dropoff(groupId).block();
+    await().atMost(5, SECONDS).until(() -> !reassignmentScheduler.isPassInFlight());
+  }
+
+  @Test
+  public void GivenCars_WhenJourneys_ThenOutcomesInOrder_AndBestFitCars() {
+    carPoolingService.createCars(Arrays.asList(new CarDTO(1, 4), new CarDTO(2, 6))).block();
+
+    Flux<GroupOutcomeDTO> result = carPoolingService.journeys(Flux.just(
+      new GroupOfPeopleDTO(1, 6), new GroupOfPeopleDTO(2, 3), new GroupOfPeopleDTO(3, 1), new GroupOfPeopleDTO(4, 5)));
+
+    StepVerifier.create(result)
+      .expectNext(new GroupOutcomeDTO(1, Outcome.ASSIGNED, 2))
+      .expectNext(new GroupOutcomeDTO(2, Outcome.ASSIGNED, 1))
+      .expectNext(new GroupOutcomeDTO(3, Outcome.ASSIGNED, 1))
+      .expectNext(new GroupOutcomeDTO(4, Outcome.WAITING, null))
+      .verifyComplete();
+    StepVerifier.create(carPoolingService.locateCarOfGroup(3)).expectNextMatches(car -> car.getSeatsAvailable() == 0).verifyComplete();
+    StepVerifier.create(carPoolingService.waitingGroups()).expectNextMatches(g -> g.getId().equals(4)).verifyComplete();
+  }
+
+  @Test
+  public void GivenGroupsAssignedAndWaiting_WhenJourneysRepeatingIds_ThenDuplicates_AndSeatsKept() {
+    carPoolingService.createCars(Arrays.asList(new CarDTO(1, 4), new CarDTO(2, 6))).block();
+    carPoolingService.journey(new GroupOfPeopleDTO(1, 4)).then(carPoolingService.journey(new GroupOfPeopleDTO(2, 4)))
+      .then(carPoolingService.journey(new GroupOfPeopleDTO(3, 3))).block();
+
+    Flux<GroupOutcomeDTO> result = carPoolingService.journeys(Flux.just(
+      new GroupOfPeopleDTO(4, 2), new GroupOfPeopleDTO(1, 1), new GroupOfPeopleDTO(4, 2), new GroupOfPeopleDTO(3, 1)));
+
+    StepVerifier.create(result)
+      .expectNext(new GroupOutcomeDTO(4, Outcome.ASSIGNED, 2))
+      .expectNext(new GroupOutcomeDTO(1, Outcome.DUPLICATE, null))
+      .expectNext(new GroupOutcomeDTO(4, Outcome.DUPLICATE, null))
+      .expectNext(new GroupOutcomeDTO(3, Outcome.DUPLICATE, null))
+      .verifyComplete();
+    StepVerifier.create(carPoolingService.cars().map(CarEntity::getSeatsAvailable).sort()).expectNext(0, 0).verifyComplete();
+    StepVerifier.create(carPoolingService.waitingGroups()).expectNextMatches(g -> g.getId().equals(3) && g.getPeople() == 3).verifyComplete();
+  }
+
+  @Test
+  public void GivenGroupsAssignedAndWaiting_WhenDropoffs_ThenOutcomesInOrder() {
+    carPoolingService.createCars(Collections.singletonList(new CarDTO(1, 4))).block();
+    carPoolingService.journeys(Flux.just(new GroupOfPeopleDTO(1, 2), new GroupOfPeopleDTO(2, 2), new GroupOfPeopleDTO(3, 6)))
+      .blockLast();
+
+    Flux<GroupOutcomeDTO> result = carPoolingService.dropoffs(Flux.just(new GroupIdDTO(3), new GroupIdDTO(13), new GroupIdDTO(1)));
+
+    StepVerifier.create(result)
+      .expectNext(new GroupOutcomeDTO(3, Outcome.LEFT_WAITING_QUEUE, null))
+      .expectNext(new GroupOutcomeDTO(13, Outcome.NOT_FOUND, null))
+      .expectNext(new GroupOutcomeDTO(1, Outcome.DROPPED_OFF, 1))
+      .verifyComplete();
+    StepVerifier.create(carPoolingService.locateCarOfGroup(2)).expectNextMatches(car -> car.getSeatsAvailable() == 2).verifyComplete();
+    StepVerifier.create(carPoolingService.waitingGroups()).verifyComplete();
+  }
+
   private boolean groupReassigned(int unassignedGroupId) {
     return carPoolingService.locateCarOfGroup(unassignedGroupId).block() != null;
   }
@@ -252,6 +590,89 @@ public class CarPoolingServiceTest {
     log.debug("then cars: {}", carPoolingService.cars().collectList().block());
   }
 
+  @Test
+  public void GivenStaleReassignmentClaim_WhenReleaseStaleClaims_ThenGroupReassignable() {
+    CarDTO expectedCar = new CarDTO(1, 4);
+    carPoolingService.createCars(Collections.singletonList(expectedCar)).block();
+    int groupId = 2;
+    Date claimedAt = new Date(System.currentTimeMillis() - 60_000);
+    mongoOperations.insert(new WaitingGroupEntity(groupId, 4, claimedAt, claimedAt)).block();
+
+    StepVerifier.create(carsRepository.releaseStaleClaims(new Date()))
+      .expectNextMatches(g -> g.getId().equals(groupId)).verifyComplete();
+
+    StepVerifier.create(carsRepository.reassignOneWaitingGroup(null)).expectNextMatches(g -> g.getId().equals(groupId)).verifyComplete();
+    StepVerifier.create(carPoolingService.locateCarOfGroup(groupId)).expectNextMatches(car -> expectedCar.getId() == car.getId()).verifyComplete();
+  }
+
+  @Test
+  public void GivenClaimReleasedWhileReassigning_WhenReassignToCar_ThenAssignmentUndone_AndGroupWaiting() {
+    int groupId = 1;
+    GroupOfPeopleEntity waitingGroup = givenGroupWaitingForFreedCar(groupId);
+    CustomizedCarsRepositoryImpl racingRepository = repositoryRacingLocationSave(() ->
+      mongoOperations.updateFirst(query(where("id").is(groupId)), new Update().unset("reassigningSince"), WaitingGroupEntity.class));
+
+    StepVerifier.create(racingRepository.reassignToCar(waitingGroup, 1)).verifyError();
+
+    StepVerifier.create(carPoolingService.locateCarOfGroup(groupId)).verifyComplete();
+    StepVerifier.create(carPoolingService.cars()).expectNextMatches(car -> car.getSeatsAvailable() == 4).verifyComplete();
+    StepVerifier.create(carsRepository.reassignToCar(waitingGroup, 1)).expectNextMatches(car -> car.getSeatsAvailable() == 0).verifyComplete();
+  }
+
+  @Test
+  public void GivenGroupDroppedOffWhileReassigning_WhenReassignToCar_ThenAssignmentUndone_AndSeatsFree() {
+    int groupId = 1;
+    GroupOfPeopleEntity waitingGroup = givenGroupWaitingForFreedCar(groupId);
+    CustomizedCarsRepositoryImpl racingRepository = repositoryRacingLocationSave(() -> carsRepository.dropoff(groupId)
+      .doOnNext(car -> assertEquals(CarsRepository.WAITING_QUEUE, car.getId())));
+
+    StepVerifier.create(racingRepository.reassignToCar(waitingGroup, 1)).verifyError();
+
+    StepVerifier.create(carPoolingService.locateCarOfGroup(groupId)).verifyComplete();
+    StepVerifier.create(carPoolingService.waitingGroups()).verifyComplete();
+    StepVerifier.create(carPoolingService.cars()).expectNextMatches(car -> car.getSeatsAvailable() == 4 && car.getGroups().isEmpty()).verifyComplete();
+    StepVerifier.create(carsRepository.dropoff(groupId)).verifyComplete();
+  }
+
+  @Test
+  public void GivenGroupInCar_AndStillWaiting_WhenReassignToCar_ThenCarRejected_AndGroupEntersOnce() {
+    carPoolingService.createCars(Collections.singletonList(new CarDTO(1, 6))).then(carPoolingService.journey(new GroupOfPeopleDTO(1, 2))).block();
+    // A reassignment stopped before the group left the waiting queue
+    GroupOfPeopleEntity group = new GroupOfPeopleEntity(1, 2, new Date());
+    mongoOperations.insert(new WaitingGroupEntity(group.getId(), group.getPeople(), group.getInsertDate(), null)).block();
+
+    StepVerifier.create(carsRepository.reassignToCar(group, 1)).verifyComplete();
+
+    StepVerifier.create(carPoolingService.cars())
+      .expectNextMatches(car -> car.getSeatsAvailable() == 4 && car.getGroups().size() == 1).verifyComplete();
+    StepVerifier.create(carsRepository.findWaitingById(group.getId())).expectNextCount(1).verifyComplete();
+  }
+
+  // Car 1 has 4 seats available again, the group of 4 people waits for it
+  private GroupOfPeopleEntity givenGroupWaitingForFreedCar(int groupId) {
+    carPoolingService.createCars(Collections.singletonList(new CarDTO(1, 4)))
+      .then(carPoolingService.journey(new GroupOfPeopleDTO(2, 4)))
+      .then(carPoolingService.journey(new GroupOfPeopleDTO(groupId, 4)))
+      .then(carsRepository.dropoff(2))
+      .block();
+    return carsRepository.findFirstWaitingThatFits(null, 4, 0).block();
+  }
+
+  // The race runs once, after the group entered the car and before its location is saved
+  private CustomizedCarsRepositoryImpl repositoryRacingLocationSave(Supplier<Mono<?>> race) {
+    AtomicBoolean raced = new AtomicBoolean();
+    ReactiveMongoTemplate racingOperations = new ReactiveMongoTemplate(mongoDatabaseFactory, mongoOperations.getConverter()) {
+      @Override
+      public <T> Mono<T> save(T objectToSave) {
+        if (objectToSave instanceof GroupLocationEntity && raced.compareAndSet(false, true)) {
+          return race.get().then(super.save(objectToSave));
+        }
+        return super.save(objectToSave);
+      }
+    };
+    return new CustomizedCarsRepositoryImpl(racingOperations, 1000, 4);
+  }
+
   @Test(expected = OptimisticLockingFailureException.class)
   public void GivenCar_WhenModifiedConcurrently_ThenException() {
     CarEntity car = mongoOperations.insert(CarEntity.builder().id(13).seatsAvailable(6).build()).block();
@@ -0,0 +1,57 @@
+package bs.carpooling.service;
+
+import bs.carpooling.dto.GroupEventDTO;
+import bs.carpooling.dto.GroupEventDTO.Event;
+import bs.carpooling.service.GroupEvents.GroupSubscription;
+import bs.carpooling.service.GroupEvents.TooManySubscriptionsException;
+import org.junit.Before;
+import org.junit.Test;
+import reactor.test.StepVerifier;
+
+import static org.junit.Assert.*;
+
+public class GroupEventsTest {
+
+  private static final int MAX_SUBSCRIPTIONS = 2;
+
+  private GroupEvents groupEvents;
+
+  @Before
+  public void before() {
+    groupEvents = new GroupEvents(MAX_SUBSCRIPTIONS);
+  }
+
+  @Test
+  public void GivenEventPublishedBeforeStart_WhenStartWithCurrent_ThenPublishedEventInstead() {
+    GroupSubscription subscription = groupEvents.subscribe(1);
+    groupEvents.publish(1, Event.ASSIGNED, 7);
+
+    StepVerifier.create(subscription.startWith(new GroupEventDTO(1, Event.WAITING, null)))
+      .expectNext(new GroupEventDTO(1, Event.ASSIGNED, 7))
+      .thenCancel()
+      .verify();
+  }
+
+  @Test
+  public void GivenStarted_WhenDropped_ThenCompleted_AndUnsubscribed() {
+    GroupSubscription subscription = groupEvents.subscribe(1);
+
+    StepVerifier.create(subscription.startWith(new GroupEventDTO(1, Event.WAITING, null)))
+      .expectNext(new GroupEventDTO(1, Event.WAITING, null))
+      .then(() -> groupEvents.publish(2, Event.DROPPED, null))
+      .then(() -> groupEvents.publish(1, Event.DROPPED, null))
+      .expectNext(new GroupEventDTO(1, Event.DROPPED, null))
+      .verifyComplete();
+    assertFalse(groupEvents.isSubscribed(1));
+    assertEquals(0, groupEvents.getSubscriptions());
+  }
+
+  @Test(expected = TooManySubscriptionsException.class)
+  public void GivenMaxSubscriptions_WhenSubscribe_ThenTooManySubscriptions() {
+    groupEvents.subscribe(1);
+    groupEvents.subscribe(1).cancel();
+    groupEvents.subscribe(2);
+
+    groupEvents.subscribe(3);
+  }
+}
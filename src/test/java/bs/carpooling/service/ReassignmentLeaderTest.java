@@ -0,0 +1,101 @@
+package bs.carpooling.service;
+
+import bs.carpooling.entity.CarEntity;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.data.mongo.DataMongoTest;
+import org.springframework.data.mongodb.ReactiveMongoDatabaseFactory;
+import org.springframework.test.context.junit4.SpringRunner;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static bs.carpooling.repository.CarsRepository.WAITING_QUEUE;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.awaitility.Awaitility.await;
+import static org.junit.Assert.*;
+
+@DataMongoTest
+@RunWith(SpringRunner.class)
+public class ReassignmentLeaderTest {
+
+  @Autowired
+  private ReactiveMongoDatabaseFactory mongoDatabaseFactory;
+
+  private ReassignmentLeader first;
+  private ReassignmentLeader second;
+  private final List<CarEntity> firstSignals = new CopyOnWriteArrayList<>();
+  private final List<CarEntity> secondSignals = new CopyOnWriteArrayList<>();
+
+  @Before
+  public void before() {
+    Mono.from(mongoDatabaseFactory.getMongoDatabase().getCollection(ReassignmentLeader.LEASES).drop()).block();
+    Mono.from(mongoDatabaseFactory.getMongoDatabase().getCollection(ReassignmentLeader.SIGNALS).drop()).block();
+    first = leader();
+    second = leader();
+  }
+
+  @After
+  public void after() {
+    first.destroy();
+    second.destroy();
+  }
+
+  @Test
+  public void GivenTwoNodes_WhenLeaseTaken_ThenOnlyOneLeads_AndReceivesForwardedSignals() {
+    first.start(firstSignals::add);
+    await().atMost(5, SECONDS).until(() -> first.isLeader(null));
+    second.start(secondSignals::add);
+
+    second.forward(CarEntity.builder().id(1).seatsAvailable(3).build());
+
+    await().atMost(5, SECONDS).until(() -> firstSignals.size() == 2);
+    assertEquals(WAITING_QUEUE, firstSignals.get(0).getId());
+    assertEquals(1, (int) firstSignals.get(1).getId());
+    assertEquals(3, (int) firstSignals.get(1).getSeatsAvailable());
+    assertFalse(second.isLeader(null));
+    assertTrue(secondSignals.isEmpty());
+  }
+
+  @Test
+  public void GivenLeader_WhenStopped_ThenNextLeaderHasNewerToken() {
+    first.start(firstSignals::add);
+    await().atMost(5, SECONDS).until(() -> first.isLeader(null));
+    long firstToken = first.getToken(null);
+    second.start(secondSignals::add);
+
+    first.destroy();
+
+    await().atMost(5, SECONDS).until(() -> second.isLeader(null));
+    assertTrue(second.getToken(null) > firstToken);
+    assertFalse(second.holds(null, firstToken));
+  }
+
+  @Test
+  public void GivenLeaderOfDefaultZone_WhenOtherNodeForwardsSignalOfNewZone_ThenOtherNodeLeadsNewZone() {
+    first.start(firstSignals::add);
+    await().atMost(5, SECONDS).until(() -> first.isLeader(null));
+    second.start(secondSignals::add);
+
+    second.forward(CarEntity.builder().id(1).seatsAvailable(3).zone("north").build());
+
+    await().atMost(5, SECONDS).until(() -> second.isLeader("north"));
+    await().atMost(5, SECONDS).until(() -> secondSignals.size() == 2);
+    assertEquals(WAITING_QUEUE, secondSignals.get(0).getId());
+    assertEquals("north", secondSignals.get(0).getZone());
+    assertEquals(1, (int) secondSignals.get(1).getId());
+    assertEquals("north", secondSignals.get(1).getZone());
+    assertFalse(first.isLeader("north"));
+    assertFalse(second.isLeader(null));
+    assertEquals(1, firstSignals.size());
+  }
+
+  private ReassignmentLeader leader() {
+    return new ReassignmentLeader(mongoDatabaseFactory, Duration.ofSeconds(2), Duration.ofMillis(200), Duration.ofMillis(50));
+  }
+}
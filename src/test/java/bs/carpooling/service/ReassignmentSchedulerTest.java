@@ -0,0 +1,137 @@
+package bs.carpooling.service;
+
+import bs.carpooling.entity.CarEntity;
+import com.mongodb.reactivestreams.client.MongoClient;
+import com.mongodb.reactivestreams.client.MongoClients;
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.data.mongodb.core.SimpleReactiveMongoDatabaseFactory;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoProcessor;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.awaitility.Awaitility.await;
+import static org.junit.Assert.assertEquals;
+
+public class ReassignmentSchedulerTest {
+
+  private ReassignmentScheduler reassignmentScheduler;
+  private MongoClient mongoClient;
+
+  @After
+  public void after() {
+    reassignmentScheduler.destroy();
+    if (mongoClient != null) {
+      mongoClient.close();
+    }
+  }
+
+  @Test
+  public void GivenPassRunning_WhenSeatsFreedMeanwhile_ThenOneFollowUpPassFillsThemAll() {
+    MonoProcessor<CarEntity> firstFillDone = MonoProcessor.create();
+    RecordingMatcher matcher = new RecordingMatcher(carId -> carId == 1 ? firstFillDone : Mono.empty());
+    reassignmentScheduler = new ReassignmentScheduler(matcher);
+
+    reassignmentScheduler.seatsFreed(car(1));
+    await().atMost(5, SECONDS).until(() -> matcher.filledCars.size() == 1);
+    reassignmentScheduler.seatsFreed(car(2));
+    reassignmentScheduler.seatsFreed(car(3));
+    reassignmentScheduler.seatsFreed(car(2));
+    firstFillDone.onComplete();
+
+    await().atMost(5, SECONDS).until(() -> !reassignmentScheduler.isPassInFlight());
+    assertEquals(2, matcher.passes.get());
+    assertEquals(List.of(1, 2, 3), matcher.filledCars.stream().sorted().collect(Collectors.toList()));
+    assertEquals(5, reassignmentScheduler.getLastPassWaitingGroups());
+  }
+
+  @Test
+  public void GivenSeatsFreedConcurrently_WhenPassesRun_ThenAtMostOnePassAtATime() {
+    AtomicInteger inFlight = new AtomicInteger();
+    AtomicInteger maxInFlight = new AtomicInteger();
+    RecordingMatcher matcher = new RecordingMatcher(carId -> Mono.defer(() -> {
+      maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+      return Mono.<CarEntity>empty()
+        .delaySubscription(Duration.ofMillis(1))
+        .doOnTerminate(inFlight::decrementAndGet);
+    }));
+    reassignmentScheduler = new ReassignmentScheduler(matcher);
+
+    Flux.fromStream(IntStream.rangeClosed(1, 200).boxed())
+      .parallel(8)
+      .runOn(Schedulers.parallel())
+      .doOnNext(carId -> reassignmentScheduler.seatsFreed(car(carId)))
+      .sequential()
+      .blockLast();
+
+    await().atMost(10, SECONDS).until(() -> !reassignmentScheduler.isPassInFlight());
+    assertEquals(1, maxInFlight.get());
+    assertEquals(200, matcher.filledCars.size());
+  }
+
+  @Test
+  public void GivenPassFailingToBuild_WhenSeatsFreed_ThenLaterPassesStillRun() {
+    mongoClient = MongoClients.create("mongodb://localhost:1");
+    ReassignmentLeader brokenLeader = new ReassignmentLeader(new SimpleReactiveMongoDatabaseFactory(mongoClient, "test"),
+      Duration.ofSeconds(10), Duration.ofSeconds(3), Duration.ofMillis(100)) {
+      @Override
+      public boolean isLeader(String zone) {
+        return true;
+      }
+
+      @Override
+      public long getToken(String zone) {
+        throw new IllegalStateException("lease unreadable");
+      }
+    };
+    RecordingMatcher matcher = new RecordingMatcher(carId -> Mono.empty());
+    reassignmentScheduler = new ReassignmentScheduler(matcher, brokenLeader);
+
+    reassignmentScheduler.seatsFreed(car(1));
+    await().atMost(5, SECONDS).until(() -> !reassignmentScheduler.isPassInFlight());
+    reassignmentScheduler.seatsFreed(car(2));
+
+    await().atMost(5, SECONDS).until(() -> !reassignmentScheduler.isPassInFlight());
+    assertEquals(0, reassignmentScheduler.getPendingSignals());
+  }
+
+  private static CarEntity car(int carId) {
+    return CarEntity.builder().id(carId).seatsAvailable(4).build();
+  }
+
+  /**
+   * Records the cars filled and the passes run (each pass counts the waiting groups once done).
+   */
+  private static class RecordingMatcher extends WaitingQueueMatcher {
+    private final Function<Integer, Mono<CarEntity>> fill;
+    private final List<Integer> filledCars = new CopyOnWriteArrayList<>();
+    private final AtomicInteger passes = new AtomicInteger();
+
+    RecordingMatcher(Function<Integer, Mono<CarEntity>> fill) {
+      super(null, 0, null, null);
+      this.fill = fill;
+    }
+
+    @Override
+    public Flux<CarEntity> fillCar(Integer carId, String zone, int seatsAvailable) {
+      filledCars.add(carId);
+      return fill.apply(carId).flux();
+    }
+
+    @Override
+    public Mono<Long> countWaiting() {
+      passes.incrementAndGet();
+      return Mono.just(5L);
+    }
+  }
+}